@@ -0,0 +1,180 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.Location;
+import bpiwowar.log.Logger;
+import com.sleepycat.je.DatabaseException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compacts a {@link BatchFileStorage} while it is being used: the live objects
+ * of the sparsest batches are moved to the end of the current batch, one at a
+ * time, so that readers and writers are never blocked for long. Contrarily to
+ * {@link BatchFileStorage#cleanup(bpiwowar.log.TaskTimer, double)}, the store
+ * does not need to be idle.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class BatchFileCompactor<K, W extends Location<K>, V> implements
+    Runnable {
+    private static final Logger logger = Logger.getLogger();
+
+    private final BatchFileStorage<K, W, V> storage;
+
+    /**
+     * Batches whose used percentage is below this threshold are compacted
+     */
+    private final double threshold;
+
+    /**
+     * Maximum number of bytes moved per second (0 for no limit)
+     */
+    private long bytesPerSecond;
+
+    /**
+     * Maximum number of batches compacted by one pass
+     */
+    private int maxBatches = 4;
+
+    /**
+     * Time between two passes (in ms)
+     */
+    private long interval = 60000;
+
+    private Thread thread;
+
+    /**
+     * Set when the compaction should stop (we do not interrupt the thread
+     * since this would close the file channels it is using)
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * @param storage The storage to compact
+     * @param threshold The used percentage below which a batch is compacted
+     * @param bytesPerSecond The maximum I/O rate (0 if not limited)
+     */
+    public BatchFileCompactor(BatchFileStorage<K, W, V> storage,
+        double threshold, long bytesPerSecond) {
+        this.storage = storage;
+        this.threshold = threshold;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setMaxBatches(int maxBatches) {
+        this.maxBatches = maxBatches;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Run one compaction pass: batch files retired by the previous pass are
+     * deleted, and the sparsest batches are compacted.
+     *
+     * @return The number of bytes moved
+     */
+    public long compact() throws IOException, DatabaseException {
+        if (storage.isReadOnly()) {
+            logger.warn("Cannot compact a read-only database");
+            return 0;
+        }
+
+        storage.deleteRetiredBatches();
+
+        final List<Integer> sparse = storage.getSparseBatches(threshold);
+        if (sparse.isEmpty())
+            return 0;
+
+        final Set<Integer> batches = new TreeSet<Integer>(sparse.subList(0,
+            Math.min(maxBatches, sparse.size())));
+        final List<W> list = storage.getLocations(batches);
+        logger.info("Compacting batches %s (%d objects)", batches,
+            list.size());
+
+        final long start = System.currentTimeMillis();
+        long moved = 0;
+        for (W location : list) {
+            if (stopped)
+                return moved;
+            moved += storage.move(location);
+
+            // Rate limit
+            if (bytesPerSecond > 0)
+                pause(moved * 1000 / bytesPerSecond
+                    - (System.currentTimeMillis() - start));
+        }
+
+        for (Integer batchIndex : batches)
+            if (!storage.retire(batchIndex))
+                logger.debug("Batch %d could not be retired", batchIndex);
+
+        logger.info("Compaction moved %d bytes in %d ms", moved, System
+            .currentTimeMillis()
+            - start);
+        return moved;
+    }
+
+    /**
+     * Wait (unless stopped)
+     */
+    private synchronized void pause(long ms) {
+        if (ms > 0 && !stopped)
+            try {
+                wait(ms);
+            }
+            catch (InterruptedException e) {
+                stopped = true;
+            }
+    }
+
+    /**
+     * Run compaction passes until stopped
+     */
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                compact();
+                pause(interval);
+            }
+        }
+        catch (Exception e) {
+            logger.error("Error while compacting %s: %s", storage, e);
+        }
+    }
+
+    /**
+     * Start compacting in a background (daemon) thread
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            stopped = false;
+            thread = new Thread(this, "compactor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the background thread and wait for it to finish the current move
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            stopped = true;
+            notifyAll();
+        }
+        if (t != null)
+            t.join();
+    }
+}
@@ -1,54 +1,70 @@
 package bpiwowar.db;
 
+import bpiwowar.io.ByteBufferInputStream;
+import bpiwowar.io.Compression;
 import bpiwowar.io.LoggerPrintStream;
-import bpiwowar.io.RandomAccessFileInputStream;
+import bpiwowar.io.StreamSerializer;
+import bpiwowar.io.StreamSerializers;
 import bpiwowar.io.RandomAccessFileOutputStream;
 import bpiwowar.log.Logger;
 import bpiwowar.log.TaskTimer;
 import bpiwowar.pipe.CloseableIterator;
+import bpiwowar.pipe.Processor;
 import bpiwowar.system.FileIterator;
 import bpiwowar.utils.GenericHelper;
 import bpiwowar.utils.iterators.AbstractIterator;
 import bpiwowar.utils.iterators.SimpleEntry;
 import com.sleepycat.je.DatabaseException;
-import com.sleepycat.je.DatabaseNotFoundException;
 import com.sleepycat.je.Environment;
-import com.sleepycat.persist.EntityCursor;
-import com.sleepycat.persist.EntityStore;
-import com.sleepycat.persist.PrimaryIndex;
-import com.sleepycat.persist.StoreConfig;
 import com.sleepycat.persist.evolve.IncompatibleClassException;
 import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.Persistent;
 import com.sleepycat.persist.model.PrimaryKey;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.log4j.Level;
 
 /**
- * A storage database for big objects, where objects are serialised in a series of files. The index is managed by the
- * Berkeley database
+ * A storage database for big objects, where objects are serialised in a series of files. The index is managed by a
+ * {@link LocationIndex} (by default, the Berkeley database)
  *
  * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
  */
@@ -70,16 +86,11 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     /**
      * Locations of the stored objects
      */
-    private PrimaryIndex<K, W> locations;
+    private final LocationIndex<K, W> locations;
 
     // Our constructor
     private Constructor<W> constructor;
 
-    /**
-     * The entity store for locations
-     */
-    protected EntityStore locationStore;
-
     /**
      * Current batch index
      */
@@ -91,18 +102,41 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     private final String dbname;
 
     /**
-     * Should the objects be gzipped
+     * How objects are compressed
      */
-    final boolean compressed;
+    final Compression compression;
 
     private Class<K> keyClass;
 
     private final Class<W> entityClass;
 
+    /**
+     * The serializer used to write and read objects
+     */
+    private final StreamSerializer<V> serializer;
+
     private boolean readOnly;
 
     /**
-     * Creates a new batch file storage
+     * Whether batch files are memory mapped (read-only mode)
+     */
+    private boolean memoryMapped;
+
+    /**
+     * Distance between the starts of two consecutive mappings of a batch file
+     * (1GB)
+     */
+    static final long MAPPING_STEP = 1l << 30;
+
+    /**
+     * Overlap between two consecutive mappings (64MB), so that objects smaller
+     * than this are always contained in one mapping
+     */
+    static final long MAPPING_OVERLAP = 1l << 26;
+
+    /**
+     * Creates a new batch file storage where objects are stored with the java
+     * serialization
      *
      * @param dbenv The database environment to store the locations
      * @param dbname The database name for locations
@@ -115,34 +149,62 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     public BatchFileStorage(Environment dbenv, final String dbname, File home,
         Class<W> entityClass, final boolean compress, final boolean destroy)
         throws IncompatibleClassException, DatabaseException {
-        // Open the database
+        this(dbenv, dbname, home, entityClass, compress ? Compression.GZIP
+            : Compression.NONE, destroy, StreamSerializers.<V>java());
+    }
+
+    /**
+     * Creates a new batch file storage whose locations are stored in a
+     * Berkeley database
+     *
+     * @param dbenv The database environment to store the locations
+     * @param dbname The database name for locations
+     * @param home The home directory for files (default to {@link Environment#getHome()})
+     * @param compression How objects are compressed when stored and uncompressed when loaded
+     * @param destroy
+     * @param serializer The serializer for objects. The storage does not record
+     *            which serializer and compression were used, so the same must
+     *            be used each time the storage is opened.
+     * @throws IncompatibleClassException
+     * @throws DatabaseException
+     */
+    public BatchFileStorage(Environment dbenv, final String dbname, File home,
+        Class<W> entityClass, final Compression compression,
+        final boolean destroy, StreamSerializer<V> serializer) throws IncompatibleClassException,
+        DatabaseException {
+        this(new BerkeleyLocationIndex<K, W>(dbenv, dbname, entityClass,
+            destroy), dbname, home != null ? home : dbenv.getHome(),
+            entityClass, compression, destroy, serializer);
+    }
+
+    /**
+     * Creates a new batch file storage
+     *
+     * @param locations The index of the locations (e.g. a
+     *            {@link BerkeleyLocationIndex} or a {@link LogLocationIndex})
+     * @param dbname The prefix of the batch files
+     * @param home The home directory for files
+     * @param compression How objects are compressed when stored and uncompressed when loaded
+     * @param destroy If the batch files should be deleted (the index should
+     *            have been destroyed too)
+     * @param serializer The serializer for objects
+     */
+    @SuppressWarnings("unchecked")
+    public BatchFileStorage(LocationIndex<K, W> locations, final String dbname,
+        File home, Class<W> entityClass, final Compression compression,
+        final boolean destroy, StreamSerializer<V> serializer) throws DatabaseException {
+        this.locations = locations;
         this.dbname = dbname;
         this.entityClass = entityClass;
-        this.compressed = compress;
+        this.compression = compression;
+        this.serializer = serializer;
+        this.readOnly = locations.isReadOnly();
 
-        this.home = (home = home != null ? home : dbenv.getHome());
+        this.home = home;
         logger.info("Home directory is %s", this.home);
 
         namePattern = Pattern.compile("^" + dbname + "-(\\d+).obj$");
 
-        // --- Destroy if needed
-        if (destroy) {
-            String prefix = "persist#" + dbname + '#';
-            for (Object oName : dbenv.getDatabaseNames()) {
-                String name = (String)oName;
-                if (name.startsWith(prefix)) {
-                    try {
-                        logger.warn("Destroying database %s", dbname);
-                        dbenv.removeDatabase(null, name);
-                    }
-                    catch (DatabaseNotFoundException e) {
-                    }
-                }
-            }
-
-            dbenv.sync();
-        }
-
         int maxBatch = -1;
         int nbBatch = 0;
         FileIterator fileIterator = new FileIterator(home, 0,
@@ -170,20 +232,6 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
                     "%d batch file(s) were already created [max=%d], next batch index is %d",
                     nbBatch, maxBatch, getCurrentBatchIndex() + 1);
 
-        // Statistics
-        StoreConfig storeConfig = new StoreConfig();
-        this.readOnly = dbenv.getConfig().getReadOnly();
-        if (dbenv.getConfig().getReadOnly()) {
-            storeConfig.setReadOnly(true);
-        }
-        else {
-            storeConfig.setDeferredWrite(true);
-            storeConfig.setAllowCreate(true);
-        }
-
-        // Open the keyword location db
-        locationStore = new EntityStore(dbenv, dbname, storeConfig);
-
         Type[] types = GenericHelper.getActualTypeArguments(entityClass,
             Location.class);
         keyClass = (Class<K>)types[0];
@@ -197,9 +245,6 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
             throw new RuntimeException(e);
         }
 
-        locations = locationStore.getPrimaryIndex(keyClass, entityClass);
-        // types = GenericHelper.getActualTypeArguments(this.getClass(),
-        // BatchFileStorage.class);
         logger.info("Initialised batch file storage \"%s\" with %d entries",
             dbname, locations.count());
     }
@@ -225,8 +270,9 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     public void close() throws Throwable {
         if (!closed) {
             closed = true;
+            deleteRetiredBatches();
             closeOpenedBatches(true);
-            locationStore.close();
+            locations.close();
         }
     }
 
@@ -252,11 +298,12 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
 
         // OK, let's go
 
-        BatchInformation currentInfo = getBatchInformation(getCurrentBatchIndex());
+        BatchInformation currentInfo = getBatchInformation(
+            getCurrentBatchIndex(), true);
         if (currentInfo.statistics.getUsedPercentage() < threshold) {
             logger.info("Creating a new batch for cleanup");
             nextBatch();
-            currentInfo = getBatchInformation(getCurrentBatchIndex());
+            currentInfo = getBatchInformation(getCurrentBatchIndex(), true);
         }
 
         File batchFile = getBatchFile(getCurrentBatchIndex());
@@ -270,7 +317,7 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
         // 16Kb buffer to write
         byte[] buffer = new byte[16 * 1024];
 
-        final EntityCursor<W> cursor = locations.entities();
+        final LocationIndex.Cursor<W> cursor = locations.cursor();
 
         for (W kl = cursor.next(); kl != null; kl = cursor.next()) {
             Boolean keep = keepMap.get(kl.batchIndex);
@@ -343,17 +390,191 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
         }
     }
 
+    // ---- Online compaction (see BatchFileCompactor)
+
+    /**
+     * Batches that have been emptied by the compaction, and that will be
+     * deleted by {@link #deleteRetiredBatches()}
+     */
+    final Set<Integer> retiredBatches = new TreeSet<Integer>();
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Returns the batches (except the current one) whose used percentage is
+     * below the threshold, from the sparsest to the densest
+     */
+    synchronized List<Integer> getSparseBatches(double threshold)
+        throws IOException {
+        final ArrayList<Integer> batches = new ArrayList<Integer>();
+        final Map<Integer, Double> used = GenericHelper.newHashMap();
+        for (File file : home.listFiles((FileFilter)new RegexFileFilter(
+            namePattern))) {
+            Matcher matcher = namePattern.matcher(file.getName());
+            matcher.find();
+            final int batchIndex = Integer.parseInt(matcher.group(1));
+            if (batchIndex == currentBatchIndex
+                || retiredBatches.contains(batchIndex))
+                continue;
+
+            final BatchStatistics statistics = getBatchInformation(batchIndex).statistics;
+            final double percentage = statistics.used == 0 ? 0
+                : statistics.getUsedPercentage();
+            if (percentage < threshold) {
+                batches.add(batchIndex);
+                used.put(batchIndex, percentage);
+            }
+        }
+
+        Collections.sort(batches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(used.get(a), used.get(b));
+            }
+        });
+        return batches;
+    }
+
+    /**
+     * Returns the locations of all the objects stored in the given batches
+     */
+    List<W> getLocations(Set<Integer> batches) throws DatabaseException {
+        final ArrayList<W> list = new ArrayList<W>();
+        final LocationIndex.Cursor<W> cursor = locations.cursor();
+        try {
+            for (W location = cursor.next(); location != null; location = cursor
+                .next())
+                if (batches.contains(location.batchIndex))
+                    list.add(location);
+        }
+        finally {
+            cursor.close();
+        }
+        return list;
+    }
+
+    /**
+     * Move an object to the end of the current batch, unless it was moved or
+     * replaced in the meantime
+     *
+     * @param old The location of the object when it was selected
+     * @return The number of bytes moved
+     */
+    synchronized int move(W old) throws IOException, DatabaseException {
+        final W current = locations.get(old.getId());
+        if (current == null || current.batchIndex != old.batchIndex
+            || current.position != old.position)
+            return 0;
+
+        final BatchInformation from = getBatchInformation(old.batchIndex);
+        final BatchInformation to = getWriteBatch();
+
+        final W location = newLocation(old.getId());
+        location.batchIndex = currentBatchIndex;
+        location.position = to.statistics.position;
+        location.size = old.size;
+
+        final FileChannel channel = to.raf.getChannel();
+        channel.position(location.position);
+        long copied = 0;
+        while (copied < old.size)
+            copied += from.raf.getChannel().transferTo(
+                old.position + copied, old.size - copied, channel);
+
+        to.statistics.position += location.size;
+        to.statistics.add(location.size);
+        locations.put(location);
+        from.statistics.remove(old.size);
+        return old.size;
+    }
+
+    /**
+     * Mark a batch as retired if it does not contain any object anymore. Its
+     * file is deleted by the next call to {@link #deleteRetiredBatches()},
+     * which leaves some time to readers that got an old location to finish.
+     */
+    synchronized boolean retire(int batchIndex) throws IOException {
+        if (getBatchInformation(batchIndex).statistics.used > 0)
+            return false;
+        retiredBatches.add(batchIndex);
+        return true;
+    }
+
+    /**
+     * Delete the retired batch files
+     */
+    synchronized void deleteRetiredBatches() {
+        for (Integer batchIndex : retiredBatches) {
+            final BatchInformation info = batchFiles.remove(batchIndex);
+            if (info != null)
+                try {
+                    info.raf.close();
+                }
+                catch (IOException e) {
+                    logger.error(e);
+                }
+            final File file = getBatchFile(batchIndex);
+            logger.info("Deleting the compacted batch file %s", file);
+            file.delete();
+        }
+        retiredBatches.clear();
+    }
+
     private File getBatchFile(int batchIndex) {
         return new File(home, String.format("%s-%05d.obj", dbname, batchIndex));
     }
 
     static class BatchInformation {
         BatchStatistics statistics;
-        RandomAccessFile raf;
+
+        /**
+         * The batch file. Writers use it under the storage lock, while readers only use positional reads on its
+         * channel, which do not modify the file pointer.
+         */
+        volatile RandomAccessFile raf;
+
+        /**
+         * Mappings of the batch file (in memory mapped mode): mapping i starts
+         * at i * {@link BatchFileStorage#MAPPING_STEP}
+         */
+        MappedByteBuffer[] mappings;
+
+        /**
+         * Returns the mapping containing the given range, or null if the range
+         * spans several mappings
+         */
+        ByteBuffer getMapping(long position, int size) {
+            final int index = (int)(position / MAPPING_STEP);
+            final MappedByteBuffer mapping = mappings[index];
+            final long start = index * MAPPING_STEP;
+            if (position + size - start > mapping.capacity())
+                return null;
+            final ByteBuffer buffer = mapping.duplicate();
+            buffer.position((int)(position - start));
+            buffer.limit((int)(position - start) + size);
+            return buffer;
+        }
+
+        void map() throws IOException {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            final int n = (int)((length + MAPPING_STEP - 1) / MAPPING_STEP);
+            mappings = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                final long start = i * MAPPING_STEP;
+                mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(length - start, MAPPING_STEP + MAPPING_OVERLAP));
+            }
+        }
     }
 
-    final Map<Integer, BatchInformation> batchFiles = GenericHelper
-        .newTreeMap();
+    /**
+     * Opened batches. The map is concurrent so that readers can look up an opened batch without taking the storage
+     * lock; loading a batch is done under the lock.
+     */
+    final Map<Integer, BatchInformation> batchFiles = new ConcurrentSkipListMap<Integer, BatchInformation>();
 
     final private Pattern namePattern;
 
@@ -398,31 +619,66 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     }
 
     /**
-     * Get the information about a batch
+     * Thrown when reading a batch that was retired by the compaction: the
+     * objects it contained have been moved, and their locations should be
+     * read again from the index
+     */
+    static class RetiredBatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RetiredBatchException(int batchIndex) {
+            super(String.format("Batch %d does not exist anymore", batchIndex));
+        }
+    }
+
+    /**
+     * Get the information about an existing batch
      *
      * @param batchIndex
      * @return
+     * @throws RetiredBatchException If the batch was retired or deleted
      * @throws IOException
      */
     private BatchInformation getBatchInformation(int batchIndex)
         throws IOException {
+        return getBatchInformation(batchIndex, false);
+    }
+
+    /**
+     * Get the information about a batch
+     *
+     * @param batchIndex
+     * @param create If the batch file should be created if it does not exist
+     *            (only when writing)
+     * @return
+     * @throws IOException
+     */
+    private BatchInformation getBatchInformation(int batchIndex, boolean create)
+        throws IOException {
+        BatchInformation info = batchFiles.get(batchIndex);
+        if (info != null)
+            return info;
+
+        synchronized (this) {
+            return loadBatchInformation(batchIndex, create);
+        }
+    }
+
+    private BatchInformation loadBatchInformation(int batchIndex,
+        boolean create) throws IOException {
         BatchInformation info = batchFiles.get(batchIndex);
 
         if (info == null) {
-            // No cached information: we load it
-            info = new BatchInformation();
             final File batchFile = getBatchFile(batchIndex);
             final boolean batchFileExists = batchFile.exists();
+            if (!create
+                && (!batchFileExists || retiredBatches.contains(batchIndex)))
+                throw new RetiredBatchException(batchIndex);
 
-            try {
-                boolean readOnly = locationStore.getEnvironment().getConfig()
-                    .getReadOnly();
-                info.raf = new RandomAccessFile(batchFile, readOnly ? "r"
-                    : "rw");
-            }
-            catch (DatabaseException e) {
-                throw new RuntimeException(e);
-            }
+            // No cached information: we load it
+            info = new BatchInformation();
+
+            info.raf = new RandomAccessFile(batchFile, readOnly ? "r" : "rw");
             info.statistics = new BatchStatistics();
             if (batchFileExists) {
                 info.raf.getChannel().position(0);
@@ -437,6 +693,12 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
                 info.statistics.position = info.raf.getFilePointer();
             }
 
+            if (memoryMapped) {
+                info.map();
+                logger.debug("Mapped batch %d in %d buffer(s)", batchIndex,
+                    info.mappings.length);
+            }
+
             batchFiles.put(batchIndex, info);
             logger.debug("Read batch %d statistics: %s", batchIndex,
                 info.statistics);
@@ -445,7 +707,102 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     }
 
     /**
-     * Returns the number of stored objects See {@linkplain com.sleepycat.persist.BasicIndex#count()}
+     * Re-open a batch file whose channel was closed while reading (e.g. when a reading thread was interrupted, which
+     * closes the channel for everybody)
+     */
+    private synchronized void reopen(int batchIndex, RandomAccessFile closed)
+        throws IOException {
+        BatchInformation info = batchFiles.get(batchIndex);
+        if (info == null || info.raf != closed)
+            return;
+
+        final File batchFile = getBatchFile(batchIndex);
+        if (!batchFile.exists())
+            throw new RetiredBatchException(batchIndex);
+        logger.warn("Re-opening the closed batch file %d", batchIndex);
+        info.raf = new RandomAccessFile(batchFile, readOnly ? "r" : "rw");
+    }
+
+    /**
+     * Read a part of a batch file with positional reads: this does not change
+     * the file pointer, and can be called concurrently by any number of
+     * threads
+     *
+     * @param batchIndex The batch
+     * @param from The position of the first byte to read in the batch
+     * @param buffer The buffer to fill
+     * @throws IOException
+     */
+    private void read(int batchIndex, long from, ByteBuffer buffer)
+        throws IOException {
+        final int start = buffer.position();
+        while (true) {
+            final BatchInformation info = getBatchInformation(batchIndex);
+            if (info.mappings != null) {
+                // Copy from the mappings (the range can span several ones)
+                long position = from;
+                while (buffer.hasRemaining()) {
+                    int index = (int)(position / MAPPING_STEP);
+                    ByteBuffer mapping = info.mappings[index].duplicate();
+                    mapping.position((int)(position - index * MAPPING_STEP));
+                    if (mapping.remaining() > buffer.remaining())
+                        mapping.limit(mapping.position() + buffer.remaining());
+                    position += mapping.remaining();
+                    buffer.put(mapping);
+                }
+                return;
+            }
+
+            final RandomAccessFile raf = info.raf;
+            try {
+                final FileChannel channel = raf.getChannel();
+                long position = from + buffer.position() - start;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if (read < 0)
+                        throw new IOException(String.format(
+                            "Unexpected end of batch file %d at %d",
+                            batchIndex, position));
+                    position += read;
+                }
+                return;
+            }
+            catch (ClosedByInterruptException e) {
+                reopen(batchIndex, raf);
+                throw e;
+            }
+            catch (ClosedChannelException e) {
+                // The batch was closed in between: get it again
+                reopen(batchIndex, raf);
+            }
+        }
+    }
+
+    /**
+     * Returns a stream over the (raw) bytes of a stored object. In memory
+     * mapped mode, the stream reads directly from the mapping.
+     */
+    protected InputStream openStream(Location<K> location) throws IOException {
+        final BatchInformation info = getBatchInformation(location.batchIndex);
+        if (info.mappings != null) {
+            ByteBuffer buffer = info.getMapping(location.position, location.size);
+            if (buffer != null)
+                return new ByteBufferInputStream(buffer);
+        }
+        return new ByteArrayInputStream(readBytes(location));
+    }
+
+    /**
+     * Returns the (raw) bytes of a stored object
+     */
+    protected byte[] readBytes(Location<K> location) throws IOException {
+        final byte[] bytes = new byte[location.size];
+        read(location.batchIndex, location.position, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Returns the number of stored objects
      *
      * @throws DatabaseException
      */
@@ -465,7 +822,304 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
         Location<K> location = getLocation(key);
         if (location == null)
             return null;
-        return getStoredObject(location);
+
+        final ObjectCache<K, V> cache = this.cache;
+        if (cache == null)
+            return getStoredObject(location);
+
+        V object = cache.get(key, location);
+        if (object == null) {
+            object = getStoredObject(location);
+            cache.put(key, location, object);
+        }
+        return object;
+    }
+
+    /**
+     * Maximum gap between two objects so that they are read together by
+     * {@link #getStoredObjects(Collection, ExecutorService)} (64KB)
+     */
+    static final int MAX_READ_GAP = 64 * 1024;
+
+    /**
+     * Maximum size of one read of
+     * {@link #getStoredObjects(Collection, ExecutorService)} (8MB)
+     */
+    static final int MAX_READ_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Sort locations by batch and position
+     */
+    static final Comparator<Location<?>> FILE_ORDER = new Comparator<Location<?>>() {
+        @Override
+        public int compare(Location<?> a, Location<?> b) {
+            if (a.batchIndex != b.batchIndex)
+                return a.batchIndex < b.batchIndex ? -1 : 1;
+            return a.position < b.position ? -1
+                : (a.position == b.position ? 0 : 1);
+        }
+    };
+
+    /**
+     * A range of a batch file containing several objects
+     */
+    static class Range<W> {
+        final int batchIndex;
+
+        final long start;
+
+        long end;
+
+        final List<W> locations = new ArrayList<W>();
+
+        Range(Location<?> location) {
+            batchIndex = location.batchIndex;
+            start = location.position;
+            end = location.position + location.size;
+        }
+
+        /**
+         * Returns true if the location was added to this range
+         */
+        boolean add(Location<?> location) {
+            if (location.batchIndex != batchIndex
+                || location.position - end > MAX_READ_GAP
+                || location.position + location.size - start > MAX_READ_SIZE)
+                return false;
+            end = Math.max(end, location.position + location.size);
+            return true;
+        }
+    }
+
+    /**
+     * Get a series of stored objects
+     *
+     * @see #getStoredObjects(Collection, ExecutorService)
+     */
+    public Map<K, V> getStoredObjects(Collection<? extends K> keys)
+        throws IOException, DatabaseException {
+        return getStoredObjects(keys, null);
+    }
+
+    /**
+     * Get a series of stored objects. The objects are read in file order, and
+     * objects that are close to each other are read together, so that random
+     * reads are mostly replaced by sequential ones.
+     *
+     * @param keys The keys of the objects
+     * @param executor If not null, objects are read and deserialized in
+     *            parallel by this executor
+     * @return A map from keys to objects, which does not contain keys with no
+     *         stored object
+     * @throws IOException
+     * @throws DatabaseException
+     */
+    public Map<K, V> getStoredObjects(Collection<? extends K> keys,
+        ExecutorService executor) throws IOException, DatabaseException {
+        // Get the locations of the objects that are not cached
+        final Map<K, V> map = GenericHelper.newHashMap();
+        final ObjectCache<K, V> cache = this.cache;
+        final ArrayList<W> list = new ArrayList<W>(keys.size());
+        for (K key : keys) {
+            W location = getLocation(key);
+            if (location == null)
+                continue;
+            final V object = cache == null ? null : cache.get(key, location);
+            if (object != null)
+                map.put(key, object);
+            else
+                list.add(location);
+        }
+        logger.debug("Reading %d objects", list.size());
+
+        if (executor == null) {
+            for (Range<W> r : ranges(list))
+                read(r, map);
+            return map;
+        }
+
+        final ArrayList<Future<Map<K, V>>> futures = new ArrayList<Future<Map<K, V>>>();
+        for (final Range<W> r : ranges(list))
+            futures.add(executor.submit(new Callable<Map<K, V>>() {
+                @Override
+                public Map<K, V> call() throws Exception {
+                    final Map<K, V> rangeMap = GenericHelper.newHashMap();
+                    read(r, rangeMap);
+                    return rangeMap;
+                }
+            }));
+
+        for (Map<K, V> rangeMap : getAll(futures))
+            map.putAll(rangeMap);
+        return map;
+    }
+
+    /**
+     * Process all the stored objects. The objects of each batch file are read
+     * sequentially in file order (not in key order), by ranges that are read
+     * with one I/O each, and each range is deserialized and processed by a
+     * task of the executor, so that a full pass over the storage is bound by
+     * the disk bandwidth rather than by one core.
+     * <p>
+     * The locations are taken when this method is called: objects stored
+     * during the scan might not be seen. Objects stored before are processed
+     * once, with the value they had when the scan started or a newer one.
+     * </p>
+     *
+     * @param executor The executor that reads, deserializes and processes the
+     *            objects (if null, everything is done by the calling thread)
+     * @param processor The processor of the (key, object) pairs. It is called
+     *            concurrently by the executor threads, and its output is
+     *            ignored.
+     * @return The number of processed objects
+     * @throws IOException
+     * @throws DatabaseException
+     */
+    public long scan(ExecutorService executor,
+        final Processor<Entry<K, V>, ?> processor) throws IOException,
+        DatabaseException {
+        final ArrayList<W> list = new ArrayList<W>();
+        final LocationIndex.Cursor<W> cursor = locations.cursor();
+        try {
+            for (W location = cursor.next(); location != null; location = cursor
+                .next())
+                list.add(location);
+        }
+        finally {
+            cursor.close();
+        }
+
+        final List<Range<W>> ranges = ranges(list);
+        logger.debug("Scanning %d objects in %d ranges", list.size(), ranges
+            .size());
+
+        if (executor == null) {
+            for (Range<W> range : ranges)
+                read(range, processor);
+            return list.size();
+        }
+
+        final ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (final Range<W> range : ranges)
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    read(range, processor);
+                    return null;
+                }
+            }));
+        getAll(futures);
+        return list.size();
+    }
+
+    /**
+     * Sort the locations in file order, and group them in ranges
+     */
+    private List<Range<W>> ranges(List<W> list) {
+        Collections.sort(list, FILE_ORDER);
+
+        final ArrayList<Range<W>> ranges = new ArrayList<Range<W>>();
+        Range<W> range = null;
+        for (W location : list) {
+            if (range == null || !range.add(location)) {
+                range = new Range<W>(location);
+                ranges.add(range);
+            }
+            range.locations.add(location);
+        }
+        return ranges;
+    }
+
+    /**
+     * Wait for the futures, and throws the first exception if one failed (the
+     * other futures are then cancelled)
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures)
+        throws IOException, DatabaseException {
+        final ArrayList<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof DatabaseException)
+                throw (DatabaseException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new RuntimeException(cause);
+        }
+        finally {
+            for (Future<T> future : futures)
+                future.cancel(false);
+        }
+        return results;
+    }
+
+    /**
+     * Read all the objects of a range with one read
+     */
+    private void read(Range<W> range, final Map<K, V> map)
+        throws IOException, DatabaseException {
+        read(range, new Processor<Entry<K, V>, Object>() {
+            @Override
+            public Object process(Entry<K, V> entry) {
+                map.put(entry.getKey(), entry.getValue());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read all the objects of a range with one read, and process them in file
+     * order
+     */
+    private void read(Range<W> range, Processor<Entry<K, V>, ?> processor)
+        throws IOException, DatabaseException {
+        final ObjectCache<K, V> cache = this.cache;
+        byte[] bytes = null;
+        try {
+            final BatchInformation info = getBatchInformation(range.batchIndex);
+            // No need to read when the file is mapped
+            if (info.mappings == null) {
+                bytes = new byte[(int)(range.end - range.start)];
+                read(range.batchIndex, range.start, ByteBuffer.wrap(bytes));
+            }
+        }
+        catch (RetiredBatchException e) {
+            // The objects were moved by the compaction: read them one by one
+            logger.debug("Batch %d was retired, reading %d objects from their new locations",
+                range.batchIndex, range.locations.size());
+            for (W location : range.locations) {
+                final V object = getStoredObject(location);
+                if (object != null)
+                    processor.process(SimpleEntry.create(location.getId(),
+                        object));
+            }
+            return;
+        }
+
+        for (W location : range.locations) {
+            InputStream in = compression.input(bytes == null ? openStream(location)
+                : new ByteArrayInputStream(bytes,
+                    (int)(location.position - range.start), location.size));
+            final V object;
+            try {
+                object = readObject(in);
+            }
+            finally {
+                // Returns the decompressor to its pool
+                in.close();
+            }
+            if (cache != null)
+                cache.put(location.getId(), location, object);
+            processor.process(SimpleEntry.create(location.getId(), object));
+        }
     }
 
     public boolean hasObject(final K key) throws DatabaseException {
@@ -479,7 +1133,63 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     }
 
     public boolean isCompressed() {
-        return compressed;
+        return compression != Compression.NONE;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public StreamSerializer<V> getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Memory map the batch files, so that objects are deserialized directly
+     * from the OS page cache. This is only possible if the database
+     * environment is read-only.
+     *
+     * @param memoryMapped True if batch files should be mapped
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        if (memoryMapped && !readOnly) {
+            logger.warn("Cannot memory map the batch files of a writable database");
+            return;
+        }
+        if (this.memoryMapped != memoryMapped) {
+            this.memoryMapped = memoryMapped;
+            closeOpenedBatches(true);
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * The cache of deserialized objects (or null)
+     */
+    private volatile ObjectCache<K, V> cache;
+
+    /**
+     * Set a cache for deserialized objects, so that objects that are read
+     * often are neither read nor deserialized again. Objects are removed from
+     * the cache when they are stored again.
+     *
+     * @param cache The cache, or null to disable caching
+     */
+    public void setCache(ObjectCache<K, V> cache) {
+        this.cache = cache;
+    }
+
+    public ObjectCache<K, V> getCache() {
+        return cache;
+    }
+
+    private void invalidate(K key) {
+        final ObjectCache<K, V> cache = this.cache;
+        if (cache != null)
+            cache.invalidate(key);
     }
 
     /**
@@ -496,22 +1206,24 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
             logger.warn("Location %s does not exist", key);
             return;
         }
-        synchronized (this) {
-            BatchInformation info = getBatchInformation(location.batchIndex);
-            final RandomAccessFile raf = info.raf;
-            raf.seek(location.position);
-            InputStream in = new RandomAccessFileInputStream(raf);
-            final byte[] buffer = new byte[8192];
-            int toRead = location.size;
-            while (toRead > 0) {
-                int len = Math.min(toRead, buffer.length);
-                len = in.read(buffer, 0, len);
-                if (len <= 0)
-                    throw new RuntimeException("should not happen");
-                out.write(buffer, 0, len);
-                toRead -= len;
+        final byte[] buffer = new byte[Math.min(location.size, 8192)];
+        long offset = 0;
+        while (offset < location.size) {
+            int len = (int)Math.min(location.size - offset, buffer.length);
+            try {
+                read(location.batchIndex, location.position + offset,
+                    ByteBuffer.wrap(buffer, 0, len));
             }
-
+            catch (RetiredBatchException e) {
+                // Moved objects are copied as is: go on from the new location
+                location = relocate(location, e);
+                if (location == null)
+                    throw new IOException(String.format(
+                        "Object %s was removed while being read", key));
+                continue;
+            }
+            out.write(buffer, 0, len);
+            offset += len;
         }
     }
 
@@ -524,26 +1236,55 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
         return locations.get(key);
     }
 
-    synchronized protected V getStoredObject(final Location<K> location)
-        throws IOException, DatabaseException {
-        BatchInformation info = getBatchInformation(location.batchIndex);
-        final RandomAccessFile raf = info.raf;
-        raf.seek(location.position);
+    /**
+     * Get a stored object. This method does not lock the storage, and can be
+     * called by several threads at the same time (including while objects are
+     * being stored or compacted).
+     *
+     * @return The object, or null if it was moved by the compaction and then
+     *         removed
+     */
+    protected V getStoredObject(Location<K> location) throws IOException,
+        DatabaseException {
+        while (true)
+            try {
+                return readStoredObject(location);
+            }
+            catch (RetiredBatchException e) {
+                location = relocate(location, e);
+                if (location == null)
+                    return null;
+            }
+    }
+
+    /**
+     * Returns the current location of an object whose batch was retired after
+     * its location was read
+     *
+     * @return The new location, or null if the object does not exist anymore
+     * @throws RetiredBatchException If the object was not moved
+     */
+    private W relocate(Location<K> location, RetiredBatchException e)
+        throws RetiredBatchException, DatabaseException {
+        final W current = locations.get(location.getId());
+        if (current != null && current.batchIndex == location.batchIndex
+            && current.position == location.position)
+            throw e;
+        logger.debug("Object %s was moved from the retired batch %d",
+            location.getId(), location.batchIndex);
+        return current;
+    }
+
+    private V readStoredObject(final Location<K> location)
+        throws IOException {
         logger
             .debug(
-                "Loading the object %s from batch %d (offset=%d, size=%d, gz=%b): channel in position %d on %d",
+                "Loading the object %s from batch %d (offset=%d, size=%d, %s)",
                 location.getId(), location.batchIndex,
-                location.position, location.size, compressed, raf
-                    .getFilePointer(), raf.length());
-
-        InputStream in = new RandomAccessFileInputStream(raf);
-        if (compressed)
-            in = new GZIPInputStream(in);
+                location.position, location.size, compression);
 
         if (logger.isTraceEnabled()) {
-            byte[] buffer = new byte[location.size];
-            in.read(buffer);
-            char[] chars = Hex.encodeHex(buffer);
+            char[] chars = Hex.encodeHex(readBytes(location));
             PrintStream out = new LoggerPrintStream(logger, Level.TRACE);
             for (int i = 0; i < chars.length; i++) {
                 if (i % 32 == 0) {
@@ -555,15 +1296,15 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
                 out.print(chars[i]);
             }
             out.flush();
-
-            raf.seek(location.position);
-            in = new RandomAccessFileInputStream(raf);
-            if (compressed)
-                in = new GZIPInputStream(in);
         }
 
-        final V t = readObject(in);
-        return t;
+        InputStream in = compression.input(openStream(location));
+        try {
+            return readObject(in);
+        }
+        finally {
+            in.close();
+        }
     }
 
     protected void nextBatch() {
@@ -573,9 +1314,7 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
 
     protected void writeObject(OutputStream out, V object) throws IOException {
         BufferedOutputStream bout = new BufferedOutputStream(out);
-        ObjectOutputStream oOut = new ObjectOutputStream(bout);
-        oOut.writeObject(object);
-        oOut.flush();
+        serializer.write(bout, object);
         bout.flush();
     }
 
@@ -587,15 +1326,7 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
      * @throws IOException
      */
     protected V readObject(InputStream in) throws IOException {
-        ObjectInputStream oIn = new ObjectInputStream(in);
-        try {
-            @SuppressWarnings("unchecked")
-            V t = (V)oIn.readObject();
-            return t;
-        }
-        catch (ClassNotFoundException e) {
-            throw new IOException(e);
-        }
+        return serializer.read(in);
     }
 
     interface Writer {
@@ -610,14 +1341,19 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
      * @throws IOException If an I/O error occurs
      * @throws DatabaseException
      */
-    public final void storeObject(K key, V object) throws IOException,
+    public final void storeObject(K key, final V object) throws IOException,
         DatabaseException {
-        storeObject(key, locations.get(key), object);
+        storeObject(key, new Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                writeObject(out, object);
+            }
+        });
     }
 
     public final void storeObject(K key, final byte[] data, final int offset,
         final int length) throws IOException, DatabaseException {
-        storeObject(key, locations.get(key), new Writer() {
+        storeObject(key, new Writer() {
             @Override
             public void write(OutputStream out) throws IOException {
                 out.write(data, offset, length);
@@ -627,45 +1363,26 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
     }
 
     /**
-     * Store an object
-     *
-     * @param key The id of the object
-     * @param oldLocation The old location (must be given if it exists, otherwise statistics will be corrupted)
-     * @param object The object to store
-     * @throws IOException
-     * @throws DatabaseException
+     * Select the current batch (or the next one is we exceed in size)
      */
-    protected synchronized final void storeObject(K key,
-        Location<K> oldLocation, final V object) throws IOException,
-        DatabaseException {
-        storeObject(key, oldLocation, new Writer() {
-            @Override
-            public void write(OutputStream out) throws IOException {
-                writeObject(out, object);
-            }
-        });
-    }
-
-    protected synchronized final void storeObject(K key,
-        Location<K> oldLocation, Writer writer) throws IOException,
-        DatabaseException {
-        // Select the current batch (or the next one is we exceed in size)
+    private BatchInformation getWriteBatch() throws IOException {
         if (currentBatchIndex == -1)
             currentBatchIndex = 0;
-        BatchInformation info = getBatchInformation(currentBatchIndex);
+        BatchInformation info = getBatchInformation(currentBatchIndex, true);
         if (info.statistics.position >= sizeLimit) {
             logger
                 .info(
                     "Current batch position (%d) is over the size limit (%d) - creating a new one",
                     info.statistics.position, sizeLimit);
             nextBatch();
-            info = getBatchInformation(currentBatchIndex);
+            info = getBatchInformation(currentBatchIndex, true);
         }
+        return info;
+    }
 
-        // Store
-        W location;
+    private W newLocation(K key) {
         try {
-            location = constructor.newInstance(key);
+            return constructor.newInstance(key);
         }
         catch (RuntimeException e) {
             throw e;
@@ -673,25 +1390,203 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
         catch (Throwable e) {
             throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * Serialize (and compress) an object
+     */
+    protected byte[] serialize(V object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = compression.output(bytes);
+        try {
+            writeObject(out, object);
+        }
+        finally {
+            // Returns the compressor to its pool
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Store a series of objects. Objects are serialized by the calling thread,
+     * and then appended to the batch files with a few large writes while the
+     * storage is locked.
+     *
+     * @param objects The objects to store
+     * @throws IOException
+     * @throws DatabaseException
+     */
+    public void storeObjects(Map<? extends K, ? extends V> objects)
+        throws IOException, DatabaseException {
+        final Map<K, byte[]> serialized = new LinkedHashMap<K, byte[]>();
+        for (Entry<? extends K, ? extends V> entry : objects.entrySet())
+            serialized.put(entry.getKey(), serialize(entry.getValue()));
+        storeSerialized(serialized);
+    }
+
+    /**
+     * Returns a writer that buffers serialized objects before storing them
+     * with {@link #storeObjects(Map)}. Each thread should use its own writer.
+     *
+     * @param bufferSize The size (in bytes) of the serialized objects above
+     *            which they are written
+     */
+    public BatchWriter writer(int bufferSize) {
+        return new BatchWriter(bufferSize);
+    }
+
+    /**
+     * Buffers serialized objects, and stores them in one go when the buffer
+     * is full or when the writer is flushed or closed. Objects are not
+     * visible until then.
+     */
+    public class BatchWriter {
+        private final int bufferSize;
+
+        private Map<K, byte[]> buffer = new LinkedHashMap<K, byte[]>();
+
+        private long size = 0;
+
+        BatchWriter(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Add an object (which is serialized right away)
+         */
+        public void add(K key, V object) throws IOException, DatabaseException {
+            final byte[] bytes = serialize(object);
+            final byte[] old = buffer.put(key, bytes);
+            size += bytes.length - (old != null ? old.length : 0);
+            if (size >= bufferSize)
+                flush();
+        }
+
+        /**
+         * Store the buffered objects
+         */
+        public void flush() throws IOException, DatabaseException {
+            if (!buffer.isEmpty()) {
+                storeSerialized(buffer);
+                buffer = new LinkedHashMap<K, byte[]>();
+                size = 0;
+            }
+        }
+
+        public void close() throws IOException, DatabaseException {
+            flush();
+        }
+    }
+
+    /**
+     * Append serialized objects to the batch files: all the objects that go
+     * in the same batch file are written with a single gathering write, and
+     * their locations are then updated.
+     */
+    protected synchronized void storeSerialized(Map<K, byte[]> objects)
+        throws IOException, DatabaseException {
+        final ArrayList<W> pending = new ArrayList<W>();
+        final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        BatchInformation info = null;
+
+        // End of the objects to write (the batch position is only updated
+        // once they have been written)
+        long position = 0;
+
+        for (Entry<K, byte[]> entry : objects.entrySet()) {
+            // Write what we have if we change of batch
+            if (info != null && position >= sizeLimit) {
+                commit(info, pending, buffers);
+                info = null;
+            }
+            if (info == null) {
+                info = getWriteBatch();
+                position = info.statistics.position;
+            }
+
+            final W location = newLocation(entry.getKey());
+            location.batchIndex = currentBatchIndex;
+            location.position = position;
+            location.size = entry.getValue().length;
+            position += location.size;
+            pending.add(location);
+            buffers.add(ByteBuffer.wrap(entry.getValue()));
+        }
+
+        if (info != null)
+            commit(info, pending, buffers);
+    }
+
+    /**
+     * Write the buffers at the end of the batch, and record their locations
+     * (nothing is recorded if the write fails)
+     */
+    private void commit(BatchInformation info, ArrayList<W> pending,
+        ArrayList<ByteBuffer> buffers) throws IOException, DatabaseException {
+        final FileChannel channel = info.raf.getChannel();
+        channel.position(pending.get(0).position);
+        final ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers
+            .size()]);
+        for (int i = 0; i < array.length; ) {
+            channel.write(array, i, array.length - i);
+            while (i < array.length && !array[i].hasRemaining())
+                i++;
+        }
+
+        final W last = pending.get(pending.size() - 1);
+        info.statistics.position = last.position + last.size;
+        for (W location : pending) {
+            final W oldLocation = locations.get(location.getId());
+            info.statistics.add(location.size);
+            locations.put(location);
+            invalidate(location.getId());
+            if (oldLocation != null)
+                getBatchInformation(oldLocation.batchIndex).statistics
+                    .remove(oldLocation.size);
+        }
+
+        logger.debug("Wrote %d objects in batch %d", pending.size(),
+            pending.get(0).batchIndex);
+        pending.clear();
+        buffers.clear();
+    }
+
+    /**
+     * Store an object. The old location is read while the storage is locked,
+     * so that the object cannot be moved by the compaction in between.
+     *
+     * @param key The id of the object
+     * @param writer Writes the object
+     * @throws IOException
+     * @throws DatabaseException
+     */
+    protected synchronized final void storeObject(K key, Writer writer)
+        throws IOException, DatabaseException {
+        final W oldLocation = locations.get(key);
+        BatchInformation info = getWriteBatch();
+
+        // Store
+        W location = newLocation(key);
         location.batchIndex = currentBatchIndex;
         location.position = info.statistics.position;
         info.raf.seek(location.position);
 
-        OutputStream out = new RandomAccessFileOutputStream(info.raf);
-        if (compressed) {
-            GZIPOutputStream gzout = new GZIPOutputStream(out);
-            writer.write(gzout);
-            gzout.finish();
-        }
-        else
+        // Closing only finishes the compression
+        OutputStream out = compression.output(new RandomAccessFileOutputStream(
+            info.raf));
+        try {
             writer.write(out);
-
-        out.flush();
+        }
+        finally {
+            out.close();
+        }
 
         info.statistics.position = info.raf.getFilePointer();
         location.size = (int)(info.statistics.position - location.position);
         info.statistics.add(location.size);
         locations.put(location);
+        invalidate(key);
 
         // and now... we can destroy if necessary
         if (oldLocation != null) {
@@ -699,9 +1594,9 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
             info.statistics.remove(oldLocation.size);
         }
 
-        logger.debug("Wrote object with key %s in batch %d (%d/%d), gz=%b",
+        logger.debug("Wrote object with key %s in batch %d (%d/%d), %s",
             key, location.batchIndex, location.position, location.size,
-            compressed);
+            compression);
 
     }
 
@@ -723,7 +1618,7 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
      * Get an iterator on the keys
      */
     public CloseableIterator<K> keyIterator() throws DatabaseException {
-        final EntityCursor<? extends Location<K>> cursor = locations.entities();
+        final LocationIndex.Cursor<W> cursor = locations.cursor();
 
         logger.debug("We have %d subspaces in store", locations.count());
         return new AbstractIterator<K>() {
@@ -770,7 +1665,7 @@ public class BatchFileStorage<K, W extends bpiwowar.db.BatchFileStorage.Location
             logger.debug("We have %d subspaces in store", locations.count());
 
             return new AbstractIterator<Entry<K, V>>() {
-                EntityCursor<W> cursor = locations.entities();
+                LocationIndex.Cursor<W> cursor = locations.cursor();
 
                 @Override
                 protected void finalize() throws Throwable {
@@ -0,0 +1,135 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.Location;
+import bpiwowar.log.Logger;
+import bpiwowar.utils.GenericHelper;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.DatabaseNotFoundException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.StoreConfig;
+
+/**
+ * Location index stored in a Berkeley DB entity store (the default)
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class BerkeleyLocationIndex<K, W extends Location<K>> implements
+    LocationIndex<K, W> {
+    private static final Logger logger = Logger.getLogger();
+
+    /**
+     * The entity store for locations
+     */
+    private final EntityStore store;
+
+    private final PrimaryIndex<K, W> locations;
+
+    private final boolean readOnly;
+
+    /**
+     * @param dbenv The database environment
+     * @param dbname The name of the entity store
+     * @param entityClass The location class
+     * @param destroy If the existing locations should be removed
+     */
+    @SuppressWarnings("unchecked")
+    public BerkeleyLocationIndex(Environment dbenv, String dbname,
+        Class<W> entityClass, boolean destroy) throws DatabaseException {
+        // --- Destroy if needed
+        if (destroy) {
+            String prefix = "persist#" + dbname + '#';
+            for (Object oName : dbenv.getDatabaseNames()) {
+                String name = (String)oName;
+                if (name.startsWith(prefix)) {
+                    try {
+                        logger.warn("Destroying database %s", dbname);
+                        dbenv.removeDatabase(null, name);
+                    }
+                    catch (DatabaseNotFoundException e) {
+                    }
+                }
+            }
+
+            dbenv.sync();
+        }
+
+        StoreConfig storeConfig = new StoreConfig();
+        this.readOnly = dbenv.getConfig().getReadOnly();
+        if (readOnly) {
+            storeConfig.setReadOnly(true);
+        }
+        else {
+            storeConfig.setDeferredWrite(true);
+            storeConfig.setAllowCreate(true);
+        }
+
+        store = new EntityStore(dbenv, dbname, storeConfig);
+        Class<K> keyClass = (Class<K>)GenericHelper.getActualTypeArguments(
+            entityClass, Location.class)[0];
+        locations = store.getPrimaryIndex(keyClass, entityClass);
+    }
+
+    /**
+     * Returns the underlying entity store
+     */
+    public EntityStore getStore() {
+        return store;
+    }
+
+    @Override
+    public W get(K key) throws DatabaseException {
+        return locations.get(key);
+    }
+
+    @Override
+    public void put(W location) throws DatabaseException {
+        locations.put(location);
+    }
+
+    @Override
+    public long count() throws DatabaseException {
+        return locations.count();
+    }
+
+    @Override
+    public Cursor<W> cursor() throws DatabaseException {
+        final EntityCursor<W> cursor = locations.entities();
+        return new Cursor<W>() {
+            @Override
+            public W next() throws DatabaseException {
+                return cursor.next();
+            }
+
+            @Override
+            public void update(W location) throws DatabaseException {
+                cursor.update(location);
+            }
+
+            @Override
+            public void close() throws DatabaseException {
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void sync() throws DatabaseException {
+        // Deferred writes are not flushed when closing
+        if (!readOnly)
+            store.sync();
+    }
+
+    @Override
+    public void close() throws DatabaseException {
+        sync();
+        store.close();
+    }
+}
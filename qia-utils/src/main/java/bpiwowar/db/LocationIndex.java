@@ -0,0 +1,62 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.Location;
+import com.sleepycat.je.DatabaseException;
+import java.io.IOException;
+
+/**
+ * The index of a {@link BatchFileStorage}, which maps keys to the location of
+ * the objects in the batch files. Readers call {@link #get(Object)} concurrently,
+ * while the other methods are called under the storage lock.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ * @see BerkeleyLocationIndex
+ * @see LogLocationIndex
+ */
+public interface LocationIndex<K, W extends Location<K>> {
+    /**
+     * Returns the location of an object, or null if the key is not stored
+     */
+    W get(K key) throws DatabaseException;
+
+    /**
+     * Add or replace a location
+     */
+    void put(W location) throws IOException, DatabaseException;
+
+    /**
+     * Returns the number of locations
+     */
+    long count() throws DatabaseException;
+
+    /**
+     * Returns a cursor over all the locations
+     */
+    Cursor<W> cursor() throws DatabaseException;
+
+    boolean isReadOnly();
+
+    /**
+     * Make the changes durable
+     */
+    void sync() throws IOException, DatabaseException;
+
+    void close() throws IOException, DatabaseException;
+
+    /**
+     * A cursor over locations
+     */
+    public interface Cursor<W> {
+        /**
+         * Returns the next location, or null if there is none
+         */
+        W next() throws DatabaseException;
+
+        /**
+         * Replace the current location
+         */
+        void update(W location) throws IOException, DatabaseException;
+
+        void close() throws DatabaseException;
+    }
+}
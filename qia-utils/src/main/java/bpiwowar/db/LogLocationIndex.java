@@ -0,0 +1,533 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.Location;
+import bpiwowar.log.Logger;
+import bpiwowar.utils.GenericHelper;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * A pure java location index, kept in memory. Each change is appended to a log
+ * file, and a snapshot of the whole index is written when the log becomes
+ * bigger than the index, after which the log is truncated. When opening, the
+ * snapshot is read and the log replayed.
+ * <p>
+ * Locations are stored in primitive arrays indexed by a slot number, and keys
+ * are mapped to slots by a primitive hash table for integer keys, or by an open
+ * addressing table over the UTF-8 bytes of the keys for string keys, so that
+ * the index uses about 20 bytes per entry plus the size of the key.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class LogLocationIndex<K, W extends Location<K>> implements
+    LocationIndex<K, W> {
+    private static final Logger logger = Logger.getLogger();
+
+    /**
+     * Snapshot file header
+     */
+    static final int MAGIC = 0x4c4f4331;
+
+    /**
+     * Minimum number of log records before a snapshot is taken
+     */
+    int minLogRecords = 1 << 16;
+
+    private final File snapshotFile;
+
+    private final File logFile;
+
+    private final Constructor<W> constructor;
+
+    private final Keys<K> keys;
+
+    private final boolean readOnly;
+
+    /**
+     * The locations, indexed by slot
+     */
+    private int[] batches = new int[16];
+
+    private long[] positions = new long[16];
+
+    private int[] sizes = new int[16];
+
+    /**
+     * Number of records in the log
+     */
+    private long logRecords;
+
+    private FileOutputStream logFileStream;
+
+    private DataOutputStream log;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param directory The directory of the index files
+     * @param name The base name of the index files
+     * @param entityClass The location class (its key must be an integer or a
+     *            string)
+     * @param readOnly If the index is read-only
+     * @param destroy If the existing locations should be removed
+     */
+    @SuppressWarnings("unchecked")
+    public LogLocationIndex(File directory, String name, Class<W> entityClass,
+        boolean readOnly, boolean destroy) throws IOException {
+        this.readOnly = readOnly;
+        snapshotFile = new File(directory, name + ".locations");
+        logFile = new File(directory, name + ".locations.log");
+
+        final Class<K> keyClass = (Class<K>)GenericHelper
+            .getActualTypeArguments(entityClass, Location.class)[0];
+        if (keyClass == Integer.class)
+            keys = (Keys<K>)new IntegerKeys();
+        else if (keyClass == String.class)
+            keys = (Keys<K>)new StringKeys();
+        else
+            throw new IllegalArgumentException(String.format(
+                "Keys of type %s are not supported", keyClass));
+
+        try {
+            constructor = entityClass.getConstructor(keyClass);
+        }
+        catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (destroy) {
+            if (readOnly)
+                throw new IllegalArgumentException(
+                    "Cannot destroy a read-only index");
+            logger.warn("Destroying location index %s", snapshotFile);
+            snapshotFile.delete();
+            logFile.delete();
+        }
+
+        if (snapshotFile.exists())
+            load(snapshotFile, true);
+        if (logFile.exists())
+            load(logFile, false);
+        logger.info("Loaded %d locations (%d log records) from %s", keys.size,
+            logRecords, snapshotFile);
+
+        if (!readOnly) {
+            logFileStream = new FileOutputStream(logFile, true);
+            log = new DataOutputStream(new BufferedOutputStream(logFileStream));
+        }
+    }
+
+    /**
+     * Read a snapshot or replay the log
+     */
+    private void load(File file, boolean snapshot) throws IOException {
+        final CountingInputStream counting = new CountingInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        final DataInputStream in = new DataInputStream(counting);
+        long valid = 0;
+        try {
+            long n = Long.MAX_VALUE;
+            if (snapshot) {
+                if (in.readInt() != MAGIC)
+                    throw new IOException(String.format(
+                        "%s is not a location index snapshot", file));
+                n = in.readInt();
+            }
+
+            for (long i = 0; i < n; i++) {
+                final K key = keys.read(in);
+                set(key, in.readInt(), in.readLong(), in.readInt());
+                valid = counting.getByteCount();
+                if (!snapshot)
+                    logRecords++;
+            }
+        }
+        catch (EOFException e) {
+            if (snapshot)
+                throw new IOException(String.format(
+                    "Truncated location index snapshot %s", file));
+
+            // The last record was not completely written
+            if (valid < file.length()) {
+                logger.warn("Truncated record at the end of %s (%d bytes)",
+                    file, file.length() - valid);
+                if (!readOnly) {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    raf.setLength(valid);
+                    raf.close();
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Set a location (with the write lock)
+     */
+    private void set(K key, int batchIndex, long position, int size) {
+        int slot = keys.slot(key);
+        if (slot < 0) {
+            slot = keys.add(key);
+            if (slot == batches.length) {
+                final int capacity = batches.length + (batches.length >> 1);
+                batches = Arrays.copyOf(batches, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+        }
+        batches[slot] = batchIndex;
+        positions[slot] = position;
+        sizes[slot] = size;
+    }
+
+    /**
+     * Creates the location object of a slot (with the read lock)
+     */
+    private W location(K key, int slot) {
+        final W location;
+        try {
+            location = constructor.newInstance(key);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        location.batchIndex = batches[slot];
+        location.position = positions[slot];
+        location.size = sizes[slot];
+        return location;
+    }
+
+    @Override
+    public W get(K key) {
+        lock.readLock().lock();
+        try {
+            final int slot = keys.slot(key);
+            return slot < 0 ? null : location(key, slot);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(W location) throws IOException {
+        if (readOnly)
+            throw new IllegalStateException("The location index is read-only");
+
+        lock.writeLock().lock();
+        try {
+            final K key = location.getId();
+            set(key, location.batchIndex, location.position, location.size);
+
+            keys.write(log, key);
+            log.writeInt(location.batchIndex);
+            log.writeLong(location.position);
+            log.writeInt(location.size);
+            logRecords++;
+
+            if (logRecords >= minLogRecords && logRecords > keys.size)
+                snapshot();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write a snapshot of the index and truncate the log (with the write lock)
+     */
+    private void snapshot() throws IOException {
+        final long start = System.currentTimeMillis();
+        final File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        final FileOutputStream fileStream = new FileOutputStream(tmpFile);
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(fileStream));
+        out.writeInt(MAGIC);
+        out.writeInt(keys.size);
+        for (int slot = 0; slot < keys.size; slot++) {
+            keys.write(out, keys.key(slot));
+            out.writeInt(batches[slot]);
+            out.writeLong(positions[slot]);
+            out.writeInt(sizes[slot]);
+        }
+        out.flush();
+        fileStream.getFD().sync();
+        out.close();
+
+        if (!tmpFile.renameTo(snapshotFile)) {
+            snapshotFile.delete();
+            if (!tmpFile.renameTo(snapshotFile))
+                throw new IOException(String.format("Could not rename %s",
+                    tmpFile));
+        }
+
+        // The log can now be truncated
+        log.close();
+        logFileStream = new FileOutputStream(logFile, false);
+        log = new DataOutputStream(new BufferedOutputStream(logFileStream));
+        logger.debug("Wrote a snapshot of %d locations (%d log records) in %d ms",
+            keys.size, logRecords, System.currentTimeMillis() - start);
+        logRecords = 0;
+    }
+
+    @Override
+    public long count() {
+        lock.readLock().lock();
+        try {
+            return keys.size;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Cursor<W> cursor() {
+        return new Cursor<W>() {
+            int slot = 0;
+
+            @Override
+            public W next() {
+                lock.readLock().lock();
+                try {
+                    if (slot >= keys.size)
+                        return null;
+                    final W location = location(keys.key(slot), slot);
+                    slot++;
+                    return location;
+                }
+                finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public void update(W location) throws IOException {
+                put(location);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (readOnly)
+            return;
+        lock.writeLock().lock();
+        try {
+            log.flush();
+            logFileStream.getFD().sync();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (readOnly)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (logRecords > 0)
+                snapshot();
+            log.close();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maps keys to slots, which are allocated sequentially
+     */
+    static abstract class Keys<K> {
+        /**
+         * Number of keys
+         */
+        int size;
+
+        /**
+         * Returns the slot of a key, or -1
+         */
+        abstract int slot(K key);
+
+        /**
+         * Add a new key and returns its slot
+         */
+        abstract int add(K key);
+
+        abstract K key(int slot);
+
+        abstract void write(DataOutput out, K key) throws IOException;
+
+        abstract K read(DataInput in) throws IOException;
+    }
+
+    static final class IntegerKeys extends Keys<Integer> {
+        private final Int2IntOpenHashMap map = new Int2IntOpenHashMap();
+
+        private int[] keys = new int[16];
+
+        IntegerKeys() {
+            map.defaultReturnValue(-1);
+        }
+
+        @Override
+        int slot(Integer key) {
+            return map.get(key.intValue());
+        }
+
+        @Override
+        int add(Integer key) {
+            if (size == keys.length)
+                keys = Arrays.copyOf(keys, size + (size >> 1));
+            keys[size] = key;
+            map.put(key.intValue(), size);
+            return size++;
+        }
+
+        @Override
+        Integer key(int slot) {
+            return keys[slot];
+        }
+
+        @Override
+        void write(DataOutput out, Integer key) throws IOException {
+            out.writeInt(key);
+        }
+
+        @Override
+        Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    }
+
+    /**
+     * String keys are stored as UTF-8 bytes in a single array, and the hash
+     * table only contains slot numbers
+     */
+    static final class StringKeys extends Keys<String> {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private byte[] bytes = new byte[1024];
+
+        /**
+         * The key of slot i is stored in bytes[offsets[i]..offsets[i+1]]
+         */
+        private int[] offsets = new int[17];
+
+        /**
+         * Open addressing table of slot + 1 (0 for an empty cell)
+         */
+        private int[] table = new int[16];
+
+        static int hash(byte[] b, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++)
+                h = 31 * h + b[i];
+            return h ^ (h >>> 16);
+        }
+
+        private int find(byte[] key, int h) {
+            final int mask = table.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                final int slot = table[i] - 1;
+                if (slot < 0)
+                    return -1;
+                final int from = offsets[slot];
+                if (offsets[slot + 1] - from == key.length) {
+                    int j = 0;
+                    while (j < key.length && bytes[from + j] == key[j])
+                        j++;
+                    if (j == key.length)
+                        return slot;
+                }
+            }
+        }
+
+        private void insert(int slot, int h) {
+            final int mask = table.length - 1;
+            int i = h & mask;
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = slot + 1;
+        }
+
+        @Override
+        int slot(String key) {
+            final byte[] b = key.getBytes(UTF8);
+            return find(b, hash(b, 0, b.length));
+        }
+
+        @Override
+        int add(String key) {
+            final byte[] b = key.getBytes(UTF8);
+            final int from = offsets[size];
+            if (from + b.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(from + b.length,
+                    bytes.length + (bytes.length >> 1)));
+            System.arraycopy(b, 0, bytes, from, b.length);
+            if (size + 2 > offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length
+                    + (offsets.length >> 1));
+            offsets[size + 1] = from + b.length;
+
+            // Keep the load factor below 3/4
+            if (4 * (size + 1) > 3 * table.length) {
+                table = new int[2 * table.length];
+                for (int slot = 0; slot < size; slot++)
+                    insert(slot, hash(bytes, offsets[slot], offsets[slot + 1]));
+            }
+            insert(size, hash(b, 0, b.length));
+            return size++;
+        }
+
+        @Override
+        String key(int slot) {
+            return new String(bytes, offsets[slot], offsets[slot + 1]
+                - offsets[slot], UTF8);
+        }
+
+        @Override
+        void write(DataOutput out, String key) throws IOException {
+            final byte[] b = key.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        @Override
+        String read(DataInput in) throws IOException {
+            final byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            return new String(b, UTF8);
+        }
+    }
+}
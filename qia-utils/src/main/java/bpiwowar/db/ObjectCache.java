@@ -0,0 +1,229 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.Location;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of deserialized objects for a {@link BatchFileStorage}, bounded by the
+ * total weight of the objects (the size of their serialized form).
+ * <p>
+ * Eviction follows a segmented LRU policy: new objects enter a probation
+ * segment, and are promoted to the protected segment (by default, 80% of the
+ * weight) when they are accessed again, so that a scan of cold objects does
+ * not flush the hot ones. Objects heavier than the probation segment are
+ * never cached. Objects can be held by soft references, in which case the garbage
+ * collector can also reclaim them.
+ * </p>
+ * <p>
+ * Each entry records the location of the object, so that a cached object is
+ * only returned if it was read from the current location of its key. Cached
+ * objects are shared, and must not be modified.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ * @see BatchFileStorage#setCache(ObjectCache)
+ */
+public class ObjectCache<K, V> {
+    /**
+     * Maximum total weight
+     */
+    private final long maxWeight;
+
+    /**
+     * Maximum weight of the protected segment
+     */
+    private final long maxProtectedWeight;
+
+    /**
+     * If values are held by soft references
+     */
+    private final boolean soft;
+
+    private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(
+        16, .75f, true);
+
+    private final LinkedHashMap<K, Entry<V>> protectedSegment = new LinkedHashMap<K, Entry<V>>(
+        16, .75f, true);
+
+    private long probationWeight;
+
+    private long protectedWeight;
+
+    private long hits, misses, evictions;
+
+    static final class Entry<V> {
+        final Object value;
+
+        final int batchIndex;
+
+        final long position;
+
+        final int weight;
+
+        Entry(Object value, Location<?> location) {
+            this.value = value;
+            this.batchIndex = location.batchIndex;
+            this.position = location.position;
+            this.weight = location.size;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get() {
+            return value instanceof SoftReference ? ((SoftReference<V>)value)
+                .get() : (V)value;
+        }
+    }
+
+    /**
+     * Creates a cache whose protected segment can take 80% of the weight, so
+     * that objects heavier than 20% of the maximum weight are not cached
+     *
+     * @param maxWeight The maximum total size (in bytes, as stored) of the
+     *            cached objects
+     * @param soft If objects should be held by soft references
+     */
+    public ObjectCache(long maxWeight, boolean soft) {
+        this(maxWeight, .8, soft);
+    }
+
+    /**
+     * @param maxWeight The maximum total size (in bytes, as stored) of the
+     *            cached objects
+     * @param protectedShare The share of the weight that the protected segment
+     *            can take (between 0 and 1, excluded). Objects heavier than
+     *            the rest, i.e. the probation segment, are not cached.
+     * @param soft If objects should be held by soft references
+     */
+    public ObjectCache(long maxWeight, double protectedShare, boolean soft) {
+        if (protectedShare < 0 || protectedShare >= 1)
+            throw new IllegalArgumentException(String.format(
+                "The protected share (%g) should be in [0, 1)",
+                protectedShare));
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = (long)(maxWeight * protectedShare);
+        this.soft = soft;
+    }
+
+    /**
+     * Returns the cached object, or null if it is not cached or if it was read
+     * from another location
+     */
+    public synchronized V get(K key, Location<?> location) {
+        Entry<V> entry = protectedSegment.get(key);
+        boolean isProtected = entry != null;
+        if (entry == null)
+            entry = probation.get(key);
+
+        final V value = entry == null ? null : entry.get();
+        if (value == null || entry.batchIndex != location.batchIndex
+            || entry.position != location.position) {
+            if (entry != null)
+                remove(key);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        if (!isProtected) {
+            // Second access: promote
+            probation.remove(key);
+            probationWeight -= entry.weight;
+            protectedSegment.put(key, entry);
+            protectedWeight += entry.weight;
+
+            // Demote the least recently used protected objects
+            Iterator<Map.Entry<K, Entry<V>>> iterator = protectedSegment
+                .entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight) {
+                final Map.Entry<K, Entry<V>> lru = iterator.next();
+                iterator.remove();
+                protectedWeight -= lru.getValue().weight;
+                probation.put(lru.getKey(), lru.getValue());
+                probationWeight += lru.getValue().weight;
+            }
+            evict();
+        }
+        return value;
+    }
+
+    /**
+     * Cache an object read from the given location. Objects heavier than the
+     * probation segment (the maximum weight minus the protected share) are
+     * silently ignored.
+     */
+    public synchronized void put(K key, Location<?> location, V value) {
+        if (value == null || location.size > maxWeight - maxProtectedWeight)
+            return;
+        remove(key);
+        probation.put(key, new Entry<V>(soft ? new SoftReference<V>(value)
+            : value, location));
+        probationWeight += location.size;
+        evict();
+    }
+
+    /**
+     * Evict the least recently used objects of the probation segment
+     */
+    private void evict() {
+        Iterator<Map.Entry<K, Entry<V>>> iterator = probation.entrySet()
+            .iterator();
+        while (probationWeight + protectedWeight > maxWeight) {
+            final Map.Entry<K, Entry<V>> lru = iterator.next();
+            iterator.remove();
+            probationWeight -= lru.getValue().weight;
+            evictions++;
+        }
+    }
+
+    private void remove(K key) {
+        Entry<V> entry = probation.remove(key);
+        if (entry != null)
+            probationWeight -= entry.weight;
+        entry = protectedSegment.remove(key);
+        if (entry != null)
+            protectedWeight -= entry.weight;
+    }
+
+    /**
+     * Remove an object from the cache
+     */
+    public synchronized void invalidate(K key) {
+        remove(key);
+    }
+
+    public synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        probationWeight = protectedWeight = 0;
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long getWeight() {
+        return probationWeight + protectedWeight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+            "%d objects (%d/%d bytes), %d hits, %d misses, %d evictions",
+            size(), getWeight(), maxWeight, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,55 @@
+package bpiwowar.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the remaining bytes of a byte buffer (e.g. a slice of
+ * a memory mapped file) without copying them first
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer The buffer to read from. Its position is modified by the
+     *            stream, so callers should pass a duplicate if the buffer is
+     *            shared.
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining())
+            return -1;
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) {
+        if (length == 0)
+            return 0;
+        if (!buffer.hasRemaining())
+            return -1;
+        length = Math.min(length, buffer.remaining());
+        buffer.get(b, offset, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0)
+            return 0;
+        int skipped = (int)Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,244 @@
+package bpiwowar.io;
+
+import bpiwowar.pipe.CloseableIterator;
+import bpiwowar.pipe.ParallelProcessorAdaptor;
+import bpiwowar.pipe.Processor;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a line oriented file in parallel: the file is split into chunks whose
+ * boundaries are aligned on line ends, and each chunk is read by a
+ * {@link RecordReader} in its own thread. The results of the chunks can be
+ * retrieved in the order of the file, or as soon as they are computed and then
+ * merged (e.g. with {@link #merge(Iterator, Merger)} for results indexed by a
+ * key).
+ *
+ * <pre>
+ * ChunkedReader file = new ChunkedReader(new File(&quot;run&quot;), RecordReader.WHITESPACE);
+ * Map&lt;String, Integer&gt; counts = ChunkedReader.merge(file.process(handler,
+ *     64 &lt;&lt; 20, threads, false), ChunkedReader.INTEGER_SUM);
+ * file.close();
+ * </pre>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ChunkedReader implements Closeable {
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final int separator;
+
+    /**
+     * A range of bytes of the file, which starts at the beginning of a line
+     * and ends after a line terminator (or at the end of the file)
+     */
+    public static final class Chunk {
+        /** The index of the chunk in the file */
+        public final int index;
+
+        public final long start;
+
+        public final long end;
+
+        Chunk(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("chunk %d [%d, %d[", index, start, end);
+        }
+    }
+
+    /**
+     * Processes the records of one chunk
+     */
+    public interface Handler<R> {
+        /**
+         * @param chunk The chunk
+         * @param records A reader over the records of the chunk (not closed
+         *            by the handler)
+         * @return The result for the chunk (null results are skipped)
+         */
+        R process(Chunk chunk, RecordReader records) throws IOException;
+    }
+
+    /**
+     * Merges two values associated with the same key
+     */
+    public interface Merger<V> {
+        V merge(V a, V b);
+    }
+
+    public static final Merger<Integer> INTEGER_SUM = new Merger<Integer>() {
+        public Integer merge(Integer a, Integer b) {
+            return a + b;
+        }
+    };
+
+    /**
+     * @param file The file to read
+     * @param separator The field separator (see {@link RecordReader})
+     */
+    public ChunkedReader(File file, int separator) throws IOException {
+        this.file = file;
+        this.channel = new FileInputStream(file).getChannel();
+        this.separator = separator;
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Splits the file into chunks of approximately <code>chunkSize</code>
+     * bytes
+     */
+    public List<Chunk> split(long chunkSize) throws IOException {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException(
+                "The chunk size should be positive");
+        final long size = channel.size();
+        final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long start = 0;
+        while (start < size) {
+            long end = start + chunkSize >= size ? size : lineStart(start
+                + chunkSize, size, buffer);
+            chunks.add(new Chunk(chunks.size(), start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the position of the first line starting at or after a given
+     * position
+     */
+    private long lineStart(long position, long size, ByteBuffer buffer)
+        throws IOException {
+        // Look for the end of the line containing the previous byte
+        long p = position - 1;
+        while (p < size) {
+            buffer.clear();
+            final int n = channel.read(buffer, p);
+            if (n <= 0)
+                break;
+            for (int i = 0; i < n; i++)
+                if (buffer.get(i) == '\n')
+                    return p + i + 1;
+            p += n;
+        }
+        return size;
+    }
+
+    /**
+     * Returns a reader over the records of a chunk. Several chunks can be read
+     * at the same time.
+     */
+    public RecordReader open(Chunk chunk) {
+        return new RecordReader(new RangeChannel(chunk.start, chunk.end),
+            separator, (int)Math.min(1 << 20, Math.max(chunk.end - chunk.start,
+                1 << 10)));
+    }
+
+    /**
+     * Processes the chunks in parallel
+     *
+     * @param handler The handler, called for each chunk (by several threads)
+     * @param chunkSize The approximate size of a chunk, in bytes (a few
+     *            chunks per thread balance the work)
+     * @param threads The number of threads
+     * @param ordered If the results should be in the order of the chunks
+     * @return An iterator over the results of the chunks
+     */
+    public <R> CloseableIterator<R> process(final Handler<R> handler,
+        long chunkSize, int threads, boolean ordered) throws IOException {
+        return new ParallelProcessorAdaptor<Chunk, R>(split(chunkSize)
+            .iterator(), new Processor<Chunk, R>() {
+            public R process(Chunk chunk) {
+                final RecordReader reader = open(chunk);
+                try {
+                    return handler.process(chunk, reader);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(String.format(
+                        "Error while reading %s of %s", chunk, file), e);
+                }
+            }
+        }, threads, ordered);
+    }
+
+    /**
+     * Merges the maps computed for each chunk
+     */
+    public static <K, V> Map<K, V> merge(
+        Iterator<? extends Map<K, V>> results, Merger<V> merger) {
+        final HashMap<K, V> map = new HashMap<K, V>();
+        while (results.hasNext())
+            for (Map.Entry<K, V> entry : results.next().entrySet()) {
+                final V old = map.put(entry.getKey(), entry.getValue());
+                if (old != null)
+                    map.put(entry.getKey(), merger.merge(old, entry.getValue()));
+            }
+        return map;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads a range of the file with positional reads, so that several ranges
+     * can be read at once
+     */
+    final class RangeChannel implements ReadableByteChannel {
+        private long position;
+
+        private final long end;
+
+        RangeChannel(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= end)
+                return -1;
+            final int limit = dst.limit();
+            if (dst.remaining() > end - position)
+                dst.limit(dst.position() + (int)(end - position));
+            try {
+                final int n = channel.read(dst, position);
+                if (n > 0)
+                    position += n;
+                return n;
+            }
+            finally {
+                dst.limit(limit);
+            }
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        /** The file channel is closed by {@link ChunkedReader#close()} */
+        public void close() {
+        }
+    }
+}
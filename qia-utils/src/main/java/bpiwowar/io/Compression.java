@@ -0,0 +1,261 @@
+package bpiwowar.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Compression of individual records (e.g. objects of a
+ * {@link bpiwowar.db.BatchFileStorage}). Except for {@link #GZIP}, the
+ * (de)compressors are pooled and reused from one record to the next.
+ *
+ * <p>
+ * Closing the stream returned by {@link #output(OutputStream)} finishes the
+ * compression but does <b>not</b> close the underlying stream; closing the
+ * stream returned by {@link #input(InputStream)} releases the decompressor.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public enum Compression {
+    /**
+     * No compression
+     */
+    NONE {
+        @Override
+        public OutputStream output(final OutputStream out) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                    throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        @Override
+        public InputStream input(InputStream in) {
+            return in;
+        }
+    },
+
+    /**
+     * One GZIP stream per record (with a full header and a new deflater each
+     * time)
+     */
+    GZIP {
+        @Override
+        public OutputStream output(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    finish();
+                    def.end();
+                    out.flush();
+                }
+            };
+        }
+
+        @Override
+        public InputStream input(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+    },
+
+    /**
+     * Raw deflate (no header) with the default compression level
+     */
+    DEFLATE {
+        @Override
+        public OutputStream output(OutputStream out) {
+            return deflate(out, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        @Override
+        public InputStream input(InputStream in) {
+            return inflate(in);
+        }
+    },
+
+    /**
+     * Raw deflate (no header) favouring speed over compression ratio
+     */
+    DEFLATE_FAST {
+        @Override
+        public OutputStream output(OutputStream out) {
+            return deflate(out, Deflater.BEST_SPEED);
+        }
+
+        @Override
+        public InputStream input(InputStream in) {
+            return inflate(in);
+        }
+    },
+
+    /**
+     * LZF: much faster than deflate, but with a lower compression ratio
+     */
+    LZF {
+        @Override
+        public OutputStream output(OutputStream out) {
+            bpiwowar.io.LZF encoder = LZF_ENCODERS.poll();
+            final bpiwowar.io.LZF usedEncoder = encoder != null ? encoder
+                : new bpiwowar.io.LZF();
+            return new LZFOutputStream(out, usedEncoder) {
+                boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        finish();
+                        flush();
+                        LZF_ENCODERS.offer(usedEncoder);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream input(InputStream in) {
+            return new LZFInputStream(in);
+        }
+    },
+
+    /**
+     * BGZF blocks (see {@link BlockCompressedOutputStream}), i.e. a series of
+     * deflated blocks of at most 64KB with a gzip header; better suited to
+     * large records.
+     */
+    BGZF {
+        @Override
+        public OutputStream output(final OutputStream out) {
+            BlockCompressedOutputStream stream = BGZF_STREAMS.poll();
+            if (stream == null)
+                stream = new BlockCompressedOutputStream(out);
+            else
+                stream.setOutputStream(out);
+
+            final BlockCompressedOutputStream bgzf = stream;
+            return new OutputStream() {
+                boolean closed = false;
+
+                @Override
+                public void write(int b) throws IOException {
+                    bgzf.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                    throws IOException {
+                    bgzf.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        bgzf.flush();
+                        BGZF_STREAMS.offer(bgzf);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream input(InputStream in) {
+            return new BlockCompressedInputStream(in);
+        }
+    };
+
+    /**
+     * Returns a stream that compresses what is written to out
+     */
+    public abstract OutputStream output(OutputStream out) throws IOException;
+
+    /**
+     * Returns a stream that decompresses what is read from in
+     */
+    public abstract InputStream input(InputStream in) throws IOException;
+
+    // ---- Pools
+
+    static final Queue<Deflater>[] DEFLATERS = newQueues(Deflater.BEST_COMPRESSION + 2);
+
+    static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+
+    static final Queue<bpiwowar.io.LZF> LZF_ENCODERS = new ConcurrentLinkedQueue<bpiwowar.io.LZF>();
+
+    static final Queue<BlockCompressedOutputStream> BGZF_STREAMS = new ConcurrentLinkedQueue<BlockCompressedOutputStream>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static private <T> Queue<T>[] newQueues(int n) {
+        Queue<T>[] queues = new Queue[n];
+        for (int i = 0; i < n; i++)
+            queues[i] = new ConcurrentLinkedQueue<T>();
+        return queues;
+    }
+
+    static OutputStream deflate(OutputStream out, final int level) {
+        // Levels go from -1 (default) to 9
+        final Queue<Deflater> pool = DEFLATERS[level + 1];
+        Deflater deflater = pool.poll();
+        if (deflater == null)
+            deflater = new Deflater(level, true);
+
+        return new DeflaterOutputStream(out, deflater, 4096) {
+            boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    finish();
+                    out.flush();
+                    def.reset();
+                    pool.offer(def);
+                }
+            }
+        };
+    }
+
+    static InputStream inflate(InputStream in) {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null)
+            inflater = new Inflater(true);
+
+        return new InflaterInputStream(in, inflater, 4096) {
+            boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    inf.reset();
+                    INFLATERS.offer(inf);
+                    in.close();
+                }
+            }
+        };
+    }
+}
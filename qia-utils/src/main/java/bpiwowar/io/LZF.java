@@ -0,0 +1,146 @@
+package bpiwowar.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZF compression (a very fast LZ77 variant, with a lower compression ratio
+ * than deflate). The encoded format is the one of liblzf: a control byte
+ * below 32 introduces a run of (control + 1) literal bytes, any other control
+ * byte a back-reference of length (control >> 5) + 2 (extended by the next
+ * byte if it is 7 + 2) at a distance given by the 5 low bits of the control
+ * byte and the following byte.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class LZF {
+    private static final int HASH_BITS = 13;
+
+    private static final int MAX_LITERALS = 32;
+
+    private static final int MAX_DISTANCE = 1 << 13;
+
+    private static final int MAX_LENGTH = 2 + 7 + 255;
+
+    /**
+     * Hash table of an encoder (encoders are not thread safe)
+     */
+    private final int[] table = new int[1 << HASH_BITS];
+
+    /**
+     * Returns the maximum size of the compressed data
+     */
+    public static int maxCompressedLength(int length) {
+        return length + (length + MAX_LITERALS - 1) / MAX_LITERALS;
+    }
+
+    /**
+     * Compress data
+     *
+     * @param in The input buffer
+     * @param inPos The start of the data to compress
+     * @param inEnd The end of the data to compress
+     * @param out The output buffer, which must have at least
+     *            {@link #maxCompressedLength(int)} bytes after outPos
+     * @param outPos Where to write
+     * @return The end of the compressed data in out
+     */
+    public int compress(byte[] in, int inPos, int inEnd, byte[] out, int outPos) {
+        // We store the position + 1 so that 0 means no entry
+        Arrays.fill(table, 0);
+        int literals = inPos;
+        int ip = inPos;
+        while (ip < inEnd - 2) {
+            final int h = hash(in, ip);
+            final int ref = table[h] - 1;
+            table[h] = ip + 1;
+
+            final int distance = ip - ref - 1;
+            if (ref >= inPos && distance < MAX_DISTANCE && in[ref] == in[ip]
+                && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+                outPos = literals(in, literals, ip, out, outPos);
+
+                final int max = Math.min(MAX_LENGTH, inEnd - ip);
+                int length = 3;
+                while (length < max && in[ref + length] == in[ip + length])
+                    length++;
+
+                final int l = length - 2;
+                if (l < 7)
+                    out[outPos++] = (byte)((l << 5) + (distance >> 8));
+                else {
+                    out[outPos++] = (byte)((7 << 5) + (distance >> 8));
+                    out[outPos++] = (byte)(l - 7);
+                }
+                out[outPos++] = (byte)distance;
+
+                ip += length;
+                literals = ip;
+            }
+            else
+                ip++;
+        }
+
+        return literals(in, literals, inEnd, out, outPos);
+    }
+
+    /**
+     * Decompress data
+     *
+     * @param in The compressed data
+     * @param inPos The start of the compressed data
+     * @param inEnd The end of the compressed data
+     * @param out The output buffer
+     * @param outPos Where to write
+     * @return The end of the decompressed data in out
+     * @throws IOException If the compressed data is corrupted
+     */
+    public static int decompress(byte[] in, int inPos, int inEnd, byte[] out,
+        int outPos) throws IOException {
+        try {
+            while (inPos < inEnd) {
+                final int control = in[inPos++] & 0xff;
+                if (control < MAX_LITERALS) {
+                    System.arraycopy(in, inPos, out, outPos, control + 1);
+                    inPos += control + 1;
+                    outPos += control + 1;
+                }
+                else {
+                    int length = control >> 5;
+                    if (length == 7)
+                        length += in[inPos++] & 0xff;
+                    length += 2;
+                    int ref = outPos - ((control & 0x1f) << 8)
+                        - (in[inPos++] & 0xff) - 1;
+                    if (ref < 0)
+                        throw new IOException("Corrupted LZF data");
+                    // Byte per byte, since the ranges can overlap
+                    for (int end = outPos + length; outPos < end; )
+                        out[outPos++] = out[ref++];
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted LZF data", e);
+        }
+        return outPos;
+    }
+
+    static private int hash(byte[] in, int i) {
+        final int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8)
+            | (in[i + 2] & 0xff);
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    static private int literals(byte[] in, int start, int end, byte[] out,
+        int outPos) {
+        while (start < end) {
+            final int n = Math.min(MAX_LITERALS, end - start);
+            out[outPos++] = (byte)(n - 1);
+            System.arraycopy(in, start, out, outPos, n);
+            outPos += n;
+            start += n;
+        }
+        return outPos;
+    }
+}
@@ -0,0 +1,96 @@
+package bpiwowar.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompress a stream written by {@link LZFOutputStream}
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class LZFInputStream extends InputStream {
+    private final DataInputStream in;
+
+    private byte[] buffer = new byte[0];
+
+    private byte[] compressed = new byte[0];
+
+    private int position = 0;
+
+    private int length = 0;
+
+    private boolean eof = false;
+
+    public LZFInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Read the next chunk
+     *
+     * @return false if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        while (position == length) {
+            if (eof)
+                return false;
+
+            final byte type = in.readByte();
+            if (type == LZFOutputStream.END) {
+                eof = true;
+                return false;
+            }
+
+            final int n = in.readInt();
+            if (buffer.length < n)
+                buffer = new byte[n];
+            if (type == LZFOutputStream.RAW)
+                in.readFully(buffer, 0, n);
+            else if (type == LZFOutputStream.COMPRESSED) {
+                final int size = in.readInt();
+                if (compressed.length < size)
+                    compressed = new byte[size];
+                in.readFully(compressed, 0, size);
+                if (LZF.decompress(compressed, 0, size, buffer, 0) != n)
+                    throw new IOException("Corrupted LZF chunk");
+            }
+            else
+                throw new IOException(String.format(
+                    "Unknown LZF chunk type %d", type));
+
+            position = 0;
+            length = n;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        final int n = Math.min(len, length - position);
+        System.arraycopy(buffer, position, b, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
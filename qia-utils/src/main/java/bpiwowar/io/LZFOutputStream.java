@@ -0,0 +1,134 @@
+package bpiwowar.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compress a stream with {@link LZF}. Data is buffered and written by chunks:
+ * each chunk is a type byte ({@link #END}, {@link #RAW} or {@link #COMPRESSED}),
+ * the uncompressed length and, for compressed chunks, the compressed length
+ * (both as integers), followed by the data.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class LZFOutputStream extends OutputStream {
+    static final byte END = 0;
+
+    static final byte RAW = 1;
+
+    static final byte COMPRESSED = 2;
+
+    /**
+     * Maximum (uncompressed) size of a chunk
+     */
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+
+    private final LZF encoder;
+
+    /**
+     * The buffer, which grows up to {@link #CHUNK_SIZE}, so that small records
+     * do not need large buffers
+     */
+    private byte[] buffer = new byte[1024];
+
+    private byte[] compressed = new byte[0];
+
+    private int length = 0;
+
+    private boolean finished = false;
+
+    public LZFOutputStream(OutputStream out) {
+        this(out, new LZF());
+    }
+
+    /**
+     * @param encoder The encoder to use (it should not be used concurrently)
+     */
+    public LZFOutputStream(OutputStream out, LZF encoder) {
+        this.out = new DataOutputStream(out);
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == buffer.length)
+            makeRoom();
+        buffer[length++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int len) throws IOException {
+        while (len > 0) {
+            if (length == buffer.length)
+                makeRoom();
+            final int n = Math.min(len, buffer.length - length);
+            System.arraycopy(b, offset, buffer, length, n);
+            length += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    private void makeRoom() throws IOException {
+        if (buffer.length < CHUNK_SIZE) {
+            final byte[] newBuffer = new byte[Math.min(CHUNK_SIZE,
+                buffer.length * 4)];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+        else
+            writeChunk();
+    }
+
+    private void writeChunk() throws IOException {
+        if (length == 0)
+            return;
+
+        final int max = LZF.maxCompressedLength(length);
+        if (compressed.length < max)
+            compressed = new byte[max];
+        final int size = encoder.compress(buffer, 0, length, compressed, 0);
+        if (size < length) {
+            out.writeByte(COMPRESSED);
+            out.writeInt(length);
+            out.writeInt(size);
+            out.write(compressed, 0, size);
+        }
+        else {
+            out.writeByte(RAW);
+            out.writeInt(length);
+            out.write(buffer, 0, length);
+        }
+        length = 0;
+    }
+
+    /**
+     * Write the buffered data as a chunk, and flush the underlying stream
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    /**
+     * Write the buffered data and the end marker, without closing the
+     * underlying stream
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            writeChunk();
+            out.writeByte(END);
+            finished = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
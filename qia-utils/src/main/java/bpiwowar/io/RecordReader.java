@@ -0,0 +1,452 @@
+package bpiwowar.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads delimited records (one per line) from bytes, without creating strings:
+ * {@link #next()} moves to the next line and splits it into fields, which are
+ * views over the internal buffer with methods to parse numbers. Views are
+ * reused, and are only valid until the next call to {@link #next()}.
+ * <p>
+ * Lines end with <code>\n</code> (a preceding <code>\r</code> is removed).
+ * Fields are either separated by a single character (e.g. a tab), in which
+ * case fields can be empty, or by runs of spaces and tabs (like
+ * <code>line.split("\\s+")</code>, but leading and trailing whitespace is
+ * ignored).
+ * </p>
+ *
+ * <pre>
+ * RecordReader reader = new RecordReader(file, RecordReader.WHITESPACE);
+ * while (reader.next()) {
+ *     String qid = reader.field(0).toString();
+ *     double score = reader.field(4).parseDouble();
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class RecordReader implements Closeable {
+    /**
+     * Separator value for fields separated by runs of whitespace
+     */
+    public static final int WHITESPACE = -1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Powers of ten which are exactly represented by a double
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    /**
+     * The source, or null if reading from a byte buffer
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * The source, or null if reading from a channel
+     */
+    private final ByteBuffer source;
+
+    /**
+     * The separator (a byte) or {@link #WHITESPACE}
+     */
+    private final int separator;
+
+    private byte[] buffer;
+
+    /**
+     * Start of the current line, and end of the valid bytes
+     */
+    private int start, limit;
+
+    /**
+     * End of the current line (excluded, without the line terminator)
+     */
+    private int end;
+
+    /**
+     * Position of the next line
+     */
+    private int next;
+
+    private boolean eof = false;
+
+    /**
+     * Number of lines read so far
+     */
+    private long lineNumber = 0;
+
+    /**
+     * Field offsets (start and end of field i are at 2i and 2i + 1)
+     */
+    private int[] offsets = new int[32];
+
+    private int fieldCount;
+
+    /**
+     * The reusable field views
+     */
+    private Field[] fields = new Field[0];
+
+    /**
+     * @param channel The channel to read from
+     * @param separator The field separator (an ASCII character), or
+     *            {@link #WHITESPACE}
+     * @param bufferSize The initial size of the buffer, which grows if a line
+     *            is longer
+     */
+    public RecordReader(ReadableByteChannel channel, int separator,
+        int bufferSize) {
+        this(channel, null, separator, bufferSize);
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, e.g. a memory mapped file
+     */
+    public RecordReader(ByteBuffer source, int separator) {
+        this(null, source, separator, 1 << 16);
+    }
+
+    public RecordReader(InputStream in, int separator) {
+        this(Channels.newChannel(in), separator, 1 << 16);
+    }
+
+    public RecordReader(File file, int separator) throws IOException {
+        this(new FileInputStream(file).getChannel(), separator, 1 << 20);
+    }
+
+    private RecordReader(ReadableByteChannel channel, ByteBuffer source,
+        int separator, int bufferSize) {
+        if (separator != WHITESPACE && (separator < 0 || separator > 127))
+            throw new IllegalArgumentException(
+                "The separator should be an ASCII character");
+        this.channel = channel;
+        this.source = source;
+        this.separator = separator;
+        this.buffer = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Read more bytes, moving the current line at the beginning of the buffer
+     * (and growing it if needed)
+     *
+     * @return False if there are no more bytes
+     */
+    private boolean fill() throws IOException {
+        if (eof)
+            return false;
+
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            start = 0;
+        }
+        if (limit == buffer.length) {
+            final byte[] newBuffer = new byte[2 * buffer.length];
+            System.arraycopy(buffer, 0, newBuffer, 0, limit);
+            buffer = newBuffer;
+        }
+
+        int n;
+        if (channel != null)
+            n = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length
+                - limit));
+        else {
+            n = Math.min(source.remaining(), buffer.length - limit);
+            if (n == 0)
+                n = -1;
+            else
+                source.get(buffer, limit, n);
+        }
+
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Moves to the next record
+     *
+     * @return False if there are no more records
+     */
+    public boolean next() throws IOException {
+        start = next;
+        int i = start;
+        while (true) {
+            while (i < limit && buffer[i] != '\n')
+                i++;
+            if (i < limit)
+                break;
+
+            // No end of line
+            final int offset = i - start;
+            if (!fill()) {
+                if (start == limit)
+                    return false;
+                i = limit;
+                break;
+            }
+            i = start + offset;
+        }
+
+        next = i < limit ? i + 1 : i;
+        end = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+        lineNumber++;
+        split();
+        return true;
+    }
+
+    private void split() {
+        fieldCount = 0;
+        if (separator == WHITESPACE) {
+            int i = start;
+            while (true) {
+                while (i < end && (buffer[i] == ' ' || buffer[i] == '\t'))
+                    i++;
+                if (i == end)
+                    break;
+                final int s = i;
+                while (i < end && buffer[i] != ' ' && buffer[i] != '\t')
+                    i++;
+                addField(s, i);
+            }
+        }
+        else {
+            final byte c = (byte)separator;
+            int s = start;
+            for (int i = start; i < end; i++)
+                if (buffer[i] == c) {
+                    addField(s, i);
+                    s = i + 1;
+                }
+            addField(s, end);
+        }
+    }
+
+    private void addField(int s, int e) {
+        if (2 * fieldCount + 2 > offsets.length) {
+            final int[] newOffsets = new int[2 * offsets.length];
+            System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+            offsets = newOffsets;
+        }
+        offsets[2 * fieldCount] = s;
+        offsets[2 * fieldCount + 1] = e;
+        fieldCount++;
+    }
+
+    /**
+     * Returns the number of fields of the current record
+     */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns a view over the i-th field of the current record. The same
+     * object is returned for a given i until the reader is closed.
+     */
+    public Field field(int i) {
+        if (i < 0 || i >= fieldCount)
+            throw new IndexOutOfBoundsException(String.format(
+                "Field %d (line %d has %d fields)", i, lineNumber, fieldCount));
+        if (i >= fields.length) {
+            final Field[] newFields = new Field[Math.max(i + 1,
+                2 * fields.length)];
+            System.arraycopy(fields, 0, newFields, 0, fields.length);
+            for (int j = fields.length; j < newFields.length; j++)
+                newFields[j] = new Field(j);
+            fields = newFields;
+        }
+        return fields[i];
+    }
+
+    /**
+     * Returns the number of the current line (starting at 1)
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Writes the current line (without the line terminator)
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, start, end - start);
+    }
+
+    /**
+     * Returns the current line (without the line terminator)
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, start, end - start, UTF8);
+    }
+
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    /**
+     * A view over a field of the current record
+     */
+    public final class Field implements CharSequence {
+        private final int index;
+
+        Field(int index) {
+            this.index = index;
+        }
+
+        private int start() {
+            return offsets[2 * index];
+        }
+
+        /**
+         * Length in bytes
+         */
+        public int length() {
+            return offsets[2 * index + 1] - offsets[2 * index];
+        }
+
+        public byte byteAt(int i) {
+            return buffer[start() + i];
+        }
+
+        /**
+         * Returns the i-th byte as a character (only meaningful for ASCII
+         * content)
+         */
+        public char charAt(int i) {
+            return (char)(buffer[start() + i] & 0xff);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            return toString().subSequence(from, to);
+        }
+
+        /**
+         * Compares with an ASCII string without decoding the field
+         */
+        public boolean contentEquals(String s) {
+            final int length = length();
+            if (s.length() != length)
+                return false;
+            final int start = start();
+            for (int i = 0; i < length; i++)
+                if (buffer[start + i] != s.charAt(i))
+                    return false;
+            return true;
+        }
+
+        private NumberFormatException error(String type) {
+            return new NumberFormatException(String.format(
+                "Invalid %s \"%s\" (line %d, field %d)", type, toString(),
+                lineNumber, index));
+        }
+
+        public int parseInt() {
+            final long value = parseLong();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                throw error("integer");
+            return (int)value;
+        }
+
+        public long parseLong() {
+            int i = start();
+            final int end = offsets[2 * index + 1];
+            if (i == end)
+                throw error("integer");
+            final boolean negative = buffer[i] == '-';
+            if (negative || buffer[i] == '+')
+                if (++i == end)
+                    throw error("integer");
+
+            // Accumulate negatively to handle Long.MIN_VALUE
+            long value = 0;
+            for (; i < end; i++) {
+                final int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+                    throw error("integer");
+                value = value * 10 - digit;
+            }
+            if (!negative) {
+                if (value == Long.MIN_VALUE)
+                    throw error("integer");
+                return -value;
+            }
+            return value;
+        }
+
+        /**
+         * Parses a double. Plain decimal numbers with at most 15 significant
+         * digits are converted directly (the result is exact since both the
+         * digits and the power of ten are exact doubles); other values use
+         * {@link Double#parseDouble(String)}.
+         */
+        public double parseDouble() {
+            int i = start();
+            final int end = offsets[2 * index + 1];
+            final boolean negative = i < end && buffer[i] == '-';
+            if (negative || i < end && buffer[i] == '+')
+                i++;
+
+            long digits = 0;
+            int count = 0, decimals = -1;
+            boolean any = false;
+            for (; i < end; i++) {
+                final byte b = buffer[i];
+                if (b >= '0' && b <= '9') {
+                    any = true;
+                    if (count > 0 || b != '0')
+                        count++;
+                    digits = digits * 10 + (b - '0');
+                    if (decimals >= 0)
+                        decimals++;
+                }
+                else if (b == '.' && decimals < 0)
+                    decimals = 0;
+                else
+                    break;
+            }
+
+            if (i == end && any && count <= 15
+                && (decimals < 0 ? 0 : decimals) < POWERS_OF_TEN.length) {
+                final double value = decimals > 0 ? digits
+                    / POWERS_OF_TEN[decimals] : digits;
+                return negative ? -value : value;
+            }
+
+            try {
+                return Double.parseDouble(toString());
+            }
+            catch (NumberFormatException e) {
+                throw error("double");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, start(), length(), UTF8);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package bpiwowar.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads objects of a given type to and from a stream. Contrarily to
+ * {@link ByteSerializer}, the serialized form can have any length.
+ *
+ * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
+ * @see StreamSerializers
+ */
+public interface StreamSerializer<E> {
+    /**
+     * Write an object
+     *
+     * @param out The stream, which should not be closed
+     * @param e The object to write
+     */
+    public void write(OutputStream out, E e) throws IOException;
+
+    /**
+     * Read an object
+     *
+     * @param in The stream, which should not be closed
+     * @return The object
+     */
+    public E read(InputStream in) throws IOException;
+}
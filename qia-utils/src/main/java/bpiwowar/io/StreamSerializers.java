@@ -0,0 +1,352 @@
+package bpiwowar.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Built-in stream serializers: java serialization, primitive arrays, and
+ * adaptation of fixed width {@link ByteSerializer}s. Primitive values are
+ * converted by blocks and written in big-endian order.
+ *
+ * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
+ */
+public class StreamSerializers {
+    /**
+     * Size of the blocks used to convert primitive values
+     */
+    static final int BLOCK_SIZE = 8192;
+
+    private StreamSerializers() {
+    }
+
+    /**
+     * Returns a serializer using the standard java serialization
+     */
+    @SuppressWarnings("unchecked")
+    static public <E> StreamSerializer<E> java() {
+        return (StreamSerializer<E>)JAVA;
+    }
+
+    static final private StreamSerializer<Object> JAVA = new StreamSerializer<Object>() {
+        @Override
+        public void write(OutputStream out, Object e) throws IOException {
+            ObjectOutputStream oOut = new ObjectOutputStream(out);
+            oOut.writeObject(e);
+            oOut.flush();
+        }
+
+        @Override
+        public Object read(InputStream in) throws IOException {
+            ObjectInputStream oIn = new ObjectInputStream(in);
+            try {
+                return oIn.readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    /**
+     * Adapts a fixed width byte serializer
+     */
+    static public <E> StreamSerializer<E> adapt(
+        final ByteSerializer<E> serializer) {
+        return new StreamSerializer<E>() {
+            @Override
+            public void write(OutputStream out, E e) throws IOException {
+                out.write(serializer.serialize(e));
+            }
+
+            @Override
+            public E read(InputStream in) throws IOException {
+                byte[] data = new byte[serializer.size()];
+                readFully(in, data, 0, data.length);
+                return serializer.deserialize(data);
+            }
+        };
+    }
+
+    static final public StreamSerializer<byte[]> BYTE_ARRAY = new StreamSerializer<byte[]>() {
+        @Override
+        public void write(OutputStream out, byte[] e) throws IOException {
+            new DataOutputStream(out).writeInt(e.length);
+            out.write(e);
+        }
+
+        @Override
+        public byte[] read(InputStream in) throws IOException {
+            byte[] e = new byte[new DataInputStream(in).readInt()];
+            readFully(in, e, 0, e.length);
+            return e;
+        }
+    };
+
+    static final public StreamSerializer<int[]> INT_ARRAY = new StreamSerializer<int[]>() {
+        @Override
+        public void write(OutputStream out, int[] e) throws IOException {
+            new DataOutputStream(out).writeInt(e.length);
+            writeInts(out, e, 0, 1, e.length);
+        }
+
+        @Override
+        public int[] read(InputStream in) throws IOException {
+            int[] e = new int[new DataInputStream(in).readInt()];
+            readInts(in, e, 0, 1, e.length);
+            return e;
+        }
+    };
+
+    static final public StreamSerializer<long[]> LONG_ARRAY = new StreamSerializer<long[]>() {
+        @Override
+        public void write(OutputStream out, long[] e) throws IOException {
+            new DataOutputStream(out).writeInt(e.length);
+            writeLongs(out, e, 0, 1, e.length);
+        }
+
+        @Override
+        public long[] read(InputStream in) throws IOException {
+            long[] e = new long[new DataInputStream(in).readInt()];
+            readLongs(in, e, 0, 1, e.length);
+            return e;
+        }
+    };
+
+    static final public StreamSerializer<float[]> FLOAT_ARRAY = new StreamSerializer<float[]>() {
+        @Override
+        public void write(OutputStream out, float[] e) throws IOException {
+            new DataOutputStream(out).writeInt(e.length);
+            writeFloats(out, e, 0, 1, e.length);
+        }
+
+        @Override
+        public float[] read(InputStream in) throws IOException {
+            float[] e = new float[new DataInputStream(in).readInt()];
+            readFloats(in, e, 0, 1, e.length);
+            return e;
+        }
+    };
+
+    static final public StreamSerializer<double[]> DOUBLE_ARRAY = new StreamSerializer<double[]>() {
+        @Override
+        public void write(OutputStream out, double[] e) throws IOException {
+            new DataOutputStream(out).writeInt(e.length);
+            writeDoubles(out, e, 0, 1, e.length);
+        }
+
+        @Override
+        public double[] read(InputStream in) throws IOException {
+            double[] e = new double[new DataInputStream(in).readInt()];
+            readDoubles(in, e, 0, 1, e.length);
+            return e;
+        }
+    };
+
+    // ---- Block conversion of primitive values
+
+    static public void readFully(InputStream in, byte[] b, int offset,
+        int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(b, offset, length);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Write doubles (the values are converted by blocks, and copied at once
+     * when they are contiguous)
+     *
+     * @param values The array containing the values
+     * @param offset The position of the first value
+     * @param stride The distance between two consecutive values in the array
+     * @param length The number of values
+     */
+    static public void writeDoubles(OutputStream out, double[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 8));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 8);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asDoubleBuffer().put(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    buffer.putDouble(values[offset + i * stride]);
+            out.write(buffer.array(), 0, n * 8);
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Read doubles
+     *
+     * @see #writeDoubles(OutputStream, double[], int, int, int)
+     */
+    static public void readDoubles(InputStream in, double[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 8));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 8);
+            readFully(in, buffer.array(), 0, n * 8);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asDoubleBuffer().get(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    values[offset + i * stride] = buffer.getDouble();
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write ints
+     *
+     * @see #writeDoubles(OutputStream, double[], int, int, int)
+     */
+    static public void writeInts(OutputStream out, int[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 4));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 4);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asIntBuffer().put(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    buffer.putInt(values[offset + i * stride]);
+            out.write(buffer.array(), 0, n * 4);
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Read ints
+     *
+     * @see #writeInts(OutputStream, int[], int, int, int)
+     */
+    static public void readInts(InputStream in, int[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 4));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 4);
+            readFully(in, buffer.array(), 0, n * 4);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asIntBuffer().get(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    values[offset + i * stride] = buffer.getInt();
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write longs
+     *
+     * @see #writeDoubles(OutputStream, double[], int, int, int)
+     */
+    static public void writeLongs(OutputStream out, long[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 8));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 8);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asLongBuffer().put(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    buffer.putLong(values[offset + i * stride]);
+            out.write(buffer.array(), 0, n * 8);
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Read longs
+     *
+     * @see #writeLongs(OutputStream, long[], int, int, int)
+     */
+    static public void readLongs(InputStream in, long[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 8));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 8);
+            readFully(in, buffer.array(), 0, n * 8);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asLongBuffer().get(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    values[offset + i * stride] = buffer.getLong();
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write floats
+     *
+     * @see #writeDoubles(OutputStream, double[], int, int, int)
+     */
+    static public void writeFloats(OutputStream out, float[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 4));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 4);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asFloatBuffer().put(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    buffer.putFloat(values[offset + i * stride]);
+            out.write(buffer.array(), 0, n * 4);
+            offset += n * stride;
+            length -= n;
+        }
+    }
+
+    /**
+     * Read floats
+     *
+     * @see #writeFloats(OutputStream, float[], int, int, int)
+     */
+    static public void readFloats(InputStream in, float[] values,
+        int offset, int stride, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BLOCK_SIZE,
+            length * 4));
+        while (length > 0) {
+            final int n = Math.min(length, buffer.capacity() / 4);
+            readFully(in, buffer.array(), 0, n * 4);
+            buffer.clear();
+            if (stride == 1)
+                buffer.asFloatBuffer().get(values, offset, n);
+            else
+                for (int i = 0; i < n; i++)
+                    values[offset + i * stride] = buffer.getFloat();
+            offset += n * stride;
+            length -= n;
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package bpiwowar.ir.trec;
 
+import bpiwowar.io.RecordReader;
 import bpiwowar.lang.RuntimeException;
 import bpiwowar.log.Logger;
 import bpiwowar.utils.GenericHelper;
 import bpiwowar.utils.iterators.ReadLineIterator;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
@@ -36,23 +36,64 @@ public class TRECJudgments {
                 throw new RuntimeException(
                     "Non TREC qrels format for line: %s", line);
 
-            String qid = fields[Fields.QID.ordinal()];
-            String docno = fields[Fields.DOCNO.ordinal()];
-            Integer rel = new Integer(fields[Fields.REL.ordinal()]);
+            add(fields[Fields.QID.ordinal()], fields[Fields.DOCNO.ordinal()],
+                new Integer(fields[Fields.REL.ordinal()]));
+        }
+    }
+
+    /**
+     * Reads a file without decoding the lines (only identifiers are converted
+     * to strings)
+     *
+     * @throws FileNotFoundException If the file does not exist (other
+     *             input/output errors are wrapped in a runtime exception)
+     */
+    public TRECJudgments(File file) throws FileNotFoundException {
+        try {
+            read(file);
+        }
+        catch (FileNotFoundException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e, "Could not read %s", file);
+        }
+    }
+
+    private void read(File file) throws IOException {
+        final RecordReader reader = new RecordReader(file,
+            RecordReader.WHITESPACE);
+        try {
+            String lastQid = null;
+            while (reader.next()) {
+                if (reader.fieldCount() != Fields.values().length)
+                    throw new RuntimeException(
+                        "Non TREC qrels format for line: %s", reader);
 
-            Map<String, Integer> map = judgments.get(qid);
-            if (map == null)
-                judgments.put(qid, map = GenericHelper.newTreeMap());
+                // Topics are usually grouped
+                final RecordReader.Field field = reader.field(Fields.QID
+                    .ordinal());
+                if (lastQid == null || !field.contentEquals(lastQid))
+                    lastQid = field.toString();
 
-            Integer put = map.put(docno, rel);
-            if (put != null)
-                LOGGER.warn("Duplicate judgment for document %s and topic %s",
-                    docno, qid);
+                add(lastQid, reader.field(Fields.DOCNO.ordinal()).toString(),
+                    reader.field(Fields.REL.ordinal()).parseInt());
+            }
+        }
+        finally {
+            reader.close();
         }
     }
 
-    public TRECJudgments(File file) throws FileNotFoundException {
-        this(new FileReader(file));
+    private void add(String qid, String docno, Integer rel) {
+        Map<String, Integer> map = judgments.get(qid);
+        if (map == null)
+            judgments.put(qid, map = GenericHelper.newTreeMap());
+
+        Integer put = map.put(docno, rel);
+        if (put != null)
+            LOGGER.warn("Duplicate judgment for document %s and topic %s",
+                docno, qid);
     }
 
     /**
@@ -1,12 +1,13 @@
 package bpiwowar.ir.trec;
 
+import bpiwowar.io.RecordReader;
 import bpiwowar.lang.RuntimeException;
 import bpiwowar.log.Logger;
 import bpiwowar.utils.GenericHelper;
 import bpiwowar.utils.iterators.ReadLineIterator;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
 import java.util.Map;
 import java.util.Set;
@@ -74,24 +75,70 @@ public class TRECResults {
                 throw new RuntimeException(
                     "Non TREC qrels format for line: %s", line);
 
-            String qid = fields[Fields.QID.ordinal()];
-            String docno = fields[Fields.DOCNO.ordinal()];
-            double rsv = Double.parseDouble(fields[Fields.SIM.ordinal()]);
             runid = fields[Fields.RUN_ID.ordinal()];
+            add(fields[Fields.QID.ordinal()], fields[Fields.DOCNO.ordinal()],
+                Double.parseDouble(fields[Fields.SIM.ordinal()]));
+        }
+    }
 
-            SortedSet<Result> set = results.get(qid);
-            if (set == null)
-                results.put(qid, set = GenericHelper.newTreeSet());
+    /**
+     * Reads a file without decoding the lines (only identifiers are converted
+     * to strings)
+     *
+     * @throws FileNotFoundException If the file does not exist (other
+     *             input/output errors are wrapped in a runtime exception)
+     */
+    public TRECResults(File file) throws FileNotFoundException {
+        try {
+            read(file);
+        }
+        catch (FileNotFoundException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e, "Could not read %s", file);
+        }
+    }
 
-            boolean ok = set.add(new Result(rsv, docno));
-            if (!ok)
-                LOGGER.warn("Duplicate result for document %s and topic %s",
-                    docno, qid);
+    private void read(File file) throws IOException {
+        final RecordReader reader = new RecordReader(file,
+            RecordReader.WHITESPACE);
+        try {
+            String lastQid = null;
+            while (reader.next()) {
+                if (reader.fieldCount() != Fields.values().length)
+                    throw new RuntimeException(
+                        "Non TREC qrels format for line: %s", reader);
+
+                // Topics are usually grouped
+                final RecordReader.Field field = reader.field(Fields.QID
+                    .ordinal());
+                if (lastQid == null || !field.contentEquals(lastQid))
+                    lastQid = field.toString();
+
+                final RecordReader.Field runField = reader.field(Fields.RUN_ID
+                    .ordinal());
+                if (runid == null || !runField.contentEquals(runid))
+                    runid = runField.toString();
+
+                add(lastQid, reader.field(Fields.DOCNO.ordinal()).toString(),
+                    reader.field(Fields.SIM.ordinal()).parseDouble());
+            }
+        }
+        finally {
+            reader.close();
         }
     }
 
-    public TRECResults(File file) throws FileNotFoundException {
-        this(new FileReader(file));
+    private void add(String qid, String docno, double rsv) {
+        SortedSet<Result> set = results.get(qid);
+        if (set == null)
+            results.put(qid, set = GenericHelper.newTreeSet());
+
+        boolean ok = set.add(new Result(rsv, docno));
+        if (!ok)
+            LOGGER.warn("Duplicate result for document %s and topic %s",
+                docno, qid);
     }
 
     /**
@@ -257,7 +257,7 @@ public class CDenseDoubleMatrix2D extends DoubleMatrix2D {
             this.useBlas = useBlas;
             if (useBlas && !Blas.register()) {
                 // We will use something different
-                useBlas = false;
+                this.useBlas = false;
             }
         }
 
@@ -385,6 +385,9 @@ public class CDenseDoubleMatrix2D extends DoubleMatrix2D {
 
         @Override
         public double complexity(int m, int n, int p) {
+            // There is no fallback without BLAS
+            if (!useBlas)
+                return Double.POSITIVE_INFINITY;
             return ((double)m * n * p) / 10.;
         }
     }
@@ -437,6 +440,18 @@ public class CDenseDoubleMatrix2D extends DoubleMatrix2D {
         }
     }
 
+    public int getArrayColumnStride() {
+        return colStride;
+    }
+
+    public int getArrayOffset() {
+        return offset;
+    }
+
+    public double[] getBackingArray() {
+        return elements;
+    }
+
     static final int cblasTranspose(boolean transpose) {
         return transpose ? Blas.CBLAS_TRANSPOSE.CblasTrans
             : Blas.CBLAS_TRANSPOSE.CblasNoTrans;
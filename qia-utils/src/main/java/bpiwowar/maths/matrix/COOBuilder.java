@@ -0,0 +1,141 @@
+package bpiwowar.maths.matrix;
+
+import bpiwowar.ml.OutOfBoundsException;
+import java.util.Arrays;
+
+/**
+ * Builds compressed sparse matrices from a list of (row, column, value)
+ * triples given in any order. Values given for the same element are summed,
+ * and zeros are not stored.
+ *
+ * <pre>
+ * COOBuilder builder = new COOBuilder(terms, documents);
+ * builder.add(term, document, count);
+ * CSRDoubleMatrix2D matrix = builder.buildCSR();
+ * </pre>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class COOBuilder {
+    private final int rows, columns;
+
+    private int[] rowIndices = new int[16];
+
+    private int[] columnIndices = new int[16];
+
+    private double[] values = new double[16];
+
+    private int size = 0;
+
+    public COOBuilder(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    public void add(int i, int j, double v) {
+        if (i < 0 || i >= rows || j < 0 || j >= columns)
+            throw new OutOfBoundsException(
+                "Cannot add (%d,%d) to a %d x %d matrix", i, j, rows, columns);
+        if (size == values.length) {
+            rowIndices = Arrays.copyOf(rowIndices, 2 * size);
+            columnIndices = Arrays.copyOf(columnIndices, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        rowIndices[size] = i;
+        columnIndices[size] = j;
+        values[size++] = v;
+    }
+
+    /**
+     * Returns the number of triples added so far
+     */
+    public int size() {
+        return size;
+    }
+
+    public CSRDoubleMatrix2D buildCSR() {
+        final Compressed c = compress(rowIndices, rows, columnIndices, columns);
+        return new CSRDoubleMatrix2D(rows, columns, c.pointers, c.indices,
+            c.values);
+    }
+
+    public CSCDoubleMatrix2D buildCSC() {
+        final Compressed c = compress(columnIndices, columns, rowIndices, rows);
+        return new CSCDoubleMatrix2D(rows, columns, c.pointers, c.indices,
+            c.values);
+    }
+
+    static final class Compressed {
+        int[] pointers, indices;
+
+        double[] values;
+    }
+
+    /**
+     * Sorts the triples by line and index (two counting sorts), and sums the
+     * duplicates
+     */
+    private Compressed compress(int[] lines, int lineCount, int[] minor,
+        int minorCount) {
+        // Sort by index, then (stable) by line
+        final int[] byIndex = sort(minor, minorCount, null);
+        final int[] order = sort(lines, lineCount, byIndex);
+
+        // Sum the duplicates
+        final Compressed c = new Compressed();
+        final int[] elementLines = new int[size];
+        c.indices = new int[size];
+        c.values = new double[size];
+        int n = 0;
+        for (int t = 0; t < size; t++) {
+            final int k = order[t];
+            if (n > 0 && elementLines[n - 1] == lines[k]
+                && c.indices[n - 1] == minor[k])
+                c.values[n - 1] += values[k];
+            else {
+                elementLines[n] = lines[k];
+                c.indices[n] = minor[k];
+                c.values[n++] = values[k];
+            }
+        }
+
+        // Remove the zeros and count the elements of each line
+        c.pointers = new int[lineCount + 1];
+        int nnz = 0;
+        for (int t = 0; t < n; t++)
+            if (c.values[t] != 0) {
+                c.indices[nnz] = c.indices[t];
+                c.values[nnz++] = c.values[t];
+                c.pointers[elementLines[t] + 1]++;
+            }
+
+        for (int l = 0; l < lineCount; l++)
+            c.pointers[l + 1] += c.pointers[l];
+        if (nnz < size) {
+            c.indices = Arrays.copyOf(c.indices, nnz);
+            c.values = Arrays.copyOf(c.values, nnz);
+        }
+        return c;
+    }
+
+    /**
+     * Stable counting sort of the triples (given in some order, or in the
+     * order they were added if null) by a key
+     *
+     * @return The sorted positions of the triples
+     */
+    private int[] sort(int[] keys, int keyCount, int[] order) {
+        final int[] next = new int[keyCount + 1];
+        for (int k = 0; k < size; k++)
+            next[keys[k] + 1]++;
+        for (int i = 0; i < keyCount; i++)
+            next[i + 1] += next[i];
+
+        final int[] sorted = new int[size];
+        for (int t = 0; t < size; t++) {
+            final int k = order == null ? t : order[t];
+            sorted[next[keys[k]]++] = k;
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,48 @@
+package bpiwowar.maths.matrix;
+
+/**
+ * A sparse matrix in compressed sparse column (CSC) form
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ * @see COOBuilder
+ */
+public class CSCDoubleMatrix2D extends CompressedDoubleMatrix2D {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a m by p matrix without non-zero elements
+     */
+    public CSCDoubleMatrix2D(int m, int p) {
+        this(m, p, new int[p + 1], new int[0], new double[0]);
+    }
+
+    /**
+     * Creates a matrix from its arrays (which are not copied)
+     *
+     * @param pointers The start of each column in indices and values (of size
+     *            p + 1)
+     * @param indices The row of each non-zero element (sorted within a
+     *            column)
+     * @param values The value of each non-zero element
+     */
+    public CSCDoubleMatrix2D(int m, int p, int[] pointers, int[] indices,
+        double[] values) {
+        super(m, p, pointers, indices, values);
+    }
+
+    @Override
+    boolean isRowMajor() {
+        return false;
+    }
+
+    @Override
+    public CSRDoubleMatrix2D transpose() {
+        return new CSRDoubleMatrix2D(columns, rows, pointers, indices, values);
+    }
+
+    @Override
+    public CSCDoubleMatrix2D copy() {
+        return new CSCDoubleMatrix2D(rows, columns, pointers.clone(), indices
+            .clone(), values.clone());
+    }
+}
@@ -0,0 +1,47 @@
+package bpiwowar.maths.matrix;
+
+/**
+ * A sparse matrix in compressed sparse row (CSR) form
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ * @see COOBuilder
+ */
+public class CSRDoubleMatrix2D extends CompressedDoubleMatrix2D {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a m by p matrix without non-zero elements
+     */
+    public CSRDoubleMatrix2D(int m, int p) {
+        this(m, p, new int[m + 1], new int[0], new double[0]);
+    }
+
+    /**
+     * Creates a matrix from its arrays (which are not copied)
+     *
+     * @param pointers The start of each row in indices and values (of size
+     *            m + 1)
+     * @param indices The column of each non-zero element (sorted within a row)
+     * @param values The value of each non-zero element
+     */
+    public CSRDoubleMatrix2D(int m, int p, int[] pointers, int[] indices,
+        double[] values) {
+        super(m, p, pointers, indices, values);
+    }
+
+    @Override
+    boolean isRowMajor() {
+        return true;
+    }
+
+    @Override
+    public CSCDoubleMatrix2D transpose() {
+        return new CSCDoubleMatrix2D(columns, rows, pointers, indices, values);
+    }
+
+    @Override
+    public CSRDoubleMatrix2D copy() {
+        return new CSRDoubleMatrix2D(rows, columns, pointers.clone(), indices
+            .clone(), values.clone());
+    }
+}
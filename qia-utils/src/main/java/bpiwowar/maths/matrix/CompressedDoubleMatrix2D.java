@@ -0,0 +1,488 @@
+package bpiwowar.maths.matrix;
+
+import bpiwowar.maths.matrix.Multiply.Multiplier1D;
+import bpiwowar.maths.matrix.Multiply.Multiplier2D;
+import cern.colt.function.IntIntDoubleFunction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A sparse matrix in compressed form: the non-zero elements of each line
+ * (a row for {@link CSRDoubleMatrix2D}, a column for {@link CSCDoubleMatrix2D})
+ * are stored contiguously, sorted by their index within the line. Matrices
+ * are built with a {@link COOBuilder}; their structure is then fixed, i.e.
+ * only existing non-zero elements can be modified.
+ * <p>
+ * The multipliers of this class handle sparse x dense (matrix and vector)
+ * and sparse x sparse products, and their transposed variants, without
+ * densifying the sparse operands. Large products are computed in parallel by
+ * partitioning the lines so that each part has the same number of non-zeros.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public abstract class CompressedDoubleMatrix2D extends DoubleMatrix2D {
+    private static final long serialVersionUID = 1L;
+
+    /** Below this number of multiply-adds, products are not parallelised */
+    static final long PARALLEL_THRESHOLD = 1 << 18;
+
+    /**
+     * Start of each line in {@link #indices} and {@link #values} (the last
+     * element is the number of non-zeros)
+     */
+    final int[] pointers;
+
+    /** The index of each non-zero element within its line */
+    final int[] indices;
+
+    final double[] values;
+
+    CompressedDoubleMatrix2D(int rows, int columns, int[] pointers,
+        int[] indices, double[] values) {
+        super(rows, columns);
+        this.pointers = pointers;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * True if lines are rows
+     */
+    abstract boolean isRowMajor();
+
+    /**
+     * Returns a matrix of the other type sharing the same arrays, i.e. the
+     * transpose of this matrix
+     */
+    public abstract CompressedDoubleMatrix2D transpose();
+
+    public int getNonZeroCount() {
+        return pointers[pointers.length - 1];
+    }
+
+    /**
+     * Returns the position of an element, or -1 if it is not stored
+     */
+    final int find(int i, int j) {
+        final int line = isRowMajor() ? i : j;
+        final int index = isRowMajor() ? j : i;
+        final int k = Arrays.binarySearch(indices, pointers[line],
+            pointers[line + 1], index);
+        return k < 0 ? -1 : k;
+    }
+
+    @Override
+    public double get(int i, int j) {
+        final int k = find(i, j);
+        return k < 0 ? 0 : values[k];
+    }
+
+    @Override
+    public void set(int i, int j, double v) {
+        final int k = find(i, j);
+        if (k >= 0)
+            values[k] = v;
+        else if (v != 0)
+            throw new IndexOutOfBoundsException(String.format(
+                "(%d,%d) is not a non-zero element of the sparse matrix", i, j));
+    }
+
+    @Override
+    public DoubleMatrix2D forEachNonZero(IntIntDoubleFunction function) {
+        final boolean rowMajor = isRowMajor();
+        for (int line = pointers.length - 1; --line >= 0; )
+            for (int k = pointers[line]; k < pointers[line + 1]; k++) {
+                final double value = values[k];
+                if (value != 0) {
+                    final double r = rowMajor ? function.apply(line,
+                        indices[k], value) : function.apply(indices[k], line,
+                        value);
+                    if (r != value)
+                        values[k] = r;
+                }
+            }
+        return this;
+    }
+
+    @Override
+    public DoubleMatrix2D viewDice() {
+        return transpose();
+    }
+
+    /**
+     * Returns a dense matrix, since the structure of a compressed matrix
+     * cannot change
+     */
+    @Override
+    public DoubleMatrix2D like(int rows, int columns) {
+        return new DenseDoubleMatrix2D(rows, columns);
+    }
+
+    // --------------------------------
+    // -------------------------------- Helpers
+    // --------------------------------
+
+    /**
+     * Returns op(A) as a CSR matrix, i.e. with the rows of op(A) as lines
+     * (transposing the structure only when the lines of A are not the rows of
+     * op(A))
+     */
+    static CSRDoubleMatrix2D rows(CompressedDoubleMatrix2D A, boolean transpose) {
+        if (A.isRowMajor() != transpose)
+            return (CSRDoubleMatrix2D)(transpose ? A.transpose() : A);
+
+        // Counting sort on the index within the line
+        final int lines = A.pointers.length - 1;
+        final int newLines = A.isRowMajor() ? A.columns : A.rows;
+        final int nnz = A.getNonZeroCount();
+        final int[] pointers = new int[newLines + 1];
+        for (int k = 0; k < nnz; k++)
+            pointers[A.indices[k] + 1]++;
+        for (int l = 0; l < newLines; l++)
+            pointers[l + 1] += pointers[l];
+
+        final int[] next = Arrays.copyOf(pointers, newLines);
+        final int[] indices = new int[nnz];
+        final double[] values = new double[nnz];
+        for (int line = 0; line < lines; line++)
+            for (int k = A.pointers[line]; k < A.pointers[line + 1]; k++) {
+                final int position = next[A.indices[k]]++;
+                indices[position] = line;
+                values[position] = A.values[k];
+            }
+
+        return new CSRDoubleMatrix2D(newLines, lines, pointers, indices, values);
+    }
+
+    /**
+     * Processes the lines [from, to[ of a part
+     */
+    interface Lines {
+        void process(int part, int from, int to);
+    }
+
+    /**
+     * Splits the lines into parts with (about) the same number of non-zeros
+     *
+     * @return The first line of each part, followed by the number of lines
+     */
+    static int[] partition(int[] pointers, long work) {
+        final int lines = pointers.length - 1;
+        final int nnz = pointers[lines];
+        int parts = 1;
+        if (work >= PARALLEL_THRESHOLD && JavaMultiply.THREADS > 1
+            && JavaMultiply.WORKER.get() == null)
+            parts = Math.max(1, Math.min(lines, 2 * JavaMultiply.THREADS));
+
+        final int[] bounds = new int[parts + 1];
+        for (int t = 1; t < parts; t++) {
+            int k = Arrays.binarySearch(pointers, (int)((long)nnz * t / parts));
+            if (k < 0)
+                k = -k - 1;
+            bounds[t] = Math.max(bounds[t - 1], Math.min(k, lines));
+        }
+        bounds[parts] = lines;
+        return bounds;
+    }
+
+    /**
+     * Runs the parts on the pool of {@link JavaMultiply}
+     */
+    static void run(final int[] bounds, final Lines task) {
+        final int parts = bounds.length - 1;
+        if (parts == 1) {
+            task.process(0, bounds[0], bounds[1]);
+            return;
+        }
+
+        ArrayList<Callable<Object>> list = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < parts; t++) {
+            final int part = t;
+            list.add(new Callable<Object>() {
+                public Object call() {
+                    task.process(part, bounds[part], bounds[part + 1]);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Object> future : JavaMultiply.getExecutor().invokeAll(
+                list))
+                future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted sparse multiplication", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Multiplies a compressed matrix with a dense vector
+     */
+    final public static class SparseMultiplier1D
+        implements
+        Multiplier1D<CompressedDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        @Override
+        public DenseDoubleMatrix1D multiply(final CompressedDoubleMatrix2D A,
+            final DenseDoubleMatrix1D x, DenseDoubleMatrix1D y,
+            final double alpha, final double beta, boolean transposeA) {
+            final int m = transposeA ? A.columns : A.rows;
+            if (y == null)
+                y = new DenseDoubleMatrix1D(m);
+            final DenseDoubleMatrix1D result = y;
+            final int[] pointers = A.pointers, indices = A.indices;
+            final double[] values = A.values;
+
+            if (A.isRowMajor() != transposeA) {
+                // Lines are the rows of op(A): one inner product per line
+                run(partition(pointers, A.getNonZeroCount()), new Lines() {
+                    public void process(int part, int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            double s = 0;
+                            for (int k = pointers[i]; k < pointers[i + 1]; k++)
+                                s += values[k] * x.elements[x.offset + x.stride
+                                    * indices[k]];
+                            final int iy = result.offset + result.stride * i;
+                            result.elements[iy] = beta == 0 ? alpha * s : alpha
+                                * s + beta * result.elements[iy];
+                        }
+                    }
+                });
+                return y;
+            }
+
+            // Lines are the columns of op(A): scatter each line
+            for (int i = 0; i < m; i++) {
+                final int iy = y.offset + y.stride * i;
+                y.elements[iy] = beta == 0 ? 0 : beta * y.elements[iy];
+            }
+            for (int j = 0; j < pointers.length - 1; j++) {
+                final double xj = alpha * x.elements[x.offset + x.stride * j];
+                if (xj != 0)
+                    for (int k = pointers[j]; k < pointers[j + 1]; k++)
+                        y.elements[y.offset + y.stride * indices[k]] += xj
+                            * values[k];
+            }
+            return y;
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return (double)m * n / 100.;
+        }
+    }
+
+    /**
+     * Multiplies a compressed matrix with a row-major dense matrix
+     */
+    final public static class SparseDenseMultiplier2D
+        implements
+        Multiplier2D<CompressedDoubleMatrix2D, DenseDoubleMatrix2D, DenseDoubleMatrix2D> {
+        @Override
+        public DenseDoubleMatrix2D multiply(CompressedDoubleMatrix2D A,
+            final DenseDoubleMatrix2D B, DenseDoubleMatrix2D C,
+            final double alpha, final double beta, boolean transposeA,
+            boolean transposeB) {
+            final int m = transposeA ? A.columns : A.rows;
+            final int p = transposeB ? B.rows : B.columns;
+            if (C == null)
+                C = new DenseDoubleMatrix2D(m, p);
+            final DenseDoubleMatrix2D result = C;
+            final int[] pointers = A.pointers, indices = A.indices;
+            final double[] values = A.values;
+
+            // Row r of op(B) starts at bOffset + r * bRow, and its elements
+            // are separated by bColumn
+            final int bRow = transposeB ? 1 : B.rowStride;
+            final int bColumn = transposeB ? B.rowStride : 1;
+
+            if (A.isRowMajor() != transposeA) {
+                // Row i of C is a combination of rows of op(B)
+                run(partition(pointers, (long)A.getNonZeroCount() * p),
+                    new Lines() {
+                        public void process(int part, int from, int to) {
+                            for (int i = from; i < to; i++) {
+                                final int c = result.offset + i
+                                    * result.rowStride;
+                                scale(result.elements, c, p, beta);
+                                for (int k = pointers[i]; k < pointers[i + 1]; k++)
+                                    JavaMultiply.axpy(p, alpha * values[k],
+                                        B.elements, B.offset + indices[k]
+                                            * bRow, bColumn, result.elements,
+                                        c, 1);
+                            }
+                        }
+                    });
+                return C;
+            }
+
+            // Line j of A adds row j of op(B) to the rows of C
+            for (int i = 0; i < m; i++)
+                scale(C.elements, C.offset + i * C.rowStride, p, beta);
+            for (int j = 0; j < pointers.length - 1; j++)
+                for (int k = pointers[j]; k < pointers[j + 1]; k++)
+                    JavaMultiply.axpy(p, alpha * values[k], B.elements,
+                        B.offset + j * bRow, bColumn, C.elements, C.offset
+                            + indices[k] * C.rowStride, 1);
+            return C;
+        }
+
+        static void scale(double[] x, int offset, int n, double beta) {
+            if (beta == 1)
+                return;
+            for (int j = offset; j < offset + n; j++)
+                x[j] = beta == 0 ? 0 : beta * x[j];
+        }
+
+        @Override
+        public double complexity(int m, int n, int p) {
+            return (double)m * n * p / 100.;
+        }
+    }
+
+    /**
+     * Multiplies two compressed matrices (Gustavson's algorithm). If C is
+     * null, the result is a new CSR matrix; otherwise, the product is added to
+     * beta C, whose structure should contain its non-zero elements.
+     */
+    final public static class SparseMultiplier2D
+        implements
+        Multiplier2D<CompressedDoubleMatrix2D, CompressedDoubleMatrix2D, CSRDoubleMatrix2D> {
+        @Override
+        public CSRDoubleMatrix2D multiply(CompressedDoubleMatrix2D A,
+            CompressedDoubleMatrix2D B, CSRDoubleMatrix2D C, double alpha,
+            double beta, boolean transposeA, boolean transposeB) {
+            final CSRDoubleMatrix2D product = product(rows(A, transposeA),
+                rows(B, transposeB), alpha);
+            if (C == null)
+                return product;
+            accumulate(product, C, beta);
+            return C;
+        }
+
+        /**
+         * Computes C = beta C + P within the structure of C
+         *
+         * @throws IndexOutOfBoundsException If a non-zero element of P is not
+         *             stored in C (C is then not modified)
+         */
+        static void accumulate(CSRDoubleMatrix2D P, CSRDoubleMatrix2D C,
+            double beta) {
+            if (P.rows != C.rows || P.columns != C.columns)
+                throw new IllegalArgumentException(String.format(
+                    "Cannot add a %d x %d matrix to a %d x %d matrix",
+                    P.rows, P.columns, C.rows, C.columns));
+
+            // Positions in C of the elements of P (both rows are sorted)
+            final int[] positions = new int[P.getNonZeroCount()];
+            for (int i = 0; i < P.rows; i++) {
+                int kc = C.pointers[i];
+                for (int kp = P.pointers[i]; kp < P.pointers[i + 1]; kp++) {
+                    final int j = P.indices[kp];
+                    while (kc < C.pointers[i + 1] && C.indices[kc] < j)
+                        kc++;
+                    if (kc == C.pointers[i + 1] || C.indices[kc] != j)
+                        throw new IndexOutOfBoundsException(String.format(
+                            "(%d,%d) is not a non-zero element of the sparse matrix",
+                            i, j));
+                    positions[kp] = kc;
+                }
+            }
+
+            SparseDenseMultiplier2D.scale(C.values, 0, C.values.length, beta);
+            for (int kp = 0; kp < positions.length; kp++)
+                C.values[positions[kp]] += P.values[kp];
+        }
+
+        /**
+         * Computes alpha a b (Gustavson's algorithm, by parts of rows of a)
+         */
+        static CSRDoubleMatrix2D product(final CSRDoubleMatrix2D a,
+            final CSRDoubleMatrix2D b, final double alpha) {
+            final int m = a.rows, p = b.columns;
+
+            final int[] bounds = partition(a.pointers, (long)a
+                .getNonZeroCount()
+                * Math.max(1, b.getNonZeroCount() / Math.max(1, b.rows)));
+            final int parts = bounds.length - 1;
+            final int[] counts = new int[m];
+            final int[][] partIndices = new int[parts][];
+            final double[][] partValues = new double[parts][];
+
+            run(bounds, new Lines() {
+                public void process(int part, int from, int to) {
+                    final double[] accumulator = new double[p];
+                    final int[] marker = new int[p];
+                    Arrays.fill(marker, -1);
+                    int[] indices = new int[16];
+                    double[] values = new double[16];
+                    int size = 0;
+
+                    for (int i = from; i < to; i++) {
+                        final int start = size;
+                        for (int ka = a.pointers[i]; ka < a.pointers[i + 1]; ka++) {
+                            final double va = alpha * a.values[ka];
+                            final int r = a.indices[ka];
+                            for (int kb = b.pointers[r]; kb < b.pointers[r + 1]; kb++) {
+                                final int j = b.indices[kb];
+                                if (marker[j] != i) {
+                                    marker[j] = i;
+                                    accumulator[j] = 0;
+                                    if (size == indices.length) {
+                                        indices = Arrays.copyOf(indices,
+                                            2 * size);
+                                        values = Arrays.copyOf(values, 2 * size);
+                                    }
+                                    indices[size++] = j;
+                                }
+                                accumulator[j] += va * b.values[kb];
+                            }
+                        }
+
+                        // Sort the row and remove the zeros
+                        Arrays.sort(indices, start, size);
+                        int end = start;
+                        for (int k = start; k < size; k++) {
+                            final double v = accumulator[indices[k]];
+                            if (v != 0) {
+                                indices[end] = indices[k];
+                                values[end++] = v;
+                            }
+                        }
+                        size = end;
+                        counts[i] = end - start;
+                    }
+                    partIndices[part] = indices;
+                    partValues[part] = values;
+                }
+            });
+
+            // Concatenate the parts
+            final int[] pointers = new int[m + 1];
+            for (int i = 0; i < m; i++)
+                pointers[i + 1] = pointers[i] + counts[i];
+            final int[] indices = new int[pointers[m]];
+            final double[] values = new double[pointers[m]];
+            for (int t = 0; t < parts; t++) {
+                final int start = pointers[bounds[t]];
+                final int length = pointers[bounds[t + 1]] - start;
+                System.arraycopy(partIndices[t], 0, indices, start, length);
+                System.arraycopy(partValues[t], 0, values, start, length);
+            }
+            return new CSRDoubleMatrix2D(m, p, pointers, indices, values);
+        }
+
+        @Override
+        public double complexity(int m, int n, int p) {
+            return (double)m * n * p / 100.;
+        }
+    }
+}
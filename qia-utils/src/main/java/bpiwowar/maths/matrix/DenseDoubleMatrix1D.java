@@ -155,6 +155,17 @@ public class DenseDoubleMatrix1D extends DoubleMatrix1D {
         }
     }
 
+    @Override
+    public void add(double alpha, DoubleMatrix1D other) {
+        if (!(other instanceof DenseDoubleMatrix1D) || size != other.size) {
+            super.add(alpha, other);
+            return;
+        }
+        final DenseDoubleMatrix1D x = (DenseDoubleMatrix1D)other;
+        JavaMultiply.axpy(size, alpha, x.elements, x.offset, x.stride,
+            elements, offset, stride);
+    }
+
     public static class DenseInnerProduct implements
         Multiply.InnerProduct<DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
 
@@ -168,13 +179,14 @@ public class DenseDoubleMatrix1D extends DoubleMatrix1D {
             this.useBlas = useBlas;
             if (useBlas && !Blas.register()) {
                 // We will use something different
-                useBlas = false;
+                this.useBlas = false;
             }
         }
 
         @Override
         public double complexity(int m) {
-            return ((double)m) / 10.;
+            // Without BLAS, the default inner product is used
+            return ((double)m) / (useBlas ? 10. : 1.);
         }
 
         @Override
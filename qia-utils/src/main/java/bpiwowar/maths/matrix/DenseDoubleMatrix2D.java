@@ -237,7 +237,7 @@ public class DenseDoubleMatrix2D extends DoubleMatrix2D {
             this.useBlas = useBlas;
             if (useBlas && !Blas.register()) {
                 // We will use something different
-                useBlas = false;
+                this.useBlas = false;
             }
         }
 
@@ -356,7 +356,8 @@ public class DenseDoubleMatrix2D extends DoubleMatrix2D {
 
         @Override
         public double complexity(int m, int n, int p) {
-            return ((double)m * n * p) / 10.;
+            // The fallback is not blocked (see JavaMultiply)
+            return ((double)m * n * p) / (useBlas ? 10. : 2.);
         }
     }
 
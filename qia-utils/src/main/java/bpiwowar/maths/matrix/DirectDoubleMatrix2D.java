@@ -0,0 +1,475 @@
+package bpiwowar.maths.matrix;
+
+import bpiwowar.log.Logger;
+import bpiwowar.maths.matrix.Multiply.Multiplier1D;
+import bpiwowar.maths.matrix.Multiply.Multiplier2D;
+import bpiwowar.maths.matrix.Multiply.RankOneUpdater;
+import cern.colt.function.DoubleFunction;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A dense matrix (row order storage) whose elements are stored outside of the
+ * Java heap, either in direct memory or in a memory mapped file. Large
+ * matrices do not weigh on the garbage collector, and are given to the BLAS
+ * library without any copy. A buffer holds at most 2^28 elements (2GB).
+ * <p>
+ * To use such matrices in a decomposition, give {@link #FACTORY} (or a
+ * {@link MappedFactory}) to e.g.
+ * {@link bpiwowar.maths.svd.IncrementalSVD#setFactory(DoubleMatrix2DFactory)}.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class DirectDoubleMatrix2D extends DoubleMatrix2D {
+    private static final long serialVersionUID = 1L;
+
+    final static private Logger logger = Logger.getLogger();
+
+    final static int DOUBLE_BYTES = Double.SIZE / 8;
+
+    /**
+     * Offset between two adjacent row elements (for the same column)
+     */
+    int rowStride;
+
+    /**
+     * Offset to the first element
+     */
+    int offset;
+
+    /**
+     * The elements (a direct or mapped buffer)
+     */
+    transient DoubleBuffer elements;
+
+    /**
+     * Creates a m by p matrix filled with zeros, in direct memory
+     */
+    public DirectDoubleMatrix2D(int m, int p) {
+        this(m, p, allocate((long)m * p), p, 0);
+    }
+
+    /**
+     * Creates a m by p matrix by giving the full parameters
+     *
+     * @param m The number of rows
+     * @param p The number of columns
+     * @param elements A buffer containing the matrix data
+     * @param rowStride The distance between an element and the next row
+     *            element (for the same column)
+     * @param offset The offset from the start of the buffer
+     */
+    public DirectDoubleMatrix2D(int m, int p, DoubleBuffer elements,
+        int rowStride, int offset) {
+        super(m, p);
+        this.elements = elements;
+        this.rowStride = rowStride;
+        this.offset = offset;
+    }
+
+    static int checkSize(long size) {
+        if (size * DOUBLE_BYTES > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format(
+                "Cannot hold %d elements in a buffer", size));
+        return (int)size;
+    }
+
+    static DoubleBuffer allocate(long size) {
+        return ByteBuffer.allocateDirect(checkSize(size) * DOUBLE_BYTES)
+            .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * Maps a (rows x columns) matrix stored in a file (in row order, with
+     * native byte order). The file is created or extended if needed, and
+     * changes to the matrix are written to the file.
+     */
+    public static DirectDoubleMatrix2D map(File file, int rows, int columns)
+        throws IOException {
+        final long size = (long)checkSize((long)rows * columns) * DOUBLE_BYTES;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final DoubleBuffer buffer = raf.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, size).order(
+                ByteOrder.nativeOrder()).asDoubleBuffer();
+            return new DirectDoubleMatrix2D(rows, columns, buffer, columns, 0);
+        }
+        finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    @Override
+    public double get(int i, int j) {
+        return elements.get(offset + i * rowStride + j);
+    }
+
+    @Override
+    public void set(int i, int j, double v) {
+        elements.put(offset + i * rowStride + j, v);
+    }
+
+    @Override
+    void update(int i, int j, DoubleFunction f) {
+        final int pos = offset + i * rowStride + j;
+        elements.put(pos, f.apply(elements.get(pos)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d x %d out of %d x %d; +%d, *%d)",
+            getClass(), rows, columns, elements.capacity() / rowStride,
+            rowStride, offset, rowStride);
+    }
+
+    /**
+     * Returns a view of the buffer starting at the first element (no copy)
+     */
+    DoubleBuffer getPointer() {
+        final DoubleBuffer db = elements.duplicate();
+        db.position(offset);
+        return db.slice();
+    }
+
+    @Override
+    protected DirectDoubleMatrix2D getViewPart(int i, int j, int height,
+        int width) {
+        return new DirectDoubleMatrix2D(height, width, elements, rowStride,
+            offset + i * rowStride + j);
+    }
+
+    @Override
+    public DoubleMatrix2D resize(int rows, int columns, boolean create,
+        boolean copy) {
+        final int colStart = offset % rowStride;
+        final int availRows = elements.capacity() / rowStride - offset
+            / rowStride;
+        final int availColumns = rowStride - colStart;
+
+        // We have enough space: just update
+        if (rows <= availRows && columns <= availColumns) {
+            this.rows = rows;
+            this.columns = columns;
+            return this;
+        }
+
+        if (!create)
+            return null;
+
+        final int newRows = DenseDoubleMatrix2D.grow(availRows, rows);
+        final int newColumns = DenseDoubleMatrix2D.grow(availColumns, columns);
+        logger.debug("Resize to %d x %d and take a view %d x %d", newRows,
+            newColumns, rows, columns);
+
+        DoubleMatrix2D m = like(newRows, newColumns).viewPart(0, 0, rows,
+            columns);
+        if (copy)
+            m.viewPart(0, 0, Math.min(this.rows, rows),
+                Math.min(this.columns, columns)).assign(this);
+        return m;
+    }
+
+    @Override
+    public void copyRow(int from, int to) {
+        if (from == to)
+            return;
+        final DoubleBuffer source = elements.duplicate();
+        source.position(offset + from * rowStride).limit(
+            offset + from * rowStride + columns);
+        final DoubleBuffer target = elements.duplicate();
+        target.position(offset + to * rowStride);
+        target.put(source);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                out.writeDouble(get(i, j));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException {
+        in.defaultReadObject();
+        elements = allocate((long)rows * columns);
+        rowStride = columns;
+        offset = 0;
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                set(i, j, in.readDouble());
+    }
+
+    // Our factory
+    public static final DoubleMatrix2DFactory<?> FACTORY = new Factory();
+
+    static public class Factory implements
+        DoubleMatrix2DFactory<DirectDoubleMatrix2D> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public DirectDoubleMatrix2D create(int rows, int cols) {
+            return new DirectDoubleMatrix2D(rows, cols);
+        }
+    }
+
+    /**
+     * Creates matrices mapped to temporary files of a directory, which are
+     * deleted once mapped (or when the JVM exits if this is not possible).
+     * Matrices created by {@link #like(int, int)} are in direct memory.
+     */
+    static public class MappedFactory implements
+        DoubleMatrix2DFactory<DirectDoubleMatrix2D> {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+
+        public MappedFactory(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public DirectDoubleMatrix2D create(int rows, int cols) {
+            try {
+                final File file = File.createTempFile("matrix", ".bin",
+                    directory);
+                final DirectDoubleMatrix2D m = map(file, rows, cols);
+                if (!file.delete())
+                    file.deleteOnExit();
+                return m;
+            }
+            catch (IOException e) {
+                throw new RuntimeException(String.format(
+                    "Could not map a %d x %d matrix in %s", rows, cols,
+                    directory), e);
+            }
+        }
+    }
+
+    /**
+     * Multiplies two direct matrices with the BLAS library (or, if it is not
+     * available, with {@link JavaMultiply#gemm} on panels of the matrices
+     * copied to arrays)
+     */
+    final public static class BlasMultiplier2D
+        implements
+        Multiplier2D<DirectDoubleMatrix2D, DirectDoubleMatrix2D, DirectDoubleMatrix2D> {
+        /**
+         * Maximum number of elements of a panel of A or B copied at once
+         * (when BLAS is not used)
+         */
+        static final int PANEL_ELEMENTS = 1 << 20;
+
+        boolean useBlas;
+
+        public BlasMultiplier2D() {
+            this(true);
+        }
+
+        public BlasMultiplier2D(boolean useBlas) {
+            this.useBlas = useBlas && Blas.register();
+        }
+
+        @Override
+        public DirectDoubleMatrix2D multiply(DirectDoubleMatrix2D A,
+            DirectDoubleMatrix2D B, DirectDoubleMatrix2D C, double alpha,
+            double beta, boolean transposeA, boolean transposeB) {
+            final int m = transposeA ? A.columns : A.rows;
+            final int n = transposeA ? A.rows : A.columns;
+            final int p = transposeB ? B.rows : B.columns;
+
+            if (C == null)
+                C = new DirectDoubleMatrix2D(m, p);
+
+            if (useBlas) {
+                Blas.cblas_dgemm(Blas.CBLAS_ORDER.CblasRowMajor,
+                    CDenseDoubleMatrix2D.cblasTranspose(transposeA),
+                    CDenseDoubleMatrix2D.cblasTranspose(transposeB), m, p, n,
+                    alpha, A.getPointer(), A.rowStride, B.getPointer(),
+                    B.rowStride, beta, C.getPointer(), C.rowStride);
+                return C;
+            }
+
+            // Panels of C are computed with the Java kernel, from panels of
+            // A and B copied row by row out of the buffers
+            final int width = Math.max(1, PANEL_ELEMENTS / Math.max(1, n));
+            final DoubleBuffer a = A.elements.duplicate(), b = B.elements
+                .duplicate(), c = C.elements.duplicate();
+            for (int i0 = 0; i0 < m; i0 += width) {
+                final int mi = Math.min(width, m - i0);
+
+                // Rows i0 to i0 + mi - 1 of op(A), as a (mi x n) matrix
+                final double[] panelA = new double[mi * n];
+                if (transposeA)
+                    for (int k = 0; k < n; k++) {
+                        a.position(A.offset + k * A.rowStride + i0);
+                        a.get(panelA, k * mi, mi);
+                    }
+                else
+                    for (int i = 0; i < mi; i++) {
+                        a.position(A.offset + (i0 + i) * A.rowStride);
+                        a.get(panelA, i * n, n);
+                    }
+
+                for (int j0 = 0; j0 < p; j0 += width) {
+                    final int pj = Math.min(width, p - j0);
+
+                    // Columns j0 to j0 + pj - 1 of op(B), as a (n x pj) matrix
+                    final double[] panelB = new double[n * pj];
+                    if (transposeB)
+                        for (int j = 0; j < pj; j++) {
+                            b.position(B.offset + (j0 + j) * B.rowStride);
+                            b.get(panelB, j * n, n);
+                        }
+                    else
+                        for (int k = 0; k < n; k++) {
+                            b.position(B.offset + k * B.rowStride + j0);
+                            b.get(panelB, k * pj, pj);
+                        }
+
+                    final double[] panelC = new double[mi * pj];
+                    if (beta != 0)
+                        for (int i = 0; i < mi; i++) {
+                            c.position(C.offset + (i0 + i) * C.rowStride + j0);
+                            c.get(panelC, i * pj, pj);
+                        }
+
+                    JavaMultiply.gemm(mi, n, pj, alpha, panelA, 0,
+                        transposeA ? 1 : n, transposeA ? mi : 1, panelB, 0,
+                        transposeB ? 1 : pj, transposeB ? n : 1, beta, panelC,
+                        0, pj, 1);
+
+                    for (int i = 0; i < mi; i++) {
+                        c.position(C.offset + (i0 + i) * C.rowStride + j0);
+                        c.put(panelC, i * pj, pj);
+                    }
+                }
+            }
+            return C;
+        }
+
+        @Override
+        public double complexity(int m, int n, int p) {
+            return useBlas ? ((double)m * n * p) / 10. : JavaMultiply
+                .complexity(m, n, p);
+        }
+    }
+
+    /**
+     * Multiplies a direct matrix and a dense vector with the BLAS library (or
+     * row by row with the {@link JavaMultiply} kernels if it is not available)
+     */
+    final static class BlasMultiplier1D
+        implements
+        Multiplier1D<DirectDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        final boolean useBlas;
+
+        public BlasMultiplier1D() {
+            this.useBlas = Blas.register();
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return ((double)m * n) / (useBlas ? 10. : 4.);
+        }
+
+        @Override
+        public DenseDoubleMatrix1D multiply(DirectDoubleMatrix2D A,
+            DenseDoubleMatrix1D x, DenseDoubleMatrix1D y, double alpha,
+            double beta, boolean transposeA) {
+            if (y == null)
+                y = new DenseDoubleMatrix1D(transposeA ? A.columns : A.rows);
+
+            if (useBlas) {
+                Blas.dgemv(Blas.CBLAS_ORDER.CblasRowMajor, CDenseDoubleMatrix2D
+                    .cblasTranspose(transposeA), A.rows, A.columns, alpha, A
+                    .getPointer(), A.rowStride, x.getPointer(), x.stride, beta,
+                    y.getPointer(), y.stride);
+                return y;
+            }
+
+            // Each row is copied from the buffer once
+            final DoubleBuffer a = A.elements.duplicate();
+            final double[] row = new double[A.columns];
+            if (!transposeA) {
+                for (int i = 0, iy = y.offset; i < A.rows; i++, iy += y.stride) {
+                    a.position(A.offset + i * A.rowStride);
+                    a.get(row, 0, A.columns);
+                    final double s = alpha
+                        * JavaMultiply.dot(A.columns, row, 0, 1, x.elements,
+                            x.offset, x.stride);
+                    y.elements[iy] = beta == 0 ? s : s + beta * y.elements[iy];
+                }
+                return y;
+            }
+
+            // y = beta y + sum_i alpha x_i A_i
+            for (int j = 0, iy = y.offset; j < A.columns; j++, iy += y.stride)
+                y.elements[iy] = beta == 0 ? 0 : beta * y.elements[iy];
+            for (int i = 0, ix = x.offset; i < A.rows; i++, ix += x.stride) {
+                final double v = alpha * x.elements[ix];
+                if (v == 0)
+                    continue;
+                a.position(A.offset + i * A.rowStride);
+                a.get(row, 0, A.columns);
+                JavaMultiply.axpy(A.columns, v, row, 0, 1, y.elements,
+                    y.offset, y.stride);
+            }
+            return y;
+        }
+    }
+
+    /**
+     * Rank one updater for direct matrices using the BLAS library (or row by
+     * row with the {@link JavaMultiply} kernels if it is not available)
+     */
+    static class DirectRankOneUpdater
+        implements
+        RankOneUpdater<DirectDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        final boolean useBlas;
+
+        public DirectRankOneUpdater() {
+            this.useBlas = Blas.register();
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return (double)m * (double)n * (useBlas ? .1 : .25);
+        }
+
+        @Override
+        public void update(double alpha, DirectDoubleMatrix2D mA,
+            DenseDoubleMatrix1D x, DenseDoubleMatrix1D y) {
+            if (useBlas) {
+                Blas.cblas_dger(Blas.CBLAS_ORDER.CblasRowMajor, x.size,
+                    y.size, alpha, x.getPointer(), x.stride, y.getPointer(),
+                    y.stride, mA.getPointer(), mA.rowStride);
+                return;
+            }
+
+            // Each modified row is read and written back once
+            final DoubleBuffer a = mA.elements.duplicate();
+            final double[] row = new double[mA.columns];
+            for (int i = 0, ix = x.offset; i < mA.rows; i++, ix += x.stride) {
+                final double v = alpha * x.elements[ix];
+                if (v == 0)
+                    continue;
+                final int position = mA.offset + i * mA.rowStride;
+                a.position(position);
+                a.get(row, 0, mA.columns);
+                JavaMultiply.axpy(mA.columns, v, y.elements, y.offset,
+                    y.stride, row, 0, 1);
+                a.position(position);
+                a.put(row, 0, mA.columns);
+            }
+        }
+    }
+}
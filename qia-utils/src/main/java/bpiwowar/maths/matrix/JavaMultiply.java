@@ -0,0 +1,570 @@
+package bpiwowar.maths.matrix;
+
+import bpiwowar.log.Logger;
+import bpiwowar.maths.matrix.Multiply.InnerProduct;
+import bpiwowar.maths.matrix.Multiply.Multiplier1D;
+import bpiwowar.maths.matrix.Multiply.Multiplier2D;
+import bpiwowar.maths.matrix.Multiply.RankOneUpdater;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pure java kernels for dense matrices, used when the BLAS library is not
+ * available.
+ * <p>
+ * The matrix product follows the usual blocked GEMM scheme: for each block of
+ * {@link #KC} inner indices, a panel of B and a block of A are copied
+ * ("packed") into contiguous arrays in the order in which the micro-kernel
+ * reads them, and the micro-kernel computes a {@link #MR} x {@link #NR} block
+ * of C in local variables. Matrices are described by their strides, so that
+ * row-major ({@link DenseDoubleMatrix2D}), column-major
+ * ({@link CDenseDoubleMatrix2D}) and transposed operands are handled by the
+ * same code without copying them. Blocks of C are computed in parallel.
+ * </p>
+ * <p>
+ * Vector operations (inner products, matrix-vector products and rank one
+ * updates) work directly on the backing arrays, with loops unrolled by four
+ * and independent accumulators so that the JIT can keep several
+ * multiply-adds in flight.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class JavaMultiply {
+    final static private Logger logger = Logger.getLogger();
+
+    /** Rows of the micro-kernel */
+    static final int MR = 4;
+
+    /** Columns of the micro-kernel */
+    static final int NR = 4;
+
+    /** Inner block size (a packed MR x KC sliver of A fits in L1) */
+    static final int KC = 256;
+
+    /** Rows of a block of C (the packed MC x KC block of A fits in L2) */
+    static final int MC = 128;
+
+    /** Columns of a block of C */
+    static final int NC = 512;
+
+    /** Below this number of multiply-adds, products are not parallelised */
+    static final double PARALLEL_THRESHOLD = 1 << 21;
+
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Set for the threads of our pool (to avoid waiting on ourselves) */
+    static final ThreadLocal<Boolean> WORKER = new ThreadLocal<Boolean>();
+
+    static private ExecutorService executor;
+
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(THREADS,
+                new ThreadFactory() {
+                    int count = 0;
+
+                    public synchronized Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(new Runnable() {
+                            public void run() {
+                                WORKER.set(Boolean.TRUE);
+                                r.run();
+                            }
+                        }, "gemm-" + count++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        return executor;
+    }
+
+    /**
+     * Computes C = alpha A B + beta C where A is (m x n) and B is (n x p).
+     * Element (i,j) of X is at <code>x[xOffset + i * xRows + j * xColumns]</code>
+     * (the strides are swapped for a transposed matrix). C must not share
+     * elements with A or B.
+     */
+    public static void gemm(final int m, final int n, final int p,
+        final double alpha, final double[] a, final int aOffset,
+        final int aRows, final int aColumns, final double[] b,
+        final int bOffset, final int bRows, final int bColumns,
+        final double beta, final double[] c, final int cOffset,
+        final int cRows, final int cColumns) {
+        if (m == 0 || p == 0)
+            return;
+
+        final int rowBlocks = (m + MC - 1) / MC;
+        final int columnBlocks = (p + NC - 1) / NC;
+        final int blocks = rowBlocks * columnBlocks;
+
+        if (blocks == 1 || THREADS == 1 || WORKER.get() != null
+            || (double)m * n * p < PARALLEL_THRESHOLD) {
+            double[] packedA = new double[Math.min(MC, m + MR) * KC];
+            double[] packedB = new double[Math.min(NC, p + NR) * KC];
+            for (int block = 0; block < blocks; block++)
+                block(block / columnBlocks, block % columnBlocks, m, n, p,
+                    alpha, a, aOffset, aRows, aColumns, b, bOffset, bRows,
+                    bColumns, beta, c, cOffset, cRows, cColumns, packedA,
+                    packedB);
+            return;
+        }
+
+        // Each task computes a set of blocks of C (interleaved, so that tasks
+        // have the same amount of work)
+        final int tasks = Math.min(THREADS, blocks);
+        logger.debug("Multiplying (%d x %d) by (%d x %d) with %d tasks", m, n,
+            n, p, tasks);
+        ArrayList<Callable<Object>> list = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < tasks; t++) {
+            final int first = t;
+            list.add(new Callable<Object>() {
+                public Object call() {
+                    double[] packedA = new double[MC * KC];
+                    double[] packedB = new double[(NC + NR) * KC];
+                    for (int block = first; block < blocks; block += tasks)
+                        block(block / columnBlocks, block % columnBlocks, m, n,
+                            p, alpha, a, aOffset, aRows, aColumns, b, bOffset,
+                            bRows, bColumns, beta, c, cOffset, cRows, cColumns,
+                            packedA, packedB);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Object> future : getExecutor().invokeAll(list))
+                future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted matrix multiplication", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Computes the block (ib, jb) of C
+     */
+    static void block(int ib, int jb, int m, int n, int p, double alpha,
+        double[] a, int aOffset, int aRows, int aColumns, double[] b,
+        int bOffset, int bRows, int bColumns, double beta, double[] c,
+        int cOffset, int cRows, int cColumns, double[] packedA,
+        double[] packedB) {
+        final int i0 = ib * MC, mc = Math.min(MC, m - i0);
+        final int j0 = jb * NC, nc = Math.min(NC, p - j0);
+
+        // Scale the block of C
+        if (beta != 1)
+            for (int i = 0; i < mc; i++) {
+                int index = cOffset + (i0 + i) * cRows + j0 * cColumns;
+                for (int j = 0; j < nc; j++, index += cColumns)
+                    c[index] = beta == 0 ? 0 : beta * c[index];
+            }
+        if (alpha == 0)
+            return;
+
+        for (int k0 = 0; k0 < n; k0 += KC) {
+            final int kc = Math.min(KC, n - k0);
+            pack(b, bOffset + k0 * bRows + j0 * bColumns, bColumns, bRows, nc,
+                kc, NR, packedB);
+            pack(a, aOffset + i0 * aRows + k0 * aColumns, aRows, aColumns, mc,
+                kc, MR, packedA);
+
+            for (int jr = 0; jr < nc; jr += NR) {
+                final int nr = Math.min(NR, nc - jr);
+                for (int ir = 0; ir < mc; ir += MR)
+                    kernel(kc, alpha, packedA, ir * kc, packedB, jr * kc, c,
+                        cOffset + (i0 + ir) * cRows + (j0 + jr) * cColumns,
+                        cRows, cColumns, Math.min(MR, mc - ir), nr);
+            }
+        }
+    }
+
+    /**
+     * Packs a (size x kc) part of a matrix into slivers of <code>width</code>
+     * lines: the sliver s contains, for each k, the elements of lines
+     * <code>s * width</code> to <code>(s + 1) * width - 1</code> (padded with
+     * zeros)
+     *
+     * @param lineStride The stride between two lines
+     * @param kStride The stride between two elements of a line
+     */
+    static void pack(double[] x, int offset, int lineStride, int kStride,
+        int size, int kc, int width, double[] packed) {
+        int index = 0;
+        for (int l0 = 0; l0 < size; l0 += width) {
+            final int w = Math.min(width, size - l0);
+            final int start = offset + l0 * lineStride;
+            if (w == width && width == 4) {
+                int k0 = start, k1 = k0 + lineStride, k2 = k1 + lineStride, k3 = k2
+                    + lineStride;
+                for (int k = 0; k < kc; k++) {
+                    packed[index] = x[k0];
+                    packed[index + 1] = x[k1];
+                    packed[index + 2] = x[k2];
+                    packed[index + 3] = x[k3];
+                    index += 4;
+                    k0 += kStride;
+                    k1 += kStride;
+                    k2 += kStride;
+                    k3 += kStride;
+                }
+            }
+            else
+                for (int k = 0; k < kc; k++) {
+                    int l = 0;
+                    for (; l < w; l++)
+                        packed[index++] = x[start + l * lineStride + k
+                            * kStride];
+                    for (; l < width; l++)
+                        packed[index++] = 0;
+                }
+        }
+    }
+
+    /**
+     * Adds alpha times the product of a packed sliver of A and of a packed
+     * sliver of B to a (mr x nr) block of C
+     */
+    static void kernel(int kc, double alpha, double[] a, int ai, double[] b,
+        int bi, double[] c, int ci, int cRows, int cColumns, int mr, int nr) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for (int k = 0; k < kc; k++, ai += MR, bi += NR) {
+            final double a0 = a[ai], a1 = a[ai + 1], a2 = a[ai + 2], a3 = a[ai + 3];
+            final double b0 = b[bi], b1 = b[bi + 1], b2 = b[bi + 2], b3 = b[bi + 3];
+            c00 += a0 * b0;
+            c01 += a0 * b1;
+            c02 += a0 * b2;
+            c03 += a0 * b3;
+            c10 += a1 * b0;
+            c11 += a1 * b1;
+            c12 += a1 * b2;
+            c13 += a1 * b3;
+            c20 += a2 * b0;
+            c21 += a2 * b1;
+            c22 += a2 * b2;
+            c23 += a2 * b3;
+            c30 += a3 * b0;
+            c31 += a3 * b1;
+            c32 += a3 * b2;
+            c33 += a3 * b3;
+        }
+
+        if (mr == MR && nr == NR) {
+            final int c1 = cColumns, c2 = 2 * cColumns, c3 = 3 * cColumns;
+            c[ci] += alpha * c00;
+            c[ci + c1] += alpha * c01;
+            c[ci + c2] += alpha * c02;
+            c[ci + c3] += alpha * c03;
+            ci += cRows;
+            c[ci] += alpha * c10;
+            c[ci + c1] += alpha * c11;
+            c[ci + c2] += alpha * c12;
+            c[ci + c3] += alpha * c13;
+            ci += cRows;
+            c[ci] += alpha * c20;
+            c[ci + c1] += alpha * c21;
+            c[ci + c2] += alpha * c22;
+            c[ci + c3] += alpha * c23;
+            ci += cRows;
+            c[ci] += alpha * c30;
+            c[ci + c1] += alpha * c31;
+            c[ci + c2] += alpha * c32;
+            c[ci + c3] += alpha * c33;
+            return;
+        }
+
+        // Partial block
+        final double[] r = { c00, c01, c02, c03, c10, c11, c12, c13, c20,
+            c21, c22, c23, c30, c31, c32, c33 };
+        for (int i = 0; i < mr; i++)
+            for (int j = 0; j < nr; j++)
+                c[ci + i * cRows + j * cColumns] += alpha * r[i * NR + j];
+    }
+
+    /**
+     * The complexity of {@link #gemm}, which is lower than the one of the
+     * non-blocked loops but higher than the one of BLAS
+     */
+    static double complexity(int m, int n, int p) {
+        return (double)m * n * p / 8.;
+    }
+
+    /**
+     * Returns the inner product of x and y (n elements each)
+     */
+    public static double dot(int n, double[] x, int xOffset, int xStride,
+        double[] y, int yOffset, int yStride) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        if (xStride == 1 && yStride == 1) {
+            for (; i + 3 < n; i += 4) {
+                s0 += x[xOffset + i] * y[yOffset + i];
+                s1 += x[xOffset + i + 1] * y[yOffset + i + 1];
+                s2 += x[xOffset + i + 2] * y[yOffset + i + 2];
+                s3 += x[xOffset + i + 3] * y[yOffset + i + 3];
+            }
+            for (; i < n; i++)
+                s0 += x[xOffset + i] * y[yOffset + i];
+        }
+        else {
+            int ix = xOffset, iy = yOffset;
+            for (; i + 3 < n; i += 4) {
+                s0 += x[ix] * y[iy];
+                s1 += x[ix + xStride] * y[iy + yStride];
+                s2 += x[ix + 2 * xStride] * y[iy + 2 * yStride];
+                s3 += x[ix + 3 * xStride] * y[iy + 3 * yStride];
+                ix += 4 * xStride;
+                iy += 4 * yStride;
+            }
+            for (; i < n; i++, ix += xStride, iy += yStride)
+                s0 += x[ix] * y[iy];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Computes y = alpha x + y (n elements each)
+     */
+    public static void axpy(int n, double alpha, double[] x, int xOffset,
+        int xStride, double[] y, int yOffset, int yStride) {
+        if (alpha == 0)
+            return;
+        int i = 0;
+        if (xStride == 1 && yStride == 1) {
+            for (; i + 3 < n; i += 4) {
+                y[yOffset + i] += alpha * x[xOffset + i];
+                y[yOffset + i + 1] += alpha * x[xOffset + i + 1];
+                y[yOffset + i + 2] += alpha * x[xOffset + i + 2];
+                y[yOffset + i + 3] += alpha * x[xOffset + i + 3];
+            }
+            for (; i < n; i++)
+                y[yOffset + i] += alpha * x[xOffset + i];
+        }
+        else
+            for (int ix = xOffset, iy = yOffset; i < n; i++, ix += xStride, iy += yStride)
+                y[iy] += alpha * x[ix];
+    }
+
+    /**
+     * Computes y = alpha A x + beta y where A is (m x n), and element (i,j) of
+     * A is at <code>a[aOffset + i * aRows + j * aColumns]</code>
+     */
+    public static void gemv(int m, int n, double alpha, double[] a,
+        int aOffset, int aRows, int aColumns, double[] x, int xOffset,
+        int xStride, double beta, double[] y, int yOffset, int yStride) {
+        if (Math.abs(aColumns) <= Math.abs(aRows)) {
+            // Rows are (nearly) contiguous: one inner product per row
+            for (int i = 0, iy = yOffset; i < m; i++, iy += yStride) {
+                final double s = alpha
+                    * dot(n, a, aOffset + i * aRows, aColumns, x, xOffset,
+                        xStride);
+                y[iy] = beta == 0 ? s : s + beta * y[iy];
+            }
+        }
+        else {
+            // Columns are contiguous: y is updated column by column
+            for (int i = 0, iy = yOffset; i < m; i++, iy += yStride)
+                y[iy] = beta == 0 ? 0 : beta * y[iy];
+            for (int j = 0, ix = xOffset; j < n; j++, ix += xStride)
+                axpy(m, alpha * x[ix], a, aOffset + j * aColumns, aRows, y,
+                    yOffset, yStride);
+        }
+    }
+
+    /**
+     * Computes A = A + alpha x y' where A is (m x n)
+     */
+    public static void ger(int m, int n, double alpha, double[] x,
+        int xOffset, int xStride, double[] y, int yOffset, int yStride,
+        double[] a, int aOffset, int aRows, int aColumns) {
+        if (Math.abs(aColumns) <= Math.abs(aRows))
+            for (int i = 0, ix = xOffset; i < m; i++, ix += xStride)
+                axpy(n, alpha * x[ix], y, yOffset, yStride, a, aOffset + i
+                    * aRows, aColumns);
+        else
+            for (int j = 0, iy = yOffset; j < n; j++, iy += yStride)
+                axpy(m, alpha * y[iy], x, xOffset, xStride, a, aOffset + j
+                    * aColumns, aRows);
+    }
+
+    /**
+     * Inner product of dense vectors
+     */
+    final public static class DenseInnerProduct implements
+        InnerProduct<DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        @Override
+        public double innerProduct(DenseDoubleMatrix1D x, DenseDoubleMatrix1D y) {
+            return dot(x.size, x.elements, x.offset, x.stride, y.elements,
+                y.offset, y.stride);
+        }
+
+        @Override
+        public double complexity(int m) {
+            return m / 4.;
+        }
+    }
+
+    /**
+     * Multiplies a row-major dense matrix by a dense vector
+     */
+    final public static class DenseMultiplier1D
+        implements
+        Multiplier1D<DenseDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        @Override
+        public DenseDoubleMatrix1D multiply(DenseDoubleMatrix2D A,
+            DenseDoubleMatrix1D x, DenseDoubleMatrix1D y, double alpha,
+            double beta, boolean transposeA) {
+            final int m = transposeA ? A.columns : A.rows;
+            final int n = transposeA ? A.rows : A.columns;
+            if (y == null)
+                y = new DenseDoubleMatrix1D(m);
+            gemv(m, n, alpha, A.elements, A.offset, transposeA ? 1
+                : A.rowStride, transposeA ? A.rowStride : 1, x.elements,
+                x.offset, x.stride, beta, y.elements, y.offset, y.stride);
+            return y;
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return (double)m * n / 4.;
+        }
+    }
+
+    /**
+     * Multiplies a column-major dense matrix by a dense vector
+     */
+    final public static class CDenseMultiplier1D
+        implements
+        Multiplier1D<CDenseDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        @Override
+        public DenseDoubleMatrix1D multiply(CDenseDoubleMatrix2D A,
+            DenseDoubleMatrix1D x, DenseDoubleMatrix1D y, double alpha,
+            double beta, boolean transposeA) {
+            final int m = transposeA ? A.columns : A.rows;
+            final int n = transposeA ? A.rows : A.columns;
+            if (y == null)
+                y = new DenseDoubleMatrix1D(m);
+            gemv(m, n, alpha, A.getBackingArray(), A.offset,
+                transposeA ? A.colStride : 1, transposeA ? 1 : A.colStride,
+                x.elements, x.offset, x.stride, beta, y.elements, y.offset,
+                y.stride);
+            return y;
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return (double)m * n / 4.;
+        }
+    }
+
+    /**
+     * Rank one update of a row-major dense matrix
+     */
+    final public static class DenseRankOneUpdater
+        implements
+        RankOneUpdater<DenseDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        @Override
+        public void update(double alpha, DenseDoubleMatrix2D mA,
+            DenseDoubleMatrix1D x, DenseDoubleMatrix1D y) {
+            ger(x.size, y.size, alpha, x.elements, x.offset, x.stride,
+                y.elements, y.offset, y.stride, mA.elements, mA.offset,
+                mA.rowStride, 1);
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return (double)m * n / 4.;
+        }
+    }
+
+    /**
+     * Rank one update of a column-major dense matrix
+     */
+    final public static class CDenseRankOneUpdater
+        implements
+        RankOneUpdater<CDenseDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> {
+        @Override
+        public void update(double alpha, CDenseDoubleMatrix2D mA,
+            DenseDoubleMatrix1D x, DenseDoubleMatrix1D y) {
+            ger(x.size, y.size, alpha, x.elements, x.offset, x.stride,
+                y.elements, y.offset, y.stride, mA.getBackingArray(),
+                mA.offset, 1, mA.colStride);
+        }
+
+        @Override
+        public double complexity(int m, int n) {
+            return (double)m * n / 4.;
+        }
+    }
+
+    /**
+     * Multiplies row-major dense matrices
+     */
+    final public static class DenseMultiplier2D
+        implements
+        Multiplier2D<DenseDoubleMatrix2D, DenseDoubleMatrix2D, DenseDoubleMatrix2D> {
+        @Override
+        public DenseDoubleMatrix2D multiply(DenseDoubleMatrix2D A,
+            DenseDoubleMatrix2D B, DenseDoubleMatrix2D C, double alpha,
+            double beta, boolean transposeA, boolean transposeB) {
+            final int m = transposeA ? A.columns : A.rows;
+            final int n = transposeA ? A.rows : A.columns;
+            final int p = transposeB ? B.rows : B.columns;
+            if (C == null)
+                C = new DenseDoubleMatrix2D(m, p);
+
+            gemm(m, n, p, alpha, A.elements, A.offset, transposeA ? 1
+                : A.rowStride, transposeA ? A.rowStride : 1, B.elements,
+                B.offset, transposeB ? 1 : B.rowStride, transposeB ? B.rowStride
+                    : 1, beta, C.elements, C.offset, C.rowStride, 1);
+            return C;
+        }
+
+        @Override
+        public double complexity(int m, int n, int p) {
+            return JavaMultiply.complexity(m, n, p);
+        }
+    }
+
+    /**
+     * Multiplies column-major dense matrices
+     */
+    final public static class CDenseMultiplier2D
+        implements
+        Multiplier2D<CDenseDoubleMatrix2D, CDenseDoubleMatrix2D, CDenseDoubleMatrix2D> {
+        @Override
+        public CDenseDoubleMatrix2D multiply(CDenseDoubleMatrix2D A,
+            CDenseDoubleMatrix2D B, CDenseDoubleMatrix2D C, double alpha,
+            double beta, boolean transposeA, boolean transposeB) {
+            final int m = transposeA ? A.columns : A.rows;
+            final int n = transposeA ? A.rows : A.columns;
+            final int p = transposeB ? B.rows : B.columns;
+            if (C == null)
+                C = new CDenseDoubleMatrix2D(m, p);
+
+            gemm(m, n, p, alpha, A.getBackingArray(), A.offset,
+                transposeA ? A.colStride : 1, transposeA ? 1 : A.colStride, B
+                    .getBackingArray(), B.offset, transposeB ? B.colStride : 1,
+                transposeB ? 1 : B.colStride, beta, C.getBackingArray(),
+                C.offset, 1, C.colStride);
+            return C;
+        }
+
+        @Override
+        public double complexity(int m, int n, int p) {
+            return JavaMultiply.complexity(m, n, p);
+        }
+    }
+}
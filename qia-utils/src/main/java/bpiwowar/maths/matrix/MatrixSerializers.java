@@ -0,0 +1,167 @@
+package bpiwowar.maths.matrix;
+
+import bpiwowar.io.StreamSerializer;
+import bpiwowar.io.StreamSerializers;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary serializers for vectors and matrices. Dense matrices are
+ * written as a header followed by the raw values; sparse vectors by their non
+ * zero entries.
+ *
+ * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
+ */
+public class MatrixSerializers {
+    static final byte DENSE = 0;
+
+    static final byte SPARSE = 1;
+
+    static final byte COLUMN_DENSE = 2;
+
+    private MatrixSerializers() {
+    }
+
+    /**
+     * Vectors: dense vectors are read back as {@link DenseDoubleMatrix1D},
+     * sparse vectors as {@link SparseDoubleMatrix1D}, and any other vector as
+     * a dense one.
+     */
+    static final public StreamSerializer<DoubleMatrix1D> DOUBLE_MATRIX_1D = new StreamSerializer<DoubleMatrix1D>() {
+        @Override
+        public void write(OutputStream out, DoubleMatrix1D v)
+            throws IOException {
+            DataOutputStream dOut = new DataOutputStream(out);
+            if (v instanceof SparseDoubleMatrix1D) {
+                final SparseDoubleMatrix1D sv = (SparseDoubleMatrix1D)v;
+                final int n = sv.values.size();
+                final int[] indices = new int[n];
+                final double[] values = new double[n];
+                int k = 0;
+                for (Int2DoubleMap.Entry entry : sv.values.int2DoubleEntrySet()) {
+                    indices[k] = entry.getIntKey();
+                    values[k++] = entry.getDoubleValue();
+                }
+                dOut.writeByte(SPARSE);
+                dOut.writeInt(sv.size);
+                dOut.writeInt(n);
+                StreamSerializers.writeInts(out, indices, 0, 1, n);
+                StreamSerializers.writeDoubles(out, values, 0, 1, n);
+                return;
+            }
+
+            dOut.writeByte(DENSE);
+            dOut.writeInt(v.size);
+            if (v instanceof DenseDoubleMatrix1D) {
+                final DenseDoubleMatrix1D dv = (DenseDoubleMatrix1D)v;
+                StreamSerializers.writeDoubles(out, dv.elements, dv.offset,
+                    dv.stride, dv.size);
+            }
+            else {
+                final double[] values = new double[v.size];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = v.get(i);
+                StreamSerializers.writeDoubles(out, values, 0, 1, v.size);
+            }
+        }
+
+        @Override
+        public DoubleMatrix1D read(InputStream in) throws IOException {
+            DataInputStream dIn = new DataInputStream(in);
+            final byte type = dIn.readByte();
+            final int size = dIn.readInt();
+            switch (type) {
+                case DENSE: {
+                    final double[] values = new double[size];
+                    StreamSerializers.readDoubles(in, values, 0, 1, size);
+                    return new DenseDoubleMatrix1D(values, 0, 1, size);
+                }
+                case SPARSE: {
+                    final int n = dIn.readInt();
+                    final int[] indices = new int[n];
+                    final double[] values = new double[n];
+                    StreamSerializers.readInts(in, indices, 0, 1, n);
+                    StreamSerializers.readDoubles(in, values, 0, 1, n);
+                    SparseDoubleMatrix1D v = new SparseDoubleMatrix1D(size);
+                    for (int k = 0; k < n; k++)
+                        v.set(indices[k], values[k]);
+                    return v;
+                }
+                default:
+                    throw new IOException(String.format(
+                        "Unknown vector type %d", type));
+            }
+        }
+    };
+
+    /**
+     * Matrices: column major matrices are read back as
+     * {@link CDenseDoubleMatrix2D}, any other matrix as a (row major)
+     * {@link DenseDoubleMatrix2D}.
+     */
+    static final public StreamSerializer<DoubleMatrix2D> DOUBLE_MATRIX_2D = new StreamSerializer<DoubleMatrix2D>() {
+        @Override
+        public void write(OutputStream out, DoubleMatrix2D m)
+            throws IOException {
+            DataOutputStream dOut = new DataOutputStream(out);
+            if (m instanceof CDenseDoubleMatrix2D) {
+                dOut.writeByte(COLUMN_DENSE);
+                dOut.writeInt(m.rows);
+                dOut.writeInt(m.columns);
+                for (int j = 0; j < m.columns; j++) {
+                    final DenseDoubleMatrix1D column = (DenseDoubleMatrix1D)m
+                        .viewColumn(j);
+                    StreamSerializers.writeDoubles(out, column.elements,
+                        column.offset, column.stride, m.rows);
+                }
+                return;
+            }
+
+            dOut.writeByte(DENSE);
+            dOut.writeInt(m.rows);
+            dOut.writeInt(m.columns);
+            if (m instanceof DenseDoubleMatrix2D) {
+                final DenseDoubleMatrix2D dm = (DenseDoubleMatrix2D)m;
+                if (dm.rowStride == dm.columns)
+                    StreamSerializers.writeDoubles(out, dm.elements,
+                        dm.offset, 1, dm.rows * dm.columns);
+                else
+                    for (int i = 0; i < dm.rows; i++)
+                        StreamSerializers.writeDoubles(out, dm.elements,
+                            dm.offset + i * dm.rowStride, 1, dm.columns);
+            }
+            else {
+                final double[] row = new double[m.columns];
+                for (int i = 0; i < m.rows; i++) {
+                    for (int j = 0; j < row.length; j++)
+                        row[j] = m.get(i, j);
+                    StreamSerializers.writeDoubles(out, row, 0, 1, row.length);
+                }
+            }
+        }
+
+        @Override
+        public DoubleMatrix2D read(InputStream in) throws IOException {
+            DataInputStream dIn = new DataInputStream(in);
+            final byte type = dIn.readByte();
+            final int rows = dIn.readInt();
+            final int columns = dIn.readInt();
+            final double[] values = new double[rows * columns];
+            StreamSerializers.readDoubles(in, values, 0, 1, values.length);
+            switch (type) {
+                case DENSE:
+                    return new DenseDoubleMatrix2D(rows, columns, values);
+                case COLUMN_DENSE:
+                    return new CDenseDoubleMatrix2D(rows, columns, values,
+                        rows, 0);
+                default:
+                    throw new IOException(String.format(
+                        "Unknown matrix type %d", type));
+            }
+        }
+    };
+}
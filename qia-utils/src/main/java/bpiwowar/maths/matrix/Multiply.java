@@ -16,11 +16,9 @@ import java.lang.reflect.Type;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Central class to multiply two matrices
@@ -71,8 +69,9 @@ public class Multiply {
         DoubleMatrix2D C, double alpha, double beta, boolean transposeA,
         boolean transposeB) {
 
-        logger.debug("Multiply %s [%b] with %s [%b] (result in %s)", A, B,
-            transposeA, transposeB, C);
+        if (logger.isDebugEnabled())
+            logger.debug("Multiply %s [%b] with %s [%b] (result in %s)", A,
+                transposeA, B, transposeB, C);
 
         // --- Check dimensions
         final int m = transposeA ? A.columns : A.rows;
@@ -97,43 +96,14 @@ public class Multiply {
 
         // --- Find a suitable handler for the pair of matrices
 
-        final Class<? extends DoubleMatrix2D> aClass = A.getClass();
-        final Class<? extends DoubleMatrix2D> bClass = B.getClass();
-        final Class<? extends DoubleMatrix2D> cClass = C != null ? C.getClass()
-            : null;
-
-        TrieKey key = new TrieKey(aClass, bClass, cClass);
-
         @SuppressWarnings("unchecked")
-        Collection<Multiplier2D> list = getMatchingCandidates(key,
-            multipliers2D, multipliers2DCache);
-
+        final Multiplier2D multiplier = multipliers2DDispatcher.get(A
+            .getClass(), B.getClass(), C != null ? C.getClass() : null, m, n,
+            p);
         @SuppressWarnings("unchecked")
-        Multiplier2D multiplier = null;
-        double minComplexity = Double.POSITIVE_INFINITY;
-
-        for (Multiplier2D<?, ?, ?> candidate : list) {
-            double complexity = candidate.complexity(m, n, p);
-            logger.debug("Multiplier %s for %s has complexity %g", candidate
-                .getClass(), key, complexity);
-            if (complexity < minComplexity) {
-                minComplexity = complexity;
-                multiplier = candidate;
-            }
-        }
-
-        if (multiplier != null) {
-            logger.debug("Selected multiplier %s", multiplier.getClass());
-            @SuppressWarnings("unchecked")
-            DoubleMatrix2D r = multiplier.multiply(A, B, C, alpha, beta,
-                transposeA, transposeB);
-            return r;
-        }
-
-        // --- Should not happen
-        throw new RuntimeException(String.format(
-            "Did not find a suitable multiplication handler for %s and %s",
-            aClass, bClass));
+        DoubleMatrix2D r = multiplier.multiply(A, B, C, alpha, beta,
+            transposeA, transposeB);
+        return r;
 
     }
 
@@ -232,38 +202,8 @@ public class Multiply {
 
         // --- Find a suitable handler for the pair of matrices
 
-        final Class<? extends DoubleMatrix2D> aClass = mA.getClass();
-        final Class<? extends DoubleMatrix1D> bClass = x.getClass();
-        final Class<? extends DoubleMatrix1D> cClass = y.getClass();
-
-        TrieKey key = new TrieKey(aClass, bClass, cClass);
-
-        Collection<RankOneUpdater> list = getMatchingCandidates(key,
-            rankOneUpdaters, rankOneUpdatersCache);
-
-        RankOneUpdater updater = null;
-        double minComplexity = Double.POSITIVE_INFINITY;
-
-        for (RankOneUpdater<?, ?, ?> candidate : list) {
-            double complexity = candidate.complexity(x.size, y.size);
-            logger.debug("Rank one updater %s for %s has complexity %g",
-                candidate.getClass(), key, complexity);
-            if (complexity < minComplexity) {
-                minComplexity = complexity;
-                updater = candidate;
-            }
-        }
-
-        if (updater != null) {
-            logger.debug("Selected updater %s", updater.getClass());
-            updater.update(alpha, mA, x, y);
-            return;
-        }
-
-        // --- Should not happen
-        throw new RuntimeException(String.format(
-            "Did not find a suitable multiplication handler for %s and %s",
-            aClass, bClass));
+        rankOneUpdatersDispatcher.get(mA.getClass(), x.getClass(),
+            y.getClass(), x.size, y.size, 0).update(alpha, mA, x, y);
 
     }
 
@@ -366,43 +306,14 @@ public class Multiply {
 
         // --- Find a suitable handler for the pair of matrices
 
-        final Class<? extends DoubleMatrix2D> aClass = A.getClass();
-        final Class<? extends DoubleMatrix1D> bClass = x.getClass();
-        final Class<? extends DoubleMatrix1D> cClass = y != null ? y.getClass()
-            : null;
-
-        TrieKey key = new TrieKey(aClass, bClass, cClass);
         @SuppressWarnings("unchecked")
-        Collection<Multiplier1D> list = getMatchingCandidates(key,
-            multipliers1D, multipliers1DCache);
-
+        final Multiplier1D multiplier = multipliers1DDispatcher.get(A
+            .getClass(), x.getClass(), y != null ? y.getClass() : null, m, n,
+            0);
         @SuppressWarnings("unchecked")
-        Multiplier1D multiplier = null;
-        double minComplexity = Double.POSITIVE_INFINITY;
-
-        for (Multiplier1D<?, ?, ?> candidate : list) {
-            double complexity = candidate.complexity(m, n);
-            logger.debug("Multiplier %s for %s has complexity %g", candidate
-                .getClass(), key, complexity);
-            if (complexity < minComplexity) {
-                minComplexity = complexity;
-                multiplier = candidate;
-            }
-        }
-
-        if (multiplier != null) {
-            logger.debug("Selected multiplier %s", multiplier.getClass());
-
-            @SuppressWarnings("unchecked")
-            DoubleMatrix1D r = multiplier.multiply(A, x, y, alpha, beta,
-                transposeA);
-            return r;
-        }
-
-        // --- Should not happen
-        throw new RuntimeException(String.format(
-            "Did not find a suitable multiplication handler for %s and %s",
-            aClass, bClass));
+        DoubleMatrix1D r = multiplier.multiply(A, x, y, alpha, beta,
+            transposeA);
+        return r;
 
     }
 
@@ -479,40 +390,10 @@ public class Multiply {
 
         // --- Find a suitable handler for the pair of matrices
 
-        final Class<? extends DoubleMatrix1D> aClass = x.getClass();
-        final Class<? extends DoubleMatrix1D> bClass = y.getClass();
-
-        TrieKey key = new TrieKey(aClass, bClass);
         @SuppressWarnings("unchecked")
-        Collection<InnerProduct> list = getMatchingCandidates(key,
-            innerProducts, innerProductsCache);
-
-        @SuppressWarnings("unchecked")
-        InnerProduct handler = null;
-        double minComplexity = Double.POSITIVE_INFINITY;
-
-        for (InnerProduct<?, ?> candidate : list) {
-            double complexity = candidate.complexity(n);
-            logger.debug("Multiplier %s for %s has complexity %g", candidate
-                .getClass(), key, complexity);
-            if (complexity < minComplexity) {
-                minComplexity = complexity;
-                handler = candidate;
-            }
-        }
-
-        if (handler != null) {
-            logger.debug("Selected multiplier %s", handler.getClass());
-
-            @SuppressWarnings("unchecked")
-            double r = handler.innerProduct(x, y);
-            return r;
-        }
-
-        // --- Should not happen
-        throw new RuntimeException(String.format(
-            "Did not find a suitable multiplication handler for %s and %s",
-            aClass, bClass));
+        double r = innerProductsDispatcher.get(x.getClass(), y.getClass(),
+            null, n, 0, 0).innerProduct(x, y);
+        return r;
 
     }
 
@@ -544,35 +425,112 @@ public class Multiply {
     // --------------------------------
 
     /**
-     * Get a matching multiplier using a cache
+     * Key of the dispatch caches: the classes of the operands and a size class
+     */
+    static final class DispatchKey {
+        final Class<?> a, b, c;
+
+        final int sizes;
+
+        DispatchKey(Class<?> a, Class<?> b, Class<?> c, int sizes) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.sizes = sizes;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(a);
+            result = 31 * result + System.identityHashCode(b);
+            result = 31 * result + System.identityHashCode(c);
+            return 31 * result + sizes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DispatchKey))
+                return false;
+            final DispatchKey other = (DispatchKey)obj;
+            return a == other.a && b == other.b && c == other.c
+                && sizes == other.sizes;
+        }
+    }
+
+    /**
+     * Selects the implementation of an operation for given operand classes and
+     * sizes. The choice is cached (without locking) for the operand classes
+     * and the size class, i.e. the number of bits of each dimension: the
+     * complexities are only evaluated the first time a size class is seen.
      *
-     * @param <T>
-     * @param key The key
-     * @param candidates The potential candidates
-     * @param cache The candidate cache
-     * @return
+     * @param <T> The type of the implementations
      */
-    private static <T> Collection<T> getMatchingCandidates(TrieKey key,
-        List<Pair<TrieKey, T>> candidates, Map<TrieKey, List<T>> cache) {
-        // Search into the cachs
-        synchronized (cache) {
-            List<T> list = cache.get(key);
-            if (list != null)
-                return list;
-
-            list = GenericHelper.newArrayList();
+    static abstract class Dispatcher<T> {
+        final String name;
+
+        final List<Pair<TrieKey, T>> candidates;
+
+        /** Number of operands */
+        final int arity;
+
+        final ConcurrentHashMap<DispatchKey, T> chosen = new ConcurrentHashMap<DispatchKey, T>();
+
+        Dispatcher(String name, List<Pair<TrieKey, T>> candidates, int arity) {
+            this.name = name;
+            this.candidates = candidates;
+            this.arity = arity;
+        }
+
+        /** Returns the complexity of a candidate */
+        abstract double complexity(T candidate, int m, int n, int p);
+
+        static int sizeClass(int m, int n, int p) {
+            return (32 - Integer.numberOfLeadingZeros(m))
+                | (32 - Integer.numberOfLeadingZeros(n)) << 6
+                | (32 - Integer.numberOfLeadingZeros(p)) << 12;
+        }
+
+        T get(Class<?> a, Class<?> b, Class<?> c, int m, int n, int p) {
+            final DispatchKey key = new DispatchKey(a, b, c, sizeClass(m, n, p));
+            final T implementation = chosen.get(key);
+            if (implementation != null)
+                return implementation;
+
+            final T selected = select(a, b, c, m, n, p);
+            final T previous = chosen.putIfAbsent(key, selected);
+            return previous != null ? previous : selected;
+        }
+
+        private T select(Class<?> a, Class<?> b, Class<?> c, int m, int n,
+            int p) {
+            final TrieKey key = arity == 2 ? new TrieKey(a, b) : new TrieKey(
+                a, b, c);
+
+            T selected = null;
+            double minComplexity = Double.POSITIVE_INFINITY;
             for (Pair<TrieKey, T> candidate : candidates) {
-                Status compare = candidate.getFirst().compare(key);
-                if (compare == Status.EQUAL || compare == Status.LESS) {
-                    list.add(candidate.getSecond());
-                    logger.debug("Added a multiplier for %s: %s", key,
-                        candidate.getSecond().getClass());
+                final Status compare = candidate.getFirst().compare(key);
+                if (compare != Status.EQUAL && compare != Status.LESS)
+                    continue;
+                final double complexity = complexity(candidate.getSecond(), m,
+                    n, p);
+                if (logger.isDebugEnabled())
+                    logger.debug("%s %s for %s has complexity %g", name,
+                        candidate.getSecond().getClass(), key, complexity);
+                if (complexity < minComplexity) {
+                    minComplexity = complexity;
+                    selected = candidate.getSecond();
                 }
             }
 
-            logger.debug("Added a cache for %s (of size %d)", key, list.size());
-            cache.put(key, list);
-            return list;
+            if (selected == null)
+                throw new RuntimeException(String.format(
+                    "Did not find a suitable %s for %s", name, key));
+
+            if (logger.isDebugEnabled())
+                logger.debug("Selected %s %s for %s", name, selected
+                    .getClass(), key);
+            return selected;
         }
     }
 
@@ -582,9 +540,15 @@ public class Multiply {
     @SuppressWarnings("unchecked")
     static ArrayList<Pair<TrieKey, Multiplier2D>> multipliers2D = GenericHelper
         .newArrayList();
+
     @SuppressWarnings("unchecked")
-    static HashMap<TrieKey, List<Multiplier2D>> multipliers2DCache = GenericHelper
-        .newHashMap();
+    static final Dispatcher<Multiplier2D> multipliers2DDispatcher = new Dispatcher<Multiplier2D>(
+        "multiplier", multipliers2D, 3) {
+        @Override
+        double complexity(Multiplier2D candidate, int m, int n, int p) {
+            return candidate.complexity(m, n, p);
+        }
+    };
 
     /**
      * Our list of 1D multiplications
@@ -592,9 +556,15 @@ public class Multiply {
     @SuppressWarnings("unchecked")
     static ArrayList<Pair<TrieKey, Multiplier1D>> multipliers1D = GenericHelper
         .newArrayList();
+
     @SuppressWarnings("unchecked")
-    static HashMap<TrieKey, List<Multiplier1D>> multipliers1DCache = GenericHelper
-        .newHashMap();
+    static final Dispatcher<Multiplier1D> multipliers1DDispatcher = new Dispatcher<Multiplier1D>(
+        "multiplier", multipliers1D, 3) {
+        @Override
+        double complexity(Multiplier1D candidate, int m, int n, int p) {
+            return candidate.complexity(m, n);
+        }
+    };
 
     /**
      * Our list of rank one updaters
@@ -602,9 +572,15 @@ public class Multiply {
     @SuppressWarnings("unchecked")
     static ArrayList<Pair<TrieKey, RankOneUpdater>> rankOneUpdaters = GenericHelper
         .newArrayList();
+
     @SuppressWarnings("unchecked")
-    static HashMap<TrieKey, List<RankOneUpdater>> rankOneUpdatersCache = GenericHelper
-        .newHashMap();
+    static final Dispatcher<RankOneUpdater> rankOneUpdatersDispatcher = new Dispatcher<RankOneUpdater>(
+        "rank one updater", rankOneUpdaters, 3) {
+        @Override
+        double complexity(RankOneUpdater candidate, int m, int n, int p) {
+            return candidate.complexity(m, n);
+        }
+    };
 
     /**
      * Our list of inner product
@@ -612,12 +588,93 @@ public class Multiply {
     @SuppressWarnings("unchecked")
     static ArrayList<Pair<TrieKey, InnerProduct>> innerProducts = GenericHelper
         .newArrayList();
+
     @SuppressWarnings("unchecked")
-    static HashMap<TrieKey, List<InnerProduct>> innerProductsCache = GenericHelper
-        .newHashMap();
+    static final Dispatcher<InnerProduct> innerProductsDispatcher = new Dispatcher<InnerProduct>(
+        "inner product", innerProducts, 2) {
+        @Override
+        double complexity(InnerProduct candidate, int m, int n, int p) {
+            return candidate.complexity(m);
+        }
+    };
+
+    // --------------------------------
+    // -------------------------------- Bound implementations
+    // --------------------------------
+
+    /**
+     * Returns the multiplier that {@link #multiply(DoubleMatrix2D,
+     * DoubleMatrix2D, DoubleMatrix2D, double, double, boolean, boolean)} would
+     * use for matrices of these classes and (approximately) these sizes, so
+     * that it can be looked up once outside a loop. The multiplier does not
+     * check the dimensions of its arguments.
+     *
+     * @param aClass The class of A
+     * @param bClass The class of B
+     * @param cClass The class of C, or null if the result is created by the
+     *            multiplier
+     * @param m The number of rows of op(A)
+     * @param n The number of columns of op(A)
+     * @param p The number of columns of op(B)
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends DoubleMatrix2D, U extends DoubleMatrix2D, R extends DoubleMatrix2D> Multiplier2D<T, U, R> getMultiplier2D(
+        Class<T> aClass, Class<U> bClass, Class<R> cClass, int m, int n, int p) {
+        return multipliers2DDispatcher.get(aClass, bClass, cClass, m, n, p);
+    }
+
+    /**
+     * Returns the matrix-vector multiplier for these classes and sizes (see
+     * {@link #getMultiplier2D(Class, Class, Class, int, int, int)})
+     *
+     * @param yClass The class of y, or null if the result is created by the
+     *            multiplier
+     * @param m The number of rows of op(A)
+     * @param n The number of columns of op(A)
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends DoubleMatrix2D, U extends DoubleMatrix1D, R extends DoubleMatrix1D> Multiplier1D<T, U, R> getMultiplier1D(
+        Class<T> aClass, Class<U> xClass, Class<R> yClass, int m, int n) {
+        return multipliers1DDispatcher.get(aClass, xClass, yClass, m, n, 0);
+    }
+
+    /**
+     * Returns the rank one updater for these classes and sizes (see
+     * {@link #getMultiplier2D(Class, Class, Class, int, int, int)})
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends DoubleMatrix2D, U extends DoubleMatrix1D, R extends DoubleMatrix1D> RankOneUpdater<T, U, R> getRankOneUpdater(
+        Class<T> aClass, Class<U> xClass, Class<R> yClass, int m, int n) {
+        return rankOneUpdatersDispatcher.get(aClass, xClass, yClass, m, n, 0);
+    }
+
+    /**
+     * Returns the inner product for these classes and size (see
+     * {@link #getMultiplier2D(Class, Class, Class, int, int, int)})
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends DoubleMatrix1D, U extends DoubleMatrix1D> InnerProduct<T, U> getInnerProduct(
+        Class<T> xClass, Class<U> yClass, int n) {
+        return innerProductsDispatcher.get(xClass, yClass, null, n, 0, 0);
+    }
 
     static final String MATRIX_MULTIPLY_CLASSES = "META-INF/services/bpiwowar.maths.matrix";
 
+    /**
+     * Creates an instance of a candidate, or returns null if it cannot work in
+     * this environment (e.g. if the BLAS library is not available)
+     */
+    private static Object newInstance(Class<?> candidate)
+        throws InstantiationException, IllegalAccessException {
+        try {
+            return candidate.newInstance();
+        }
+        catch (RuntimeException e) {
+            logger.warn("Skipping %s: %s", candidate, e.getMessage());
+            return null;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     static void addClass(Class<?> aClass) throws InstantiationException,
         IllegalAccessException {
@@ -638,8 +695,9 @@ public class Multiply {
                 TrieKey key = new TrieKey((Class)targs[0], (Class)targs[1],
                     (Class)targs[2]);
                 logger.debug("Adding %s for %s", candidate, key);
-                multipliers2D.add(Pair.create(key, (Multiplier2D)candidate
-                    .newInstance()));
+                final Multiplier2D instance = (Multiplier2D)newInstance(candidate);
+                if (instance != null)
+                    multipliers2D.add(Pair.create(key, instance));
 
             }
 
@@ -655,8 +713,9 @@ public class Multiply {
                 TrieKey key = new TrieKey((Class)targs[0], (Class)targs[1],
                     (Class)targs[2]);
                 logger.debug("Adding %s for %s", candidate, key);
-                rankOneUpdaters.add(Pair.create(key, (RankOneUpdater)candidate
-                    .newInstance()));
+                final RankOneUpdater instance = (RankOneUpdater)newInstance(candidate);
+                if (instance != null)
+                    rankOneUpdaters.add(Pair.create(key, instance));
             }
 
             // 1D Multiplier
@@ -671,8 +730,9 @@ public class Multiply {
                 TrieKey key = new TrieKey((Class)targs[0], (Class)targs[1],
                     (Class)targs[2]);
                 logger.debug("Adding %s for %s", candidate, key);
-                multipliers1D.add(Pair.create(key, (Multiplier1D)candidate
-                    .newInstance()));
+                final Multiplier1D instance = (Multiplier1D)newInstance(candidate);
+                if (instance != null)
+                    multipliers1D.add(Pair.create(key, instance));
             }
 
             // Inner product
@@ -686,8 +746,9 @@ public class Multiply {
                         "Multiplier should only have two classes");
                 TrieKey key = new TrieKey((Class)targs[0], (Class)targs[1]);
                 logger.debug("Adding %s for %s", candidate, key);
-                innerProducts.add(Pair.create(key, (InnerProduct)candidate
-                    .newInstance()));
+                final InnerProduct instance = (InnerProduct)newInstance(candidate);
+                if (instance != null)
+                    innerProducts.add(Pair.create(key, instance));
             }
 
         }
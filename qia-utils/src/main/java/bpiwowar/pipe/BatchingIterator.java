@@ -0,0 +1,93 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.log4j.Logger;
+
+/**
+ * Groups the objects of an iterator into lists of (at most) a given size, so
+ * that fine grained streams can be passed between threads by chunks, and
+ * {@link #flatten(Iterator)} to get the objects back.
+ *
+ * @param <T> The type of the objects
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class BatchingIterator<T> implements CloseableIterator<List<T>> {
+    final static private Logger logger = Logger
+        .getLogger(BatchingIterator.class);
+
+    private final Iterator<? extends T> iterator;
+
+    private final int batchSize;
+
+    public BatchingIterator(Iterator<? extends T> iterator, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size should be positive");
+        this.iterator = iterator;
+        this.batchSize = batchSize;
+    }
+
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    public List<T> next() {
+        if (!iterator.hasNext())
+            throw new NoSuchElementException();
+        final ArrayList<T> list = new ArrayList<T>(batchSize);
+        while (list.size() < batchSize && iterator.hasNext())
+            list.add(iterator.next());
+        return list;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        logger.debug("Closing batching iterator");
+        if (iterator instanceof CloseableIterator<?>)
+            ((CloseableIterator<?>)iterator).close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchingIterator(%s, %d)", iterator, batchSize);
+    }
+
+    /**
+     * Iterates over the objects of a series of batches
+     */
+    public static <T> CloseableIterator<T> flatten(
+        final Iterator<? extends Iterable<T>> batches) {
+        return new CloseableIterator<T>() {
+            Iterator<T> current = null;
+
+            public boolean hasNext() {
+                while (current == null || !current.hasNext()) {
+                    if (!batches.hasNext())
+                        return false;
+                    current = batches.next().iterator();
+                }
+                return true;
+            }
+
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+                if (batches instanceof CloseableIterator<?>)
+                    ((CloseableIterator<?>)batches).close();
+            }
+        };
+    }
+}
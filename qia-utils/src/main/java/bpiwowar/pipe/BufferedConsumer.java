@@ -1,19 +1,39 @@
 package bpiwowar.pipe;
 
 import bpiwowar.io.LoggerPrintStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 /**
  * An abstract buffered consumer, for parallelising. The object "produce" method can be called by an external thread
+ * <p>
+ * Objects are handed over through a {@link RingBuffer}, which by default can be filled by several threads.
+ * </p>
+ * <p>
+ * Several threads can consume the objects at once (e.g. when {@link #run()}
+ * is called by several threads): each object is returned to one of them.
+ * </p>
+ * <p>
+ * The consumption runs either in a thread of its own, started by the constructor, or in an {@link Executor} (e.g.
+ * {@link SharedExecutor#get()}), in which case it starts with the first object. In both cases, {@link #close()} must
+ * be called to end the consumption.
+ * </p>
  *
  * @param <T> The type of the produced objects
  * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
  */
-abstract public class BufferedConsumer<T> implements Runnable {
+abstract public class BufferedConsumer<T> implements Runnable, Closeable {
+    /**
+     * Maximum number of objects taken from the buffer at once
+     */
+    static final int MAX_BATCH = 64;
+
     final static private Logger logger = Logger
         .getLogger(BufferedConsumer.class);
 
@@ -24,34 +44,75 @@ abstract public class BufferedConsumer<T> implements Runnable {
     static public class NoSuchElementException extends RuntimeException {
     }
 
-    /** Holds the last file */
-    private List<T> stack = new ArrayList<T>();
+    /** The objects waiting to be consumed */
+    private final RingBuffer<T> buffer;
+
+    /**
+     * Objects taken from the buffer but not consumed yet, so that the buffer
+     * is accessed once for a series of objects
+     */
+    private final ArrayList<T> batch = new ArrayList<T>();
 
-    /** Maximum buffer size */
-    private int bufferSize = 10;
+    /** Position of the next object in the batch */
+    private int batchIndex = 0;
 
-    /** Size of the list (only volatile object) */
-    volatile private int size = 0;
+    /**
+     * Guards the batch, so that several threads can consume objects (the
+     * lock is taken once per object, but the buffer is accessed once per
+     * batch)
+     */
+    private final Object consumerLock = new Object();
 
     /**
      * Should we wait for the object to be initialized?
      */
     protected volatile boolean wait;
 
-    /** EOS end of stream */
-    private boolean endOfStream = false;
+    /**
+     * Runs the consumption, or null if the consumer has its own thread
+     */
+    private final Executor executor;
 
-    private Thread thread;
+    /**
+     * True once the consumption has been started
+     */
+    private volatile boolean started;
 
     public BufferedConsumer() {
         this(10, false);
     }
 
     public BufferedConsumer(int bufferSize, boolean wait) {
-        this.bufferSize = bufferSize;
-        thread = new Thread(this);
+        this(RingBuffer.<T>mpmc(bufferSize), wait);
+    }
+
+    /**
+     * @param buffer The buffer used to hand over the objects
+     * @param wait If the consumption should wait for {@link #readyToConsume()}
+     */
+    public BufferedConsumer(RingBuffer<T> buffer, boolean wait) {
+        this.buffer = buffer;
+        this.executor = null;
         this.wait = wait;
-        thread.start();
+        this.started = true;
+        new Thread(this).start();
+    }
+
+    /**
+     * Creates a consumer run by an executor when the first object is added
+     * (or when it is closed)
+     *
+     * @param buffer The buffer used to hand over the objects
+     * @param executor The executor running the consumption. It should not
+     *            queue tasks (e.g. a cached thread pool) since the consumption
+     *            waits for the producers.
+     */
+    public BufferedConsumer(RingBuffer<T> buffer, Executor executor) {
+        if (executor == null)
+            throw new NullPointerException("Executor is null");
+        this.buffer = buffer;
+        this.executor = executor;
+        this.wait = false;
     }
 
     public BufferedConsumer(boolean wait) {
@@ -59,13 +120,15 @@ abstract public class BufferedConsumer<T> implements Runnable {
     }
 
     public int getBufferSize() {
-        return bufferSize;
+        return buffer.getCapacity();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        // Interrupt the thread if the iterator was not used until the end
-        close();
+    /**
+     * Returns the metrics of the buffer (objects produced and consumed, time
+     * spent waiting by each side)
+     */
+    public StageMetrics getMetrics() {
+        return StageMetrics.of(buffer);
     }
 
     /**
@@ -76,18 +139,37 @@ abstract public class BufferedConsumer<T> implements Runnable {
      * @throws EOFException
      */
 //	public synchronized void put(Pair<Integer, List<DoubleMatrix1D>> pair) throws InterruptedException, EOFException {
-    public synchronized void put(T pair)
+    public void put(T pair)
         throws InterruptedException, EOFException {
-        if (endOfStream)
+        if (buffer.isClosed())
+            throw new EOFException("Stream was closed");
+        start();
+        try {
+            buffer.put(pair);
+        }
+        catch (IllegalStateException e) {
             throw new EOFException("Stream was closed");
-
-        while (size > bufferSize) {
-            wait();
         }
-        stack.add(pair);
-        size++;
+    }
 
-        notifyAll();
+    /**
+     * Add a series of objects to the shared buffer, waiting if no room is
+     * available. This is much faster than adding objects one by one.
+     *
+     * @throws InterruptedException
+     * @throws EOFException If the stream was closed
+     */
+    public void put(Collection<? extends T> objects)
+        throws InterruptedException, EOFException {
+        if (buffer.isClosed())
+            throw new EOFException("Stream was closed");
+        start();
+        try {
+            buffer.put(objects);
+        }
+        catch (IllegalStateException e) {
+            throw new EOFException("Stream was closed");
+        }
     }
 
     /**
@@ -96,37 +178,70 @@ abstract public class BufferedConsumer<T> implements Runnable {
      * @return The first object in the buffer.
      * @throws InterruptedException
      */
-    final private synchronized T consume() throws InterruptedException {
-        while (size == 0 && !endOfStream)
-            wait();
-        if (size == 0 && endOfStream)
-            throw new NoSuchElementException();
-        size--;
-        notifyAll();
+    final private T consume() throws InterruptedException {
+        final T o;
+        synchronized (consumerLock) {
+            if (!check())
+                throw new NoSuchElementException();
+            o = batch.get(batchIndex);
+            batch.set(batchIndex++, null);
+        }
         if (logger.isDebugEnabled())
             logger.debug(String.format("Consuming an item (stack size is %d)",
-                size));
-        return stack.remove(0);
+                buffer.size()));
+        return o;
     }
 
-    final private synchronized void check() throws InterruptedException {
-        while (size == 0 && !endOfStream) {
-            wait();
+    /**
+     * Wait for the next object
+     *
+     * @return false if the end of stream was reached
+     */
+    final private boolean check() throws InterruptedException {
+        synchronized (consumerLock) {
+            if (batchIndex >= batch.size()) {
+                batch.clear();
+                batchIndex = 0;
+                buffer.take(batch, Math.min(MAX_BATCH, buffer.getCapacity()));
+            }
+            return batchIndex < batch.size();
+        }
+    }
+
+    /**
+     * Remove at most max objects, waiting until there is at least one
+     *
+     * @param list The list to which objects are added
+     * @return The number of objects, which is 0 at the end of the stream
+     */
+    protected int drainTo(List<? super T> list, int max) {
+        synchronized (consumerLock) {
+            int n = 0;
+            while (n < max && batchIndex < batch.size()) {
+                list.add(batch.get(batchIndex));
+                batch.set(batchIndex++, null);
+                n++;
+            }
+            try {
+                if (n == 0)
+                    return buffer.take(list, max);
+                return n + buffer.drainTo(list, max - n);
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(
+                    "Thread was interrupted while drainTo() was called", e);
+            }
         }
-        notifyAll();
     }
 
     final protected boolean hasNext() {
         try {
-            check();
+            return check();
         }
         catch (InterruptedException e) {
             throw new RuntimeException(
                 "Thread was interrupted while next() was called", e);
         }
-        if (size == 0 && endOfStream)
-            return false;
-        return true;
     }
 
     protected T next() {
@@ -158,9 +273,25 @@ abstract public class BufferedConsumer<T> implements Runnable {
     /**
      * Notify the end of the stream. Note that it waits until the buffer is empty before stopping.
      */
-    final synchronized public void close() {
-        endOfStream = true;
-        notifyAll();
+    final public void close() {
+        buffer.close();
+        // The consumption might end with some processing
+        start();
+    }
+
+    /**
+     * Submit the consumption to the executor if this was not done yet
+     */
+    private void start() {
+        if (started)
+            return;
+        synchronized (this) {
+            if (started)
+                return;
+            started = true;
+        }
+        logger.debug("Submitting the consumption of " + this);
+        executor.execute(this);
     }
 
     /**
@@ -183,8 +314,6 @@ abstract public class BufferedConsumer<T> implements Runnable {
         }
         catch (InterruptedException e) {
             logger.debug("Interruption: end of production");
-            // No need to interrupt ourselves since we are finishing now
-            thread = null;
         }
 
     }
@@ -1,6 +1,8 @@
 package bpiwowar.pipe;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Logger;
 
 /**
@@ -14,12 +16,47 @@ public class BufferedIterator<T> extends BufferedProducer<T> {
 
     private Iterator<T> iterator;
 
+    /**
+     * Number of objects read from the iterator before being added to the
+     * buffer
+     */
+    private final int batchSize;
+
     public BufferedIterator(Iterator<T> iterator, int bufferSize) {
-        super(bufferSize, true);
+        this(iterator, bufferSize, 1);
+    }
+
+    /**
+     * @param iterator The iterator to read from
+     * @param bufferSize The size of the buffer
+     * @param batchSize The number of objects added to the buffer at once
+     *            (objects are then only available when a whole batch has been
+     *            read)
+     */
+    public BufferedIterator(Iterator<T> iterator, int bufferSize, int batchSize) {
+        // Objects are only produced by our thread
+        super(RingBuffer.<T>spsc(Math.max(bufferSize, batchSize)), true);
         this.iterator = iterator;
+        this.batchSize = batchSize;
         readyToProduce();
     }
 
+    /**
+     * Creates a buffered iterator whose production is run by an executor
+     * (e.g. {@link SharedExecutor#get()}) once the first object is requested
+     *
+     * @param iterator The iterator to read from
+     * @param bufferSize The size of the buffer
+     * @param batchSize The number of objects added to the buffer at once
+     * @param executor The executor
+     */
+    public BufferedIterator(Iterator<T> iterator, int bufferSize,
+        int batchSize, Executor executor) {
+        super(RingBuffer.<T>spsc(Math.max(bufferSize, batchSize)), executor);
+        this.iterator = iterator;
+        this.batchSize = batchSize;
+    }
+
     @Override
     public String toString() {
         return "BufferedIterator(" + iterator + ")";
@@ -36,10 +73,21 @@ public class BufferedIterator<T> extends BufferedProducer<T> {
     @Override
     protected void produce() throws InterruptedException {
         try {
-            while (iterator.hasNext()) {
-                T next = iterator.next();
-                produce(next);
+            if (batchSize > 1) {
+                final ArrayList<T> batch = new ArrayList<T>(batchSize);
+                while (iterator.hasNext()) {
+                    batch.add(iterator.next());
+                    if (batch.size() == batchSize || !iterator.hasNext()) {
+                        produce(batch);
+                        batch.clear();
+                    }
+                }
             }
+            else
+                while (iterator.hasNext()) {
+                    T next = iterator.next();
+                    produce(next);
+                }
         }
         catch (InterruptedException e) {
             // Production was interrupted
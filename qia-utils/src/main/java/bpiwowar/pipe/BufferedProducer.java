@@ -2,75 +2,171 @@ package bpiwowar.pipe;
 
 import bpiwowar.io.LoggerPrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 /**
  * An abstract buffered producer, for parallelising. A real producer needs to subclass this class.
+ * <p>
+ * Objects are handed over to the consumer through a {@link RingBuffer}. By default, it can be used by several
+ * producing threads; when objects are only produced by the producer thread, a single producer buffer ({@link
+ * RingBuffer#spsc(int)}) is faster.
+ * </p>
+ * <p>
+ * Several threads can consume the objects at once: each object is returned to
+ * one of them. Since {@link #hasNext()} and {@link #next()} are two calls,
+ * concurrent consumers should rather call {@link #drainTo(List, int)}, or
+ * catch the {@link NoSuchElementException} thrown by {@link #next()} at the
+ * end of the stream.
+ * </p>
+ * <p>
+ * The production runs either in a thread of its own, started by the constructor, or in an {@link Executor} (e.g.
+ * {@link SharedExecutor#get()}), in which case it only starts when the first object is requested. In both cases,
+ * {@link #close()} should be called if the iterator is not used until the end.
+ * </p>
+ * <p>
+ * If the production fails, the consumers first get the objects already
+ * produced, and then the error is thrown by {@link #hasNext()} and
+ * {@link #next()}.
+ * </p>
  *
  * @param <T> The type of the produced objects
  * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
  */
 abstract public class BufferedProducer<T> implements Runnable,
     CloseableIterator<T> {
+    /**
+     * Maximum number of objects taken from the buffer at once
+     */
+    static final int MAX_BATCH = 64;
+
     final static private Logger logger = Logger
         .getLogger(BufferedProducer.class);
 
-    /** Holds the last file */
-    private ArrayList<T> stack = new ArrayList<T>();
+    /** The objects waiting to be consumed */
+    private final RingBuffer<T> buffer;
+
+    /**
+     * Objects taken from the buffer but not consumed yet, so that the buffer
+     * is accessed once for a series of objects
+     */
+    private final ArrayList<T> batch = new ArrayList<T>();
 
-    /** Maximum buffer size */
-    private int bufferSize = 10;
+    /** Position of the next object in the batch */
+    private int batchIndex = 0;
 
-    /** Size of the list (only volatile object) */
-    volatile private int size = 0;
+    /**
+     * Guards the batch, so that several threads can consume objects (the
+     * lock is taken once per object, but the buffer is accessed once per
+     * batch)
+     */
+    private final Object consumerLock = new Object();
 
     /**
      * Should we wait for the object to be initialized?
      */
     protected volatile boolean wait;
 
-    /** EOS end of stream */
-    private boolean endOfStream = false;
+    /**
+     * Runs the production, or null if the producer has its own thread
+     */
+    private final Executor executor;
+
+    /**
+     * True once the production has been started (or cannot be anymore)
+     */
+    private volatile boolean started;
+
+    /**
+     * True if the producer was closed
+     */
+    private boolean closed;
 
+    /**
+     * The thread running the production, if any
+     */
     private Thread thread;
 
+    /**
+     * The error that ended the production, if any: it is thrown to the
+     * consumers once the buffer is drained
+     */
+    private volatile Throwable error;
+
     public BufferedProducer() {
         this(10, false);
     }
 
     public BufferedProducer(int bufferSize, boolean wait) {
-        this.bufferSize = bufferSize;
-        thread = new Thread(this);
+        this(RingBuffer.<T>mpmc(bufferSize), wait);
+    }
+
+    /**
+     * @param buffer The buffer used to hand over the objects
+     * @param wait If the production should wait for {@link #readyToProduce()}
+     */
+    public BufferedProducer(RingBuffer<T> buffer, boolean wait) {
+        this.buffer = buffer;
+        this.executor = null;
         this.wait = wait;
-        thread.start();
+        this.started = true;
+        new Thread(this).start();
+    }
+
+    /**
+     * Creates a producer run by an executor when the first object is
+     * requested, so that subclasses do not need to wait for
+     * {@link #readyToProduce()}
+     *
+     * @param buffer The buffer used to hand over the objects
+     * @param executor The executor running the production. It should not
+     *            queue tasks (e.g. a cached thread pool) since the production
+     *            waits for the consumer.
+     */
+    public BufferedProducer(RingBuffer<T> buffer, Executor executor) {
+        if (executor == null)
+            throw new NullPointerException("Executor is null");
+        this.buffer = buffer;
+        this.executor = executor;
+        this.wait = false;
     }
 
     public BufferedProducer(boolean wait) {
         this(10, wait);
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        // Interrupt the thread if the iterator was not used until the end
-        close();
+    /**
+     * Returns the metrics of the buffer (objects produced and consumed, time
+     * spent waiting by each side)
+     */
+    public StageMetrics getMetrics() {
+        return StageMetrics.of(buffer);
     }
 
     /**
      * Add a new object to a shared buffer or wait if no room is available.
      *
-     * @param object The object to be added to the buffer.
+     * @param object The object to be added to the buffer (not null).
      * @throws InterruptedException
      */
-    protected synchronized void produce(T o) throws InterruptedException {
-        while (size > bufferSize) {
-            wait();
-        }
-        stack.add(o);
-        size++;
+    protected void produce(T o) throws InterruptedException {
+        buffer.put(o);
+    }
 
-        notifyAll();
+    /**
+     * Add a series of objects to the shared buffer, waiting if no room is
+     * available. This is much faster than adding objects one by one.
+     *
+     * @param objects The objects to be added to the buffer (not null).
+     * @throws InterruptedException
+     */
+    protected void produce(Collection<? extends T> objects)
+        throws InterruptedException {
+        buffer.put(objects);
     }
 
     /**
@@ -79,31 +175,115 @@ abstract public class BufferedProducer<T> implements Runnable,
      * @return The first object in the buffer.
      * @throws InterruptedException
      */
-    final private synchronized T consume() throws InterruptedException {
-        while (size == 0 && !endOfStream)
-            wait();
-        if (size == 0 && endOfStream)
-            throw new NoSuchElementException();
-        size--;
-        notifyAll();
+    final private T consume() throws InterruptedException {
+        final T o;
+        synchronized (consumerLock) {
+            if (!check())
+                throw new NoSuchElementException();
+            o = batch.get(batchIndex);
+            batch.set(batchIndex++, null);
+        }
         if (logger.isDebugEnabled())
             logger.debug(String.format("Consuming an item (stack size is %d)",
-                size));
-        return stack.remove(0);
+                buffer.size()));
+        return o;
     }
 
-    final private synchronized void check() throws InterruptedException {
-        while (size == 0 && !endOfStream) {
-            wait();
+    /**
+     * Wait for the next object
+     *
+     * @return false if the end of stream was reached
+     */
+    final private boolean check() throws InterruptedException {
+        start();
+        synchronized (consumerLock) {
+            if (batchIndex >= batch.size()) {
+                batch.clear();
+                batchIndex = 0;
+                buffer.take(batch, Math.min(MAX_BATCH, buffer.getCapacity()));
+            }
+            if (batchIndex < batch.size())
+                return true;
         }
-        notifyAll();
+        checkError();
+        return false;
+    }
+
+    /**
+     * Throws the error that ended the production, if any
+     */
+    private void checkError() {
+        final Throwable t = error;
+        if (t == null)
+            return;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        throw new RuntimeException("Error while producing", t);
     }
 
+    /**
+     * Remove at most max objects, waiting until there is at least one
+     *
+     * @param list The list to which objects are added
+     * @return The number of objects, which is 0 at the end of the stream
+     */
+    public int drainTo(List<? super T> list, int max) {
+        start();
+        synchronized (consumerLock) {
+            int n = 0;
+            while (n < max && batchIndex < batch.size()) {
+                list.add(batch.get(batchIndex));
+                batch.set(batchIndex++, null);
+                n++;
+            }
+            try {
+                if (n == 0) {
+                    n = buffer.take(list, max);
+                    if (n == 0)
+                        checkError();
+                    return n;
+                }
+                return n + buffer.drainTo(list, max - n);
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(
+                    "Thread was interrupted while drainTo() was called", e);
+            }
+        }
+    }
+
+    /**
+     * Submit the production to the executor if this was not done yet
+     */
+    private void start() {
+        if (started)
+            return;
+        synchronized (this) {
+            if (started)
+                return;
+            started = true;
+        }
+        logger.debug("Submitting the production of " + this);
+        executor.execute(this);
+    }
+
+    /**
+     * Stops the production: the producing thread is interrupted, and
+     * consumers get the objects which are already in the buffer
+     */
     public void close() {
         logger.debug("Closing buffered producer");
-        if (thread != null) {
-            thread.interrupt();
-            thread = null;
+        synchronized (this) {
+            closed = true;
+            if (thread != null)
+                thread.interrupt();
+            if (!started) {
+                // Nothing will be produced
+                started = true;
+                markEndOfStream();
+            }
         }
     }
 
@@ -114,15 +294,12 @@ abstract public class BufferedProducer<T> implements Runnable,
      */
     final public boolean hasNext() {
         try {
-            check();
+            return check();
         }
         catch (InterruptedException e) {
             throw new RuntimeException(
                 "Thread was interrupted while next() was called", e);
         }
-        if (size == 0 && endOfStream)
-            return false;
-        return true;
     }
 
     /*
@@ -159,9 +336,8 @@ abstract public class BufferedProducer<T> implements Runnable,
     /**
      * Notify the end of the stream
      */
-    final synchronized private void markEndOfStream() {
-        endOfStream = true;
-        notifyAll();
+    final private void markEndOfStream() {
+        buffer.close();
     }
 
     /**
@@ -173,6 +349,14 @@ abstract public class BufferedProducer<T> implements Runnable,
     }
 
     final public void run() {
+        synchronized (this) {
+            if (closed) {
+                markEndOfStream();
+                return;
+            }
+            thread = Thread.currentThread();
+        }
+
         // Wait
         try {
             synchronized (this) {
@@ -189,12 +373,28 @@ abstract public class BufferedProducer<T> implements Runnable,
         }
         catch (InterruptedException e) {
             logger.debug("Interruption: end of production");
-            // No need to interrupt ourselves since we are finishing now
-            thread = null;
         }
+        catch (Throwable t) {
+            // Given to the consumers after the objects already produced
+            // (unless the producer was closed)
+            logger.debug("Error while producing " + this, t);
+            synchronized (this) {
+                if (!closed)
+                    error = t;
+            }
+        }
+        finally {
+            synchronized (this) {
+                thread = null;
+            }
+            // Clears an interruption from close() which came too late, so
+            // that the executor thread can be reused
+            if (executor != null)
+                Thread.interrupted();
 
-        // Mark the end of the stream
-        markEndOfStream();
+            // Mark the end of the stream
+            markEndOfStream();
+        }
     }
 
     /**
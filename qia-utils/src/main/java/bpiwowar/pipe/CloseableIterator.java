@@ -1,7 +1,12 @@
 package bpiwowar.pipe;
 
+import java.io.Closeable;
 import java.util.Iterator;
 
-public interface CloseableIterator<E> extends Iterator<E> {
+/**
+ * An iterator holding resources (threads, files) which should be released with
+ * {@link #close()} if it is not used until the end
+ */
+public interface CloseableIterator<E> extends Iterator<E>, Closeable {
     void close();
 }
@@ -9,6 +9,11 @@ public class Flattener<T> implements CloseableIterator<T> {
     Iterator<Iterator<T>> iterator;
     Iterator<T> current = null;
 
+    /**
+     * Non null once the metrics have been requested
+     */
+    private volatile StageMetrics.Counters metrics;
+
     public Flattener(Iterator<Iterator<T>> iterator) {
         this.iterator = iterator;
         searchNext();
@@ -19,13 +24,36 @@ public class Flattener<T> implements CloseableIterator<T> {
         return "Flattener(" + iterator + ")";
     }
 
+    /**
+     * Returns the metrics of this iterator (iterators read and objects
+     * output), which are only collected once this method has been called
+     */
+    public StageMetrics getMetrics() {
+        if (metrics == null)
+            synchronized (this) {
+                if (metrics == null)
+                    metrics = new StageMetrics.Counters();
+            }
+        return metrics;
+    }
+
     private void searchNext() {
+        final StageMetrics.Counters m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+
         // Search the next non empty iterator
         while (iterator.hasNext()) {
             current = iterator.next();
-            if (current.hasNext())
+            if (m != null)
+                m.addIn(1);
+            if (current.hasNext()) {
+                if (m != null)
+                    m.addEmptyTime(System.nanoTime() - start);
                 return;
+            }
         }
+        if (m != null)
+            m.addEmptyTime(System.nanoTime() - start);
 
         // we did not find anything
         current = null;
@@ -47,6 +75,9 @@ public class Flattener<T> implements CloseableIterator<T> {
         if (current == null)
             throw new NoSuchElementException();
         T t = current.next();
+        final StageMetrics.Counters m = metrics;
+        if (m != null)
+            m.addOut(1);
         if (!current.hasNext())
             searchNext();
         return t;
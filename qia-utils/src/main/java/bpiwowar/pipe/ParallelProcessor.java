@@ -0,0 +1,40 @@
+package bpiwowar.pipe;
+
+/**
+ * Marks a processor that should be run by several threads when it is
+ * connected by {@link TaskManager#connect(java.util.Iterator, Processor, Object...)}
+ * (see {@link ParallelProcessorAdaptor}). The processor must be thread-safe.
+ *
+ * @param <Input> the type of the input object
+ * @param <Output> the type of the output object
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ParallelProcessor<Input, Output> implements
+    Processor<Input, Output> {
+    final Processor<Input, Output> processor;
+
+    final int threads;
+
+    final boolean ordered;
+
+    /**
+     * @param processor The (thread-safe) processor
+     * @param threads The number of threads
+     * @param ordered If outputs should be in the order of the inputs
+     */
+    public ParallelProcessor(Processor<Input, Output> processor, int threads,
+        boolean ordered) {
+        this.processor = processor;
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+
+    public Output process(Input input) {
+        return processor.process(input);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ParallelProcessor(%s, %d)", processor, threads);
+    }
+}
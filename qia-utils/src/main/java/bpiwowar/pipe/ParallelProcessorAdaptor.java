@@ -0,0 +1,207 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link ProcessorAdaptor} where the processor is called by several threads.
+ * Inputs are read by the thread that iterates over the outputs, and at most
+ * <code>window</code> inputs are processed or waiting to be consumed at a
+ * given time, so that a slow consumer blocks the processing.
+ * <p>
+ * In ordered mode, outputs are returned in the order of the inputs; otherwise,
+ * they are returned as soon as they are processed. As with
+ * {@link ProcessorAdaptor}, null outputs are skipped. The processor must be
+ * thread-safe.
+ * </p>
+ *
+ * @param <Input> The input type
+ * @param <Output> The output type
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ParallelProcessorAdaptor<Input, Output> implements
+    CloseableIterator<Output> {
+    private static final Logger logger = Logger
+        .getLogger(ParallelProcessorAdaptor.class);
+
+    private final Processor<Input, Output> processor;
+
+    private final Iterator<Input> input;
+
+    private final ExecutorService executor;
+
+    /**
+     * True if the executor was created by us (and should be shut down)
+     */
+    private final boolean ownExecutor;
+
+    /**
+     * Maximum number of inputs being processed or waiting to be consumed
+     */
+    private final int window;
+
+    /**
+     * Non null in unordered mode
+     */
+    private final CompletionService<Output> completionService;
+
+    /**
+     * Submitted tasks, in the order of the inputs
+     */
+    private final ArrayDeque<Future<Output>> pending = new ArrayDeque<Future<Output>>();
+
+    private Output next = null;
+
+    private boolean closed = false;
+
+    /**
+     * Creates an adaptor with its own thread pool
+     *
+     * @param threads The number of threads
+     * @param ordered If outputs should be in the order of the inputs
+     */
+    public ParallelProcessorAdaptor(Iterator<Input> input,
+        Processor<Input, Output> processor, int threads, boolean ordered) {
+        this(input, processor, Executors.newFixedThreadPool(threads,
+            DAEMON_THREADS), true, 2 * threads, ordered);
+    }
+
+    /**
+     * Our own threads do not prevent the JVM from exiting if the adaptor is
+     * not closed
+     */
+    static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "processor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * @param executor The executor that calls the processor
+     * @param window The maximum number of inputs being processed or waiting
+     *            to be consumed
+     * @param ordered If outputs should be in the order of the inputs
+     */
+    public ParallelProcessorAdaptor(Iterator<Input> input,
+        Processor<Input, Output> processor, ExecutorService executor,
+        int window, boolean ordered) {
+        this(input, processor, executor, false, window, ordered);
+    }
+
+    private ParallelProcessorAdaptor(Iterator<Input> input,
+        Processor<Input, Output> processor, ExecutorService executor,
+        boolean ownExecutor, int window, boolean ordered) {
+        if (window < 1)
+            throw new IllegalArgumentException("The window should be positive");
+        this.input = input;
+        this.processor = processor;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.window = window;
+        this.completionService = ordered ? null
+            : new ExecutorCompletionService<Output>(executor);
+    }
+
+    /**
+     * Submit inputs until the window is full
+     */
+    private void fill() {
+        while (pending.size() < window && input.hasNext()) {
+            final Input object = input.next();
+            final Callable<Output> task = new Callable<Output>() {
+                @Override
+                public Output call() {
+                    return processor.process(object);
+                }
+            };
+            pending.add(completionService == null ? executor.submit(task)
+                : completionService.submit(task));
+        }
+    }
+
+    private void process() {
+        while (next == null && !closed) {
+            fill();
+            if (pending.isEmpty()) {
+                // No next: close!
+                close();
+                return;
+            }
+
+            try {
+                final Future<Output> future;
+                if (completionService == null)
+                    future = pending.poll();
+                else {
+                    future = completionService.take();
+                    pending.remove(future);
+                }
+                next = future.get();
+            }
+            catch (InterruptedException e) {
+                close();
+                throw new RuntimeException(
+                    "Thread was interrupted while next() was called", e);
+            }
+            catch (ExecutionException e) {
+                close();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error)e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        process();
+        return next != null;
+    }
+
+    public Output next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Output _next = next;
+        next = null;
+        return _next;
+    }
+
+    public void remove() {
+        throw new RuntimeException("Non mutable iterator");
+    }
+
+    @SuppressWarnings("unchecked")
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        logger.debug("Closing ParallelProcessorAdaptor");
+        for (Future<Output> future : pending)
+            future.cancel(false);
+        pending.clear();
+        if (ownExecutor)
+            executor.shutdown();
+        if (input instanceof CloseableIterator)
+            ((CloseableIterator<Input>)input).close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ParallelProcessorAdaptor(%s, %s)", processor,
+            completionService == null ? "ordered" : "unordered");
+    }
+}
@@ -0,0 +1,167 @@
+package bpiwowar.pipe;
+
+import bpiwowar.io.LoggerPrintStream;
+import java.io.PrintStream;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A registry of named {@link StageMetrics}, with a reporter which periodically
+ * logs the throughput of each stage and the proportion of time spent waiting.
+ * <p>
+ * The bottleneck is usually the stage whose consumers wait for it (high
+ * "empty" time downstream) while its producers wait for some room (high
+ * "full" time upstream). Waiting times are summed over the threads of a
+ * stage, so they can exceed 100%.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class PipeMetrics {
+    final static private Logger logger = Logger.getLogger(PipeMetrics.class);
+
+    private static final PipeMetrics DEFAULT = new PipeMetrics();
+
+    /**
+     * The stages, in registration order
+     */
+    private final LinkedHashMap<String, StageMetrics> stages = new LinkedHashMap<String, StageMetrics>();
+
+    /**
+     * Returns the default registry
+     */
+    public static PipeMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Register a stage (replacing any stage with the same name)
+     */
+    public synchronized void register(String name, StageMetrics metrics) {
+        stages.put(name, metrics);
+    }
+
+    public synchronized void unregister(String name) {
+        stages.remove(name);
+    }
+
+    /**
+     * Returns a copy of the registered stages
+     */
+    public synchronized Map<String, StageMetrics> getStages() {
+        return new LinkedHashMap<String, StageMetrics>(stages);
+    }
+
+    /**
+     * Print the cumulated counters of every stage
+     */
+    public void print(PrintStream out) {
+        for (Map.Entry<String, StageMetrics> entry : getStages().entrySet())
+            out.format("[%s] %s%n", entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Starts a daemon thread that logs the metrics at regular intervals
+     *
+     * @param logger The logger used to report
+     * @param interval The interval between two reports, in milliseconds
+     */
+    public Reporter startReporter(Logger logger, long interval) {
+        final Reporter reporter = new Reporter(logger, interval);
+        reporter.start();
+        return reporter;
+    }
+
+    /**
+     * Values of the counters at the time of the last report
+     */
+    static final class Snapshot {
+        final long time, in, out, full, empty;
+
+        Snapshot(long time, StageMetrics metrics) {
+            this.time = time;
+            in = metrics.getItemsIn();
+            out = metrics.getItemsOut();
+            full = metrics.getFullTime();
+            empty = metrics.getEmptyTime();
+        }
+    }
+
+    /**
+     * Reports the throughput and waiting times since the last report
+     */
+    public class Reporter extends Thread {
+        private final Logger logger;
+
+        private final long interval;
+
+        private volatile boolean running = true;
+
+        private final IdentityHashMap<StageMetrics, Snapshot> last = new IdentityHashMap<StageMetrics, Snapshot>();
+
+        Reporter(Logger logger, long interval) {
+            super("pipe-metrics");
+            setDaemon(true);
+            this.logger = logger;
+            this.interval = interval;
+        }
+
+        /**
+         * Stop the reporter
+         */
+        public void close() {
+            running = false;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(interval);
+                    report();
+                }
+                catch (InterruptedException e) {
+                    if (running)
+                        PipeMetrics.logger
+                            .warn("Reporter interrupted but not stopped");
+                }
+            }
+        }
+
+        /**
+         * Log the metrics of every stage since the last report
+         */
+        public synchronized void report() {
+            final long now = System.nanoTime();
+            final LoggerPrintStream out = new LoggerPrintStream(logger,
+                Level.INFO);
+            for (Map.Entry<String, StageMetrics> entry : getStages()
+                .entrySet()) {
+                final StageMetrics metrics = entry.getValue();
+                final Snapshot current = new Snapshot(now, metrics);
+                final Snapshot previous = last.put(metrics, current);
+                if (previous == null) {
+                    out.format("[%s] %s", entry.getKey(), metrics);
+                }
+                else {
+                    final double elapsed = (now - previous.time) * 1e-9;
+                    out.format(
+                        "[%s] in %d (%.1f/s), out %d (%.1f/s), full %.1f%%, empty %.1f%%",
+                        entry.getKey(), current.in, (current.in - previous.in)
+                            / elapsed, current.out,
+                        (current.out - previous.out) / elapsed,
+                        (current.full - previous.full) * 1e-7 / elapsed,
+                        (current.empty - previous.empty) * 1e-7 / elapsed);
+                    if (metrics.getCapacity() >= 0)
+                        out.format(", buffer %d/%d", metrics.getOccupancy(),
+                            metrics.getCapacity());
+                }
+                out.flush();
+            }
+        }
+    }
+}
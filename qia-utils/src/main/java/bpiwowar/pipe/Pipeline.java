@@ -0,0 +1,501 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * A graph of processing stages, each run by a given number of threads, and
+ * connected by bounded buffers, so that a slow stage blocks the stages that
+ * feed it.
+ * <p>
+ * A stage can feed several stages (each one receives all the objects), and a
+ * stage can be fed by several ones with {@link #merge(String, List)}. The
+ * outputs of a stage are read with {@link Stage#iterator()}; stages whose
+ * outputs are not used are sinks.
+ * </p>
+ *
+ * <pre>
+ * Pipeline pipeline = new Pipeline(1000);
+ * Stage&lt;Document&gt; documents = pipeline.source(&quot;files&quot;, files).process(
+ *     &quot;parse&quot;, parser, 4);
+ * documents.process(&quot;index&quot;, indexer, 1);
+ * CloseableIterator&lt;Term&gt; terms = documents.flatten(&quot;tokenize&quot;, tokenizer, 2)
+ *     .iterator();
+ * pipeline.start();
+ * </pre>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class Pipeline {
+    final static private Logger logger = Logger.getLogger(Pipeline.class);
+
+    /**
+     * Maximum number of objects taken from a buffer at once
+     */
+    static final int BATCH = 16;
+
+    /**
+     * Default size of the buffers between stages
+     */
+    private final int bufferSize;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final ArrayList<Stage<?>> stages = new ArrayList<Stage<?>>();
+
+    private final ArrayList<Channel<?>> channels = new ArrayList<Channel<?>>();
+
+    private final ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+    /**
+     * The first error raised by a stage
+     */
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    private boolean started = false;
+
+    /**
+     * Creates a pipeline whose stages run in their own threads
+     *
+     * @param bufferSize The size of the buffers between stages
+     */
+    public Pipeline(int bufferSize) {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "pipeline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true, bufferSize);
+    }
+
+    /**
+     * @param executor The executor running the stages. It needs one thread
+     *            per stage worker, since workers wait for their inputs and
+     *            outputs.
+     * @param bufferSize The size of the buffers between stages
+     */
+    public Pipeline(ExecutorService executor, int bufferSize) {
+        this(executor, false, bufferSize);
+    }
+
+    private Pipeline(ExecutorService executor, boolean ownExecutor,
+        int bufferSize) {
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * A buffer between stages
+     */
+    static final class Channel<T> {
+        final RingBuffer<T> buffer;
+
+        /**
+         * Number of stages that have not finished writing in this channel
+         */
+        final AtomicInteger producers = new AtomicInteger();
+
+        /**
+         * Set when nobody reads from this channel anymore
+         */
+        volatile boolean discard = false;
+
+        Channel(int size) {
+            buffer = RingBuffer.mpmc(size);
+        }
+
+        void put(T o) throws InterruptedException {
+            if (discard)
+                return;
+            try {
+                buffer.put(o);
+            }
+            catch (IllegalStateException e) {
+                if (!discard)
+                    throw e;
+            }
+        }
+
+        void producerDone() {
+            if (producers.decrementAndGet() == 0)
+                buffer.close();
+        }
+    }
+
+    /**
+     * A stage of the pipeline, which outputs objects of type T
+     */
+    public static abstract class Stage<T> {
+        final Pipeline pipeline;
+
+        final String name;
+
+        final int parallelism;
+
+        /**
+         * Channels fed by this stage
+         */
+        final List<Channel<? super T>> outputs = new ArrayList<Channel<? super T>>();
+
+        /**
+         * Number of workers that have not finished
+         */
+        final AtomicInteger running = new AtomicInteger();
+
+        Stage(Pipeline pipeline, String name, int parallelism) {
+            if (parallelism < 1)
+                throw new IllegalArgumentException(
+                    "The parallelism should be positive");
+            this.pipeline = pipeline;
+            this.name = name;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * The work of one worker of this stage
+         */
+        abstract void work() throws Exception;
+
+        /**
+         * Output an object
+         */
+        final void emit(T o) throws InterruptedException {
+            for (int i = 0; i < outputs.size(); i++)
+                outputs.get(i).put(o);
+        }
+
+        @SuppressWarnings("unchecked")
+        final <U> Channel<U> subscribe(Channel<U> channel, Stage<? extends U> from) {
+            synchronized (pipeline) {
+                if (pipeline.started)
+                    throw new IllegalStateException(
+                        "The pipeline was already started");
+                ((Stage<U>)from).outputs.add(channel);
+                channel.producers.incrementAndGet();
+            }
+            return channel;
+        }
+
+        /**
+         * Add a stage that processes the outputs of this one
+         *
+         * @param processor The processor (thread-safe if parallelism > 1).
+         *            Null outputs are skipped.
+         * @param parallelism The number of threads
+         */
+        public <O> Stage<O> process(String name,
+            final Processor<? super T, ? extends O> processor, int parallelism) {
+            return new InputStage<T, O>(this, name, parallelism) {
+                @Override
+                void process(T input) throws InterruptedException {
+                    final O output = processor.process(input);
+                    if (output != null)
+                        emit(output);
+                }
+            };
+        }
+
+        /**
+         * Add a stage that outputs all the objects produced by a nested
+         * processor for each output of this one
+         *
+         * @param processor The processor (thread-safe if parallelism > 1)
+         * @param parallelism The number of threads
+         */
+        public <O> Stage<O> flatten(String name,
+            final NestedProcessor<? super T, ? extends O> processor,
+            int parallelism) {
+            return new InputStage<T, O>(this, name, parallelism) {
+                @Override
+                void process(T input) throws InterruptedException {
+                    final CloseableIterator<? extends O> iterator = processor
+                        .process(input);
+                    try {
+                        while (iterator.hasNext())
+                            emit(iterator.next());
+                    }
+                    finally {
+                        iterator.close();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Returns an iterator over the outputs of this stage. It must be
+         * created before the pipeline is started, and consumed (or closed)
+         * afterwards. If a stage failed, the iterator throws a runtime
+         * exception once the objects produced before are read.
+         */
+        public CloseableIterator<T> iterator() {
+            final Channel<T> channel = subscribe(pipeline.<T>newChannel(),
+                this);
+            return new CloseableIterator<T>() {
+                final ArrayList<T> batch = new ArrayList<T>();
+
+                int index = 0;
+
+                public boolean hasNext() {
+                    if (index < batch.size())
+                        return true;
+                    batch.clear();
+                    index = 0;
+                    try {
+                        if (channel.buffer.take(batch, BATCH) > 0)
+                            return true;
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(
+                            "Thread was interrupted while next() was called",
+                            e);
+                    }
+                    final Throwable t = pipeline.error.get();
+                    if (t != null)
+                        throw new RuntimeException(String.format(
+                            "Error in pipeline before %s", Stage.this), t);
+                    return false;
+                }
+
+                public T next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    final T o = batch.get(index);
+                    batch.set(index++, null);
+                    return o;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                public void close() {
+                    channel.discard = true;
+                    channel.buffer.close();
+                    batch.clear();
+                    while (channel.buffer.poll() != null)
+                        ;
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return String.format("stage %s", name);
+        }
+    }
+
+    /**
+     * A stage that reads its inputs from a channel
+     */
+    static abstract class InputStage<I, O> extends Stage<O> {
+        final Channel<I> input;
+
+        InputStage(Stage<? extends I> from, String name, int parallelism) {
+            super(from.pipeline, name, parallelism);
+            input = subscribe(pipeline.<I>newChannel(), from);
+            pipeline.add(this);
+        }
+
+        InputStage(Pipeline pipeline, String name, int parallelism) {
+            super(pipeline, name, parallelism);
+            input = pipeline.newChannel();
+            pipeline.add(this);
+        }
+
+        abstract void process(I input) throws Exception;
+
+        @Override
+        final void work() throws Exception {
+            final ArrayList<I> batch = new ArrayList<I>(BATCH);
+            while (input.buffer.take(batch, BATCH) > 0) {
+                for (int i = 0; i < batch.size(); i++)
+                    process(batch.get(i));
+                batch.clear();
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+    }
+
+    <T> Channel<T> newChannel() {
+        final Channel<T> channel = new Channel<T>(bufferSize);
+        synchronized (this) {
+            channels.add(channel);
+        }
+        return channel;
+    }
+
+    synchronized void add(Stage<?> stage) {
+        if (started)
+            throw new IllegalStateException("The pipeline was already started");
+        stages.add(stage);
+    }
+
+    /**
+     * Add a stage that outputs the objects of an iterator
+     */
+    public <T> Stage<T> source(String name, final Iterator<? extends T> iterator) {
+        final Stage<T> stage = new Stage<T>(this, name, 1) {
+            @Override
+            void work() throws Exception {
+                try {
+                    while (iterator.hasNext()) {
+                        emit(iterator.next());
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                    }
+                }
+                finally {
+                    if (iterator instanceof CloseableIterator<?>)
+                        ((CloseableIterator<?>)iterator).close();
+                }
+            }
+        };
+        add(stage);
+        return stage;
+    }
+
+    /**
+     * Add a stage that outputs the objects of two stages
+     */
+    public <T> Stage<T> merge(String name, Stage<? extends T> first,
+        Stage<? extends T> second) {
+        final ArrayList<Stage<? extends T>> inputs = new ArrayList<Stage<? extends T>>();
+        inputs.add(first);
+        inputs.add(second);
+        return merge(name, inputs);
+    }
+
+    /**
+     * Add a stage that outputs the objects of three stages
+     */
+    public <T> Stage<T> merge(String name, Stage<? extends T> first,
+        Stage<? extends T> second, Stage<? extends T> third) {
+        final ArrayList<Stage<? extends T>> inputs = new ArrayList<Stage<? extends T>>();
+        inputs.add(first);
+        inputs.add(second);
+        inputs.add(third);
+        return merge(name, inputs);
+    }
+
+    /**
+     * Add a stage that outputs the objects of several stages
+     */
+    public <T> Stage<T> merge(String name, List<Stage<? extends T>> inputs) {
+        if (inputs.isEmpty())
+            throw new IllegalArgumentException("Nothing to merge");
+        final InputStage<T, T> stage = new InputStage<T, T>(this, name, 1) {
+            @Override
+            void process(T input) throws InterruptedException {
+                emit(input);
+            }
+        };
+        for (Stage<? extends T> input : inputs)
+            stage.subscribe(stage.input, input);
+        return stage;
+    }
+
+    /**
+     * Start all the stages
+     */
+    public synchronized void start() {
+        if (started)
+            throw new IllegalStateException("The pipeline was already started");
+        started = true;
+
+        for (final Stage<?> stage : stages) {
+            logger.debug(String.format("Starting %s with %d worker(s)", stage,
+                stage.parallelism));
+            stage.running.set(stage.parallelism);
+            for (int i = 0; i < stage.parallelism; i++)
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            stage.work();
+                        }
+                        catch (InterruptedException e) {
+                            logger.debug(String.format("%s was interrupted",
+                                stage));
+                        }
+                        catch (Throwable t) {
+                            fail(stage, t);
+                        }
+                        finally {
+                            if (stage.running.decrementAndGet() == 0) {
+                                logger.debug(String.format("%s is finished",
+                                    stage));
+                                for (Channel<?> channel : stage.outputs)
+                                    channel.producerDone();
+                            }
+                        }
+                    }
+                }));
+        }
+    }
+
+    /**
+     * Record an error, and stop the pipeline
+     */
+    void fail(Stage<?> stage, Throwable t) {
+        if (error.compareAndSet(null, t)) {
+            logger.error(String.format("Error in %s: %s", stage, t));
+            for (Channel<?> channel : channels)
+                channel.buffer.close();
+        }
+    }
+
+    /**
+     * Wait until all the stages are finished
+     *
+     * @throws RuntimeException If a stage failed
+     */
+    public void await() throws InterruptedException {
+        final ArrayList<Future<?>> list;
+        synchronized (this) {
+            list = new ArrayList<Future<?>>(futures);
+        }
+        try {
+            for (Future<?> future : list)
+                future.get();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            if (ownExecutor)
+                executor.shutdown();
+        }
+
+        final Throwable t = error.get();
+        if (t != null)
+            throw new RuntimeException("Error in pipeline", t);
+    }
+
+    /**
+     * Stop all the stages
+     */
+    public synchronized void close() {
+        for (Channel<?> channel : channels)
+            channel.buffer.close();
+        for (Future<?> future : futures)
+            future.cancel(true);
+        if (ownExecutor)
+            executor.shutdownNow();
+    }
+}
@@ -21,17 +21,52 @@ public class ProcessorAdaptor<Input, Output> implements
     private Iterator<Input> input;
     Output next = null;
 
+    /**
+     * Non null once the metrics have been requested
+     */
+    private volatile StageMetrics.Counters metrics;
+
     public ProcessorAdaptor(Iterator<Input> input,
         Processor<Input, Output> processor) {
         this.processor = processor;
         this.input = input;
     }
 
+    /**
+     * Returns the metrics of this adaptor, which are only collected once this
+     * method has been called. The time spent waiting for an input includes
+     * the time spent computing it when the input is not buffered.
+     */
+    public StageMetrics getMetrics() {
+        if (metrics == null)
+            synchronized (this) {
+                if (metrics == null)
+                    metrics = new StageMetrics.Counters();
+            }
+        return metrics;
+    }
+
     private void process() {
         if (next == null) {
-            while ((next == null) && input.hasNext()) {
-                next = processor.process(input.next());
-            }
+            final StageMetrics.Counters m = metrics;
+            if (m == null)
+                while ((next == null) && input.hasNext()) {
+                    next = processor.process(input.next());
+                }
+            else
+                while (next == null) {
+                    final long start = System.nanoTime();
+                    if (!input.hasNext()) {
+                        m.addEmptyTime(System.nanoTime() - start);
+                        break;
+                    }
+                    final Input o = input.next();
+                    m.addEmptyTime(System.nanoTime() - start);
+                    m.addIn(1);
+                    next = processor.process(o);
+                    if (next != null)
+                        m.addOut(1);
+                }
             // No next: close!
             if (next == null)
                 close();
@@ -0,0 +1,526 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free buffer used to hand over objects between threads. The
+ * non blocking methods ({@link #offer(Object)} and {@link #poll()}) are
+ * implemented by subclasses; the blocking ones first spin, then yield, and
+ * finally park the thread until the other side signals it.
+ * <p>
+ * Null objects cannot be stored, and {@link #take()} returns null once the
+ * buffer has been {@linkplain #close() closed} and is empty.
+ * </p>
+ *
+ * @param <T> The type of the objects
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public abstract class RingBuffer<T> {
+    /**
+     * Number of busy spins before yielding
+     */
+    static final int SPINS = 64;
+
+    /**
+     * Number of yields before parking
+     */
+    static final int YIELDS = 64;
+
+    /**
+     * Maximum time a thread is parked before checking again (1ms) - signals are
+     * not guaranteed to be seen since the fast path does not use full fences
+     */
+    static final long PARK_NANOS = 1000000l;
+
+    protected final int capacity;
+
+    protected final int mask;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Threads waiting for an object
+     */
+    private final Queue<Thread> notEmpty = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * Threads waiting for some room
+     */
+    private final Queue<Thread> notFull = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * Time spent by producers waiting for some room (in nanoseconds)
+     */
+    private final AtomicLong fullNanos = new AtomicLong();
+
+    /**
+     * Time spent by consumers waiting for an object (in nanoseconds)
+     */
+    private final AtomicLong emptyNanos = new AtomicLong();
+
+    /**
+     * @param capacity The minimum capacity (rounded up to a power of two)
+     */
+    protected RingBuffer(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity should be positive");
+        int c = 1;
+        while (c < capacity)
+            c <<= 1;
+        this.capacity = c;
+        this.mask = c - 1;
+    }
+
+    /**
+     * A buffer for one producer thread and one consumer thread
+     */
+    public static <T> RingBuffer<T> spsc(int capacity) {
+        return new SingleProducerSingleConsumer<T>(capacity);
+    }
+
+    /**
+     * A buffer for any number of producer and consumer threads
+     */
+    public static <T> RingBuffer<T> mpmc(int capacity) {
+        return new MultiProducerMultiConsumer<T>(capacity);
+    }
+
+    /**
+     * Add an object if there is some room
+     *
+     * @return True if the object was added
+     */
+    public abstract boolean offer(T o);
+
+    /**
+     * Remove the first object
+     *
+     * @return The object, or null if the buffer is empty
+     */
+    public abstract T poll();
+
+    /**
+     * Returns the (approximate) number of objects in the buffer
+     */
+    public abstract int size();
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of objects added so far
+     */
+    public abstract long getAddedCount();
+
+    /**
+     * Returns the number of objects removed so far
+     */
+    public abstract long getRemovedCount();
+
+    /**
+     * Returns the time spent by producers waiting for some room, in
+     * nanoseconds (only the blocking methods are timed, and only when they
+     * have to wait)
+     */
+    public long getFullTime() {
+        return fullNanos.get();
+    }
+
+    /**
+     * Returns the time spent by consumers waiting for an object, in
+     * nanoseconds
+     */
+    public long getEmptyTime() {
+        return emptyNanos.get();
+    }
+
+    /**
+     * Add objects from a list while there is some room (subclasses can publish
+     * them at once)
+     *
+     * @return The number of objects added
+     */
+    protected int offer(List<? extends T> list, int from) {
+        int n = 0;
+        while (from + n < list.size() && offer(list.get(from + n)))
+            n++;
+        return n;
+    }
+
+    /**
+     * Remove at most max objects (subclasses can remove them at once)
+     *
+     * @return The number of objects removed
+     */
+    protected int drain(Collection<? super T> collection, int max) {
+        int n = 0;
+        T o;
+        while (n < max && (o = poll()) != null) {
+            collection.add(o);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Wait after the i-th unsuccessful attempt
+     *
+     * @param forRoom If we wait for some room, or for some object
+     */
+    private void await(int i, Queue<Thread> waiters, boolean forRoom)
+        throws InterruptedException {
+        if (i >= SPINS + YIELDS) {
+            final Thread current = Thread.currentThread();
+            waiters.add(current);
+            if (forRoom ? size() >= capacity && !closed : size() == 0
+                && !closed)
+                LockSupport.parkNanos(this, PARK_NANOS);
+            waiters.remove(current);
+        }
+        else if (i >= SPINS)
+            Thread.yield();
+        if (Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    /**
+     * Add an object, waiting until there is some room
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting
+     * @throws IllegalStateException If the buffer was closed
+     */
+    public final void put(T o) throws InterruptedException {
+        if (o == null)
+            throw new NullPointerException();
+        long start = 0;
+        for (int i = 0; !offer(o); i++) {
+            if (closed)
+                throw new IllegalStateException("The buffer was closed");
+            if (i == 0)
+                start = System.nanoTime();
+            await(i, notFull, true);
+        }
+        if (start != 0)
+            fullNanos.addAndGet(System.nanoTime() - start);
+        signal(notEmpty);
+    }
+
+    /**
+     * Add a series of objects, waiting for some room if needed. Consumers are
+     * signaled once for every group of objects that could be added at once.
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting
+     * @throws IllegalStateException If the buffer was closed
+     */
+    public final void put(Collection<? extends T> objects)
+        throws InterruptedException {
+        final List<? extends T> list = objects instanceof List ? (List<? extends T>)objects
+            : new ArrayList<T>(objects);
+        for (T o : list)
+            if (o == null)
+                throw new NullPointerException();
+        int from = 0;
+        long start = 0;
+        for (int i = 0; from < list.size(); ) {
+            final int n = offer(list, from);
+            if (n > 0) {
+                from += n;
+                signal(notEmpty);
+                if (i > 0)
+                    fullNanos.addAndGet(System.nanoTime() - start);
+                i = 0;
+            }
+            else {
+                if (closed)
+                    throw new IllegalStateException("The buffer was closed");
+                if (i == 0)
+                    start = System.nanoTime();
+                await(i++, notFull, true);
+            }
+        }
+    }
+
+    /**
+     * Remove the first object, waiting until there is one
+     *
+     * @return The object, or null if the buffer was closed and is empty
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public final T take() throws InterruptedException {
+        T o;
+        long start = 0;
+        for (int i = 0; (o = poll()) == null; i++) {
+            if (closed) {
+                // Objects might have been added before closing
+                o = poll();
+                if (o == null)
+                    return null;
+                break;
+            }
+            if (i == 0)
+                start = System.nanoTime();
+            await(i, notEmpty, false);
+        }
+        if (start != 0)
+            emptyNanos.addAndGet(System.nanoTime() - start);
+        signal(notFull);
+        return o;
+    }
+
+    /**
+     * Remove at most max objects without waiting
+     *
+     * @return The number of objects added to the collection
+     */
+    public final int drainTo(Collection<? super T> collection, int max) {
+        final int n = drain(collection, max);
+        if (n > 0)
+            signal(notFull);
+        return n;
+    }
+
+    /**
+     * Remove at most max objects, waiting until there is at least one
+     *
+     * @return The number of objects added to the collection, which is 0 only
+     *         if the buffer was closed and is empty
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public final int take(Collection<? super T> collection, int max)
+        throws InterruptedException {
+        long start = 0;
+        for (int i = 0; ; i++) {
+            final boolean wasClosed = closed;
+            final int n = drainTo(collection, max);
+            if (n > 0 || wasClosed) {
+                if (i > 0)
+                    emptyNanos.addAndGet(System.nanoTime() - start);
+                return n;
+            }
+            if (i == 0)
+                start = System.nanoTime();
+            await(i, notEmpty, false);
+        }
+    }
+
+    private static void signal(Queue<Thread> waiters) {
+        if (!waiters.isEmpty())
+            for (Thread thread : waiters)
+                LockSupport.unpark(thread);
+    }
+
+    /**
+     * Marks the end of the stream: consumers get the remaining objects, and
+     * then null
+     */
+    public void close() {
+        closed = true;
+        signal(notEmpty);
+        signal(notFull);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Single producer and single consumer: positions are only written by one
+     * thread, and published with ordered writes
+     */
+    static final class SingleProducerSingleConsumer<T> extends RingBuffer<T> {
+        private final Object[] buffer;
+
+        /**
+         * Next position to read
+         */
+        private final AtomicLong head = new AtomicLong();
+
+        /**
+         * Next position to write
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Last head value seen by the producer
+         */
+        private long headCache;
+
+        /**
+         * Last tail value seen by the consumer
+         */
+        private long tailCache;
+
+        SingleProducerSingleConsumer(int capacity) {
+            super(capacity);
+            buffer = new Object[this.capacity];
+        }
+
+        @Override
+        public boolean offer(T o) {
+            final long t = tail.get();
+            if (t - headCache >= capacity) {
+                headCache = head.get();
+                if (t - headCache >= capacity)
+                    return false;
+            }
+            buffer[(int)t & mask] = o;
+            tail.lazySet(t + 1);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T poll() {
+            final long h = head.get();
+            if (h >= tailCache) {
+                tailCache = tail.get();
+                if (h >= tailCache)
+                    return null;
+            }
+            final int index = (int)h & mask;
+            final T o = (T)buffer[index];
+            buffer[index] = null;
+            head.lazySet(h + 1);
+            return o;
+        }
+
+        @Override
+        protected int offer(List<? extends T> list, int from) {
+            final long t = tail.get();
+            final int n = list.size() - from;
+            if (t - headCache > capacity - n)
+                headCache = head.get();
+            final int k = (int)Math.min(n, capacity - (t - headCache));
+            for (int i = 0; i < k; i++)
+                buffer[(int)(t + i) & mask] = list.get(from + i);
+            if (k > 0)
+                tail.lazySet(t + k);
+            return k;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected int drain(Collection<? super T> collection, int max) {
+            final long h = head.get();
+            if (tailCache - h < max)
+                tailCache = tail.get();
+            final int k = (int)Math.min(max, tailCache - h);
+            for (int i = 0; i < k; i++) {
+                final int index = (int)(h + i) & mask;
+                collection.add((T)buffer[index]);
+                buffer[index] = null;
+            }
+            if (k > 0)
+                head.lazySet(h + k);
+            return k;
+        }
+
+        @Override
+        public int size() {
+            return (int)(tail.get() - head.get());
+        }
+
+        @Override
+        public long getAddedCount() {
+            return tail.get();
+        }
+
+        @Override
+        public long getRemovedCount() {
+            return head.get();
+        }
+    }
+
+    /**
+     * Multiple producers and consumers: each cell has a sequence number which
+     * tells whether it can be written (sequence = position) or read (sequence =
+     * position + 1), and positions are claimed with a compare-and-set
+     */
+    static final class MultiProducerMultiConsumer<T> extends RingBuffer<T> {
+        private final AtomicReferenceArray<T> buffer;
+
+        private final AtomicLongArray sequences;
+
+        private final AtomicLong head = new AtomicLong();
+
+        private final AtomicLong tail = new AtomicLong();
+
+        MultiProducerMultiConsumer(int capacity) {
+            super(capacity);
+            buffer = new AtomicReferenceArray<T>(this.capacity);
+            sequences = new AtomicLongArray(this.capacity);
+            for (int i = 0; i < this.capacity; i++)
+                sequences.set(i, i);
+        }
+
+        @Override
+        public boolean offer(T o) {
+            long position = tail.get();
+            while (true) {
+                final int index = (int)position & mask;
+                final long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        buffer.lazySet(index, o);
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                }
+                else if (difference < 0)
+                    return false;
+                else
+                    position = tail.get();
+            }
+        }
+
+        @Override
+        public T poll() {
+            long position = head.get();
+            while (true) {
+                final int index = (int)position & mask;
+                final long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        final T o = buffer.get(index);
+                        buffer.lazySet(index, null);
+                        sequences.lazySet(index, position + capacity);
+                        return o;
+                    }
+                    position = head.get();
+                }
+                else if (difference < 0)
+                    return null;
+                else
+                    position = head.get();
+            }
+        }
+
+        @Override
+        public int size() {
+            return (int)Math.max(0, tail.get() - head.get());
+        }
+
+        /**
+         * Counts the claimed positions, which might not be published yet
+         */
+        @Override
+        public long getAddedCount() {
+            return tail.get();
+        }
+
+        @Override
+        public long getRemovedCount() {
+            return head.get();
+        }
+    }
+}
@@ -1,104 +1,204 @@
 package bpiwowar.pipe;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import org.apache.log4j.Logger;
 
 /**
  * An abstract buffered producer, for parallelising. This producer output can be shared between different outputs
  * instead of being duplicated (useful when the production process is heavy)
+ * <p>
+ * Objects are produced once and broadcast to every reader: each reader (see {@link #subscribe()}) has its own
+ * position in the stream, and an object is released once all the readers have read it. At most
+ * <code>bufferSize</code> objects are kept, so that the slowest reader bounds the memory used and blocks the
+ * production.
+ * </p>
+ * <p>
+ * The producer is itself a reader, so it can be used as a simple buffered iterator; if it is not used as such, it
+ * should be {@linkplain #close() closed} so that it does not hold the other readers back. The production stops when
+ * all the readers have been closed.
+ * </p>
+ * <p>
+ * If the production fails, each reader first gets the objects already produced, and then the error is thrown by
+ * {@link Reader#hasNext()} and {@link Reader#next()}.
+ * </p>
  *
  * @param <T> The type of the produced objects
  * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
  */
 abstract public class SharedBufferedProducer<T> implements Runnable,
-    Iterator<T>, Cloneable {
+    CloseableIterator<T> {
+    final static private Logger logger = Logger
+        .getLogger(SharedBufferedProducer.class);
 
     /**
-     * @author Benjamin Piwowarski <benjamin@bpiwowar.net>
+     * Maximum number of objects copied at once by a reader
      */
-    @SuppressWarnings("serial")
-    static public class NoSuchElementException extends RuntimeException {
-    }
+    static final int MAX_BATCH = 64;
 
-    /** Holds the last objects */
-    private ArrayList<T> stack = new ArrayList<T>();
+    /** The objects (position modulo the buffer size) */
+    private final Object[] buffer;
 
-    /** Maximum buffer size */
-    private int bufferSize = 10;
+    /** Position of the next produced object */
+    private long tail = 0;
 
-    /** Size of the list (only volatile object) */
-    volatile private int size = 0;
+    /** Position of the oldest object still needed by a reader */
+    private long head = 0;
 
     /** EOS end of stream */
     private boolean endOfStream = false;
 
-    /** List of cloned iterators along with their position in the stack */
-    private ArrayList<Long> list = new ArrayList<Long>();
+    /**
+     * The error that ended the production, if any: it is thrown to the
+     * readers once they reach the end of the stream
+     */
+    private volatile Throwable error;
+
+    /** The readers, along with their position in the stream */
+    private final ArrayList<Reader> readers = new ArrayList<Reader>();
+
+    /** Number of readers waiting for an object */
+    private int waitingReaders = 0;
+
+    /** True if the producer waits for some room */
+    private boolean producerWaiting = false;
+
+    /** Our own reader */
+    private final Reader reader;
+
+    /** Runs the production, or null if the producer has its own thread */
+    private final Executor executor;
+
+    /** True once the production has been started */
+    private boolean started;
+
+    /** The thread running the production, if any */
+    private Thread thread;
 
     public SharedBufferedProducer() {
         this(10);
     }
 
     public SharedBufferedProducer(int bufferSize) {
-        this.bufferSize = bufferSize;
+        this.buffer = new Object[bufferSize];
+        this.executor = null;
+        this.reader = subscribe();
+        this.started = true;
         Thread thread = new Thread(this);
         thread.start();
     }
 
-    @Override
-    protected Object clone() throws CloneNotSupportedException {
-        // Should register another listener with current position
-        throw new CloneNotSupportedException();
+    /**
+     * Creates a producer run by an executor (e.g. {@link SharedExecutor#get()})
+     * when the first object is requested by a reader
+     */
+    public SharedBufferedProducer(int bufferSize, Executor executor) {
+        if (executor == null)
+            throw new NullPointerException("Executor is null");
+        this.buffer = new Object[bufferSize];
+        this.executor = executor;
+        this.reader = subscribe();
     }
 
     /**
-     * Add a new object to a shared buffer or wait if no room is available.
-     *
-     * @param object The object to be added to the buffer.
+     * Returns a new reader, which starts with the oldest object still held by
+     * the buffer - to read the whole stream, readers should be created before
+     * any of them is used
      */
-    protected synchronized void produce(T o) {
-        while (size > bufferSize) {
+    public synchronized Reader subscribe() {
+        final Reader r = new Reader(head);
+        readers.add(r);
+        return r;
+    }
+
+    /**
+     * Returns the number of readers which have not been closed
+     */
+    public synchronized int getReaderCount() {
+        return readers.size();
+    }
+
+    /**
+     * Submit the production to the executor if this was not done yet
+     */
+    private void start() {
+        if (!started) {
+            started = true;
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Wait until there is some room, or throw an exception if there are no
+     * readers anymore
+     */
+    private void waitForRoom() throws InterruptedException {
+        while (tail - head >= buffer.length && !readers.isEmpty()) {
+            producerWaiting = true;
             try {
                 wait();
             }
-            catch (InterruptedException e) {
+            finally {
+                producerWaiting = false;
             }
         }
-        stack.add(o);
-        size++;
+        if (readers.isEmpty())
+            throw new InterruptedException("No more readers");
+    }
 
-        notifyAll();
+    /**
+     * Add a new object to a shared buffer or wait if no room is available.
+     *
+     * @param object The object to be added to the buffer.
+     * @throws InterruptedException If all the readers have been closed
+     */
+    protected synchronized void produce(T o) throws InterruptedException {
+        waitForRoom();
+        buffer[(int)(tail % buffer.length)] = o;
+        tail++;
+        if (waitingReaders > 0)
+            notifyAll();
     }
 
     /**
-     * Remove the first object waiting in the buffer or wait until there is one.
+     * Add a series of objects, waiting for some room if needed. Readers are
+     * notified once for every group of objects that could be added at once.
      *
-     * @return The first object in the buffer.
+     * @throws InterruptedException If all the readers have been closed
      */
-    final private synchronized T consume() {
-        while (size == 0 && !endOfStream) {
-            try {
-                wait();
-            }
-            catch (InterruptedException e) {
-            }
+    protected synchronized void produce(Collection<? extends T> objects)
+        throws InterruptedException {
+        int added = 0;
+        for (T o : objects) {
+            if (tail - head >= buffer.length && added > 0 && waitingReaders > 0)
+                notifyAll();
+            waitForRoom();
+            buffer[(int)(tail % buffer.length)] = o;
+            tail++;
+            added++;
         }
-        if (size == 0 && endOfStream)
-            throw new NoSuchElementException();
-        size--;
-        notifyAll();
-        return stack.remove(0);
+        if (added > 0 && waitingReaders > 0)
+            notifyAll();
     }
 
-    final private synchronized void check() {
-        while (size == 0 && !endOfStream) {
-            try {
-                wait();
-            }
-            catch (InterruptedException e) {
-            }
-        }
-        notifyAll();
+    /**
+     * Updates the position of the oldest needed object, releasing the objects
+     * read by every reader (called with the lock held)
+     */
+    private void release() {
+        long min = tail;
+        for (Reader r : readers)
+            min = Math.min(min, r.position);
+        if (min == head)
+            return;
+
+        for (long p = head; p < min; p++)
+            buffer[(int)(p % buffer.length)] = null;
+        head = min;
+        if (producerWaiting)
+            notifyAll();
     }
 
     /*
@@ -107,10 +207,7 @@ abstract public class SharedBufferedProducer<T> implements Runnable,
      * @see java.util.Iterator#hasNext()
      */
     final public boolean hasNext() {
-        check();
-        if (size == 0 && endOfStream)
-            return false;
-        return true;
+        return reader.hasNext();
     }
 
     /*
@@ -119,7 +216,7 @@ abstract public class SharedBufferedProducer<T> implements Runnable,
      * @see java.util.Iterator#next()
      */
     public T next() {
-        return consume();
+        return reader.next();
     }
 
     /*
@@ -131,20 +228,183 @@ abstract public class SharedBufferedProducer<T> implements Runnable,
         throw new RuntimeException("Non mutable iterator");
     }
 
+    /**
+     * Closes the reader of the producer itself (other readers are not
+     * affected)
+     */
+    public void close() {
+        reader.close();
+    }
+
     final synchronized private void markEndOfStream() {
         endOfStream = true;
         notifyAll();
     }
 
     final public void run() {
-        produce();
-        markEndOfStream();
+        synchronized (this) {
+            if (readers.isEmpty()) {
+                markEndOfStream();
+                return;
+            }
+            thread = Thread.currentThread();
+        }
+
+        try {
+            produce();
+        }
+        catch (InterruptedException e) {
+            logger.debug("Interruption: end of production");
+        }
+        catch (Throwable t) {
+            // Given to the readers after the objects already produced
+            // (unless they have all been closed)
+            logger.debug("Error while producing " + this, t);
+            synchronized (this) {
+                if (!readers.isEmpty())
+                    error = t;
+            }
+        }
+        finally {
+            synchronized (this) {
+                thread = null;
+            }
+            if (executor != null)
+                Thread.interrupted();
+            markEndOfStream();
+        }
+    }
+
+    /**
+     * Throws the error that ended the production, if any
+     */
+    private void checkError() {
+        final Throwable t = error;
+        if (t == null)
+            return;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        throw new RuntimeException("Error while producing", t);
     }
 
     /**
      * The produce method is the only one that <b>must</b> be overwritten by the producer
+     *
+     * @throws InterruptedException If the thread is interrupted (e.g. when all
+     *             the readers have been closed)
      */
-    protected abstract void produce();
+    protected abstract void produce() throws InterruptedException;
+
+    /**
+     * A reader of the shared stream
+     */
+    public final class Reader implements CloseableIterator<T> {
+        /** Position of the next object to copy from the shared buffer */
+        private long position;
+
+        /** Objects copied from the shared buffer but not read yet */
+        private final ArrayList<T> batch = new ArrayList<T>();
+
+        /** Position of the next object in the batch */
+        private int batchIndex = 0;
+
+        private boolean closed = false;
+
+        Reader(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Copy the next objects from the shared buffer, waiting until there
+         * is one
+         *
+         * @return false if the end of stream was reached
+         * @throws RuntimeException The error that ended the production, once
+         *             all the objects produced before it have been read
+         */
+        @SuppressWarnings("unchecked")
+        private boolean fetch() throws InterruptedException {
+            synchronized (SharedBufferedProducer.this) {
+                start();
+                while (position == tail && !endOfStream && !closed) {
+                    waitingReaders++;
+                    try {
+                        SharedBufferedProducer.this.wait();
+                    }
+                    finally {
+                        waitingReaders--;
+                    }
+                }
+                if (closed)
+                    return false;
+                if (position == tail) {
+                    checkError();
+                    return false;
+                }
+
+                batch.clear();
+                batchIndex = 0;
+                final int n = (int)Math.min(MAX_BATCH, tail - position);
+                for (int i = 0; i < n; i++)
+                    batch.add((T)buffer[(int)((position + i) % buffer.length)]);
+                position += n;
+                release();
+                return true;
+            }
+        }
+
+        public boolean hasNext() {
+            if (batchIndex < batch.size())
+                return true;
+            try {
+                return fetch();
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(
+                    "Thread was interrupted while next() was called", e);
+            }
+        }
+
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final T o = batch.get(batchIndex);
+            batch.set(batchIndex++, null);
+            return o;
+        }
+
+        public void remove() {
+            throw new RuntimeException("Non mutable iterator");
+        }
+
+        /**
+         * Stops reading: the objects are not kept anymore for this reader,
+         * and the production is stopped if this was the last one
+         */
+        public void close() {
+            synchronized (SharedBufferedProducer.this) {
+                if (closed)
+                    return;
+                closed = true;
+                batch.clear();
+                batchIndex = 0;
+                readers.remove(this);
+                release();
+                if (readers.isEmpty()) {
+                    logger.debug("No more readers: stopping the production");
+                    if (thread != null)
+                        thread.interrupt();
+                    if (!started) {
+                        started = true;
+                        endOfStream = true;
+                    }
+                }
+                SharedBufferedProducer.this.notifyAll();
+            }
+        }
+    }
 
     /**
      * Test
@@ -153,14 +413,10 @@ abstract public class SharedBufferedProducer<T> implements Runnable,
      */
     public static void main(String[] args) throws InterruptedException {
         SharedBufferedProducer<Integer> producer = new SharedBufferedProducer<Integer>() {
-            public void produce() {
+            public void produce() throws InterruptedException {
                 for (int i = 0; i < 1000; i++) {
-                    try {
-                        if (i % 25 == 0)
-                            Thread.sleep(20);
-                    }
-                    catch (InterruptedException e) {
-                    }
+                    if (i % 25 == 0)
+                        Thread.sleep(20);
                     produce(i);
                     System.out.format("Produced %d%n", i);
                 }
@@ -0,0 +1,62 @@
+package bpiwowar.pipe;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * The executor shared by buffered producers and consumers that do not need a
+ * thread of their own.
+ * <p>
+ * When the JVM supports virtual threads, each task runs in a new virtual
+ * thread, so that thousands of streams waiting on their buffers are cheap;
+ * otherwise, tasks run in a cached pool of daemon threads, which are reused
+ * once a stream has been consumed or closed.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public final class SharedExecutor {
+    final static private Logger logger = Logger.getLogger(SharedExecutor.class);
+
+    private static ExecutorService executor;
+
+    private SharedExecutor() {
+    }
+
+    /**
+     * Returns the shared executor, creating it on first use
+     */
+    public static synchronized ExecutorService get() {
+        if (executor == null)
+            executor = create();
+        return executor;
+    }
+
+    private static ExecutorService create() {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() (Java 21)
+            final ExecutorService service = (ExecutorService)Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.debug("Using virtual threads for buffered streams");
+            return service;
+        }
+        catch (NoSuchMethodException e) {
+            // Not available
+        }
+        catch (Exception e) {
+            logger.warn(String.format(
+                "Could not create a virtual thread executor: %s", e));
+        }
+
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "buffered-stream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package bpiwowar.pipe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the activity of a stage of a pipe: the number of objects
+ * read and output, the time spent waiting for some room in the output buffer
+ * (a slow consumer) or for an input (a slow producer), and the number of
+ * objects waiting in the buffer, if any.
+ * <p>
+ * Counters are read without synchronisation by {@link PipeMetrics}, and are
+ * thus approximate.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public abstract class StageMetrics {
+    /**
+     * Returns the number of objects read by the stage
+     */
+    public abstract long getItemsIn();
+
+    /**
+     * Returns the number of objects output by the stage
+     */
+    public abstract long getItemsOut();
+
+    /**
+     * Returns the time (in nanoseconds) spent waiting for some room in the
+     * output
+     */
+    public abstract long getFullTime();
+
+    /**
+     * Returns the time (in nanoseconds) spent waiting for an input
+     */
+    public abstract long getEmptyTime();
+
+    /**
+     * Returns the number of objects waiting in the buffer, or -1 if the stage
+     * has no buffer
+     */
+    public int getOccupancy() {
+        return -1;
+    }
+
+    /**
+     * Returns the capacity of the buffer, or -1 if the stage has no buffer
+     */
+    public int getCapacity() {
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        final String s = String.format(
+            "in %d, out %d, waited %.3fs (full) / %.3fs (empty)",
+            getItemsIn(), getItemsOut(), getFullTime() * 1e-9,
+            getEmptyTime() * 1e-9);
+        if (getCapacity() < 0)
+            return s;
+        return String.format("%s, buffer %d/%d", s, getOccupancy(),
+            getCapacity());
+    }
+
+    /**
+     * Metrics of a buffer: objects are counted when they enter and leave the
+     * buffer
+     */
+    public static StageMetrics of(final RingBuffer<?> buffer) {
+        return new StageMetrics() {
+            @Override
+            public long getItemsIn() {
+                return buffer.getAddedCount();
+            }
+
+            @Override
+            public long getItemsOut() {
+                return buffer.getRemovedCount();
+            }
+
+            @Override
+            public long getFullTime() {
+                return buffer.getFullTime();
+            }
+
+            @Override
+            public long getEmptyTime() {
+                return buffer.getEmptyTime();
+            }
+
+            @Override
+            public int getOccupancy() {
+                return buffer.size();
+            }
+
+            @Override
+            public int getCapacity() {
+                return buffer.getCapacity();
+            }
+        };
+    }
+
+    /**
+     * Counters updated by a single thread (ordered writes are enough for the
+     * readers)
+     */
+    public static class Counters extends StageMetrics {
+        private final AtomicLong in = new AtomicLong();
+
+        private final AtomicLong out = new AtomicLong();
+
+        private final AtomicLong fullNanos = new AtomicLong();
+
+        private final AtomicLong emptyNanos = new AtomicLong();
+
+        public void addIn(long n) {
+            in.lazySet(in.get() + n);
+        }
+
+        public void addOut(long n) {
+            out.lazySet(out.get() + n);
+        }
+
+        public void addFullTime(long nanos) {
+            fullNanos.lazySet(fullNanos.get() + nanos);
+        }
+
+        public void addEmptyTime(long nanos) {
+            emptyNanos.lazySet(emptyNanos.get() + nanos);
+        }
+
+        @Override
+        public long getItemsIn() {
+            return in.get();
+        }
+
+        @Override
+        public long getItemsOut() {
+            return out.get();
+        }
+
+        @Override
+        public long getFullTime() {
+            return fullNanos.get();
+        }
+
+        @Override
+        public long getEmptyTime() {
+            return emptyNanos.get();
+        }
+    }
+}
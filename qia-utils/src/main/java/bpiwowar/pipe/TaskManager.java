@@ -27,7 +27,12 @@ public final class TaskManager {
 
     @SuppressWarnings("unchecked")
     private static Iterator<?> connectOne(Iterator<?> current, Object processor) {
-        if (processor instanceof Processor) {
+        if (processor instanceof ParallelProcessor) {
+            ParallelProcessor parallel = (ParallelProcessor)processor;
+            current = new ParallelProcessorAdaptor(current, parallel.processor,
+                parallel.threads, parallel.ordered);
+        }
+        else if (processor instanceof Processor) {
             current = new ProcessorAdaptor(current, (Processor)processor);
         }
         else
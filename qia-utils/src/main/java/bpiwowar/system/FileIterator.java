@@ -4,17 +4,20 @@
 package bpiwowar.system;
 
 import bpiwowar.pipe.BufferedProducer;
+import bpiwowar.pipe.RingBuffer;
 import bpiwowar.utils.Pair;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Logger;
 
 /**
  * Parse a directory searching for files
  *
  * @author Benjamin Piwowarski
+ * @see ParallelFileIterator
  */
 public class FileIterator extends BufferedProducer<File> {
     final static Logger logger = Logger.getLogger(FileIterator.class);
@@ -56,7 +59,32 @@ public class FileIterator extends BufferedProducer<File> {
     public FileIterator(final File directory, int depth,
         final FileFilter filefilter) {
         super(true);
+        initialise(directory, depth, filefilter);
 
+        synchronized (this) {
+            wait = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Constructs a new file iterator whose directories are read by an
+     * executor (e.g. {@link bpiwowar.pipe.SharedExecutor#get()}) once the
+     * first file is requested
+     *
+     * @param directory The base directory
+     * @param depth The depth of the recursion (-1 infinite, 0 no recursion)
+     * @param filefilter The file filter (null if none)
+     * @param executor The executor
+     */
+    public FileIterator(final File directory, int depth,
+        final FileFilter filefilter, Executor executor) {
+        super(RingBuffer.<File>spsc(10), executor);
+        initialise(directory, depth, filefilter);
+    }
+
+    private void initialise(final File directory, int depth,
+        final FileFilter filefilter) {
         // Creates the file filter
         this.filter = new FileFilter() {
             public boolean accept(File file) {
@@ -82,11 +110,6 @@ public class FileIterator extends BufferedProducer<File> {
 
         // add the base directory to start the process
         directoryStack.add(new Pair<File, Integer>(directory, depth));
-
-        synchronized (this) {
-            wait = false;
-            notifyAll();
-        }
     }
 
     @Override
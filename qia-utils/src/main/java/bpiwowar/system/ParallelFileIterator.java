@@ -0,0 +1,333 @@
+package bpiwowar.system;
+
+import bpiwowar.pipe.BufferedProducer;
+import bpiwowar.pipe.RingBuffer;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Parse a directory searching for files, listing several directories at once.
+ * The filter and the depth have the same meaning as for {@link FileIterator}.
+ * <p>
+ * In ordered mode, files are output in the same order as with
+ * {@link FileIterator}: directories are listed in advance (at most
+ * <code>window</code> of them) while the files of the current directory are
+ * output. In unordered mode, files are output as soon as their directory has
+ * been listed, and the filter is called by several threads at once.
+ * </p>
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ParallelFileIterator extends BufferedProducer<File> {
+    final static Logger logger = Logger.getLogger(ParallelFileIterator.class);
+
+    private final File directory;
+
+    private final int depth;
+
+    private final FileFilter filter;
+
+    private final ExecutorService executor;
+
+    /**
+     * True if the executor was created by us (and should be shut down)
+     */
+    private final boolean ownExecutor;
+
+    private final boolean ordered;
+
+    /**
+     * Maximum number of directories listed in advance (ordered mode)
+     */
+    private final int window;
+
+    /**
+     * Lists a directory with its own pool of threads
+     *
+     * @param directory The base directory
+     * @param depth The depth of the recursion (-1 infinite, 0 no recursion)
+     * @param filter The file filter (null if none)
+     * @param threads The number of threads listing directories
+     * @param ordered If files should be output in the order of
+     *            {@link FileIterator}
+     */
+    public ParallelFileIterator(File directory, int depth, FileFilter filter,
+        int threads, boolean ordered) {
+        this(directory, depth, filter, Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                        "directory-walker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }), true, 4 * threads, ordered);
+    }
+
+    /**
+     * @param executor The executor listing directories
+     * @param window The maximum number of directories listed in advance in
+     *            ordered mode
+     */
+    public ParallelFileIterator(File directory, int depth, FileFilter filter,
+        ExecutorService executor, int window, boolean ordered) {
+        this(directory, depth, filter, executor, false, window, ordered);
+    }
+
+    private ParallelFileIterator(File directory, int depth,
+        FileFilter filter, ExecutorService executor, boolean ownExecutor,
+        int window, boolean ordered) {
+        super(buffer(window), true);
+        this.directory = directory;
+        this.depth = depth;
+        this.filter = filter;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.window = window;
+        this.ordered = ordered;
+        readyToProduce();
+    }
+
+    /**
+     * Returns the buffer of the iterator, after checking the arguments (this
+     * must be done before the producer thread is started by the super
+     * constructor)
+     */
+    private static RingBuffer<File> buffer(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("The window should be positive");
+        return RingBuffer.<File>mpmc(256);
+    }
+
+    /**
+     * The content of a directory
+     */
+    static final class Listing {
+        final File[] files;
+
+        /**
+         * Which files are directories (null if not needed)
+         */
+        final boolean[] directories;
+
+        Listing(File[] files, boolean[] directories) {
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    /**
+     * Lists a directory (the file system is only accessed here)
+     *
+     * @param depth The depth of the directory: subdirectories are only
+     *            identified if it is not 0
+     */
+    static Listing list(File directory, int depth) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            files = new File[0];
+        boolean[] directories = null;
+        if (depth != 0) {
+            directories = new boolean[files.length];
+            for (int i = 0; i < files.length; i++)
+                directories[i] = files[i].isDirectory();
+        }
+        return new Listing(files, directories);
+    }
+
+    static int subdirectoryDepth(int depth) {
+        return depth >= 0 ? depth - 1 : -1;
+    }
+
+    @Override
+    protected void produce() throws InterruptedException {
+        try {
+            if (ordered)
+                produceOrdered();
+            else
+                produceUnordered();
+        }
+        finally {
+            if (ownExecutor)
+                executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A directory to output, which might be listed already
+     */
+    final class Pending {
+        final File directory;
+
+        final int depth;
+
+        Future<Listing> listing;
+
+        Pending(File directory, int depth) {
+            this.directory = directory;
+            this.depth = depth;
+        }
+
+        void submit() {
+            listing = executor.submit(new Callable<Listing>() {
+                @Override
+                public Listing call() {
+                    return list(directory, depth);
+                }
+            });
+        }
+    }
+
+    private void produceOrdered() throws InterruptedException {
+        final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+        queue.add(new Pending(directory, depth));
+        int submitted = 0;
+
+        try {
+            while (!queue.isEmpty()) {
+                // List the next directories in advance
+                if (submitted < window) {
+                    int i = 0;
+                    for (Pending pending : queue) {
+                        if (i++ >= window)
+                            break;
+                        if (pending.listing == null) {
+                            pending.submit();
+                            submitted++;
+                        }
+                    }
+                }
+
+                final Pending current = queue.removeFirst();
+                submitted--;
+                final Listing listing;
+                try {
+                    listing = current.listing.get();
+                }
+                catch (ExecutionException e) {
+                    throw new RuntimeException(String.format(
+                        "Could not list %s", current.directory), e.getCause());
+                }
+
+                if (listing.directories != null)
+                    for (int i = 0; i < listing.files.length; i++)
+                        if (listing.directories[i])
+                            queue.add(new Pending(listing.files[i],
+                                subdirectoryDepth(current.depth)));
+
+                for (File file : listing.files)
+                    if (filter == null || filter.accept(file))
+                        produce(file);
+            }
+        }
+        finally {
+            for (Pending pending : queue)
+                if (pending.listing != null)
+                    pending.listing.cancel(false);
+        }
+    }
+
+    private void produceUnordered() throws InterruptedException {
+        final AtomicInteger pending = new AtomicInteger(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        /** Lists a directory and outputs its files */
+        class Walker implements Runnable {
+            final File directory;
+
+            final int depth;
+
+            Walker(File directory, int depth) {
+                this.directory = directory;
+                this.depth = depth;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (finished.getCount() == 0)
+                        return;
+                    final Listing listing = list(directory, depth);
+                    if (listing.directories != null)
+                        for (int i = 0; i < listing.files.length; i++)
+                            if (listing.directories[i]) {
+                                pending.incrementAndGet();
+                                executor.execute(new Walker(listing.files[i],
+                                    subdirectoryDepth(depth)));
+                            }
+                    for (File file : listing.files)
+                        if (filter == null || filter.accept(file))
+                            try {
+                                produce(file);
+                            }
+                            catch (IllegalStateException e) {
+                                // The iterator was closed
+                                finished.countDown();
+                                return;
+                            }
+                }
+                catch (InterruptedException e) {
+                    finished.countDown();
+                }
+                catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                    finished.countDown();
+                }
+                finally {
+                    if (pending.decrementAndGet() == 0)
+                        finished.countDown();
+                }
+            }
+        }
+
+        executor.execute(new Walker(directory, depth));
+        try {
+            finished.await();
+        }
+        finally {
+            // Stop the walkers that are still running
+            finished.countDown();
+        }
+
+        if (error.get() != null)
+            throw new RuntimeException(String.format(
+                "Error while walking %s", directory), error.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ParallelFileIterator(%s, %s)", directory,
+            ordered ? "ordered" : "unordered");
+    }
+
+    /** Test */
+    static public void main(final String[] args) {
+        if (args.length != 3 && args.length != 2) {
+            System.err
+                .println("ParallelFileIterator <directory> <ext> <skipRegExp>");
+            System.exit(1);
+        }
+        final Iterator<File> i = new ParallelFileIterator(new File(args[0]),
+            -1, FileSystem.newRegexpFileFilter(args[1],
+                args.length == 3 ? args[2] : null), Runtime.getRuntime()
+                .availableProcessors(), false);
+        while (i.hasNext()) {
+            final Object x = i.next();
+            System.out.println(x);
+        }
+    }
+}
@@ -3,7 +3,8 @@ package bpiwowar.tasks;
 import bpiwowar.argparser.Argument;
 import bpiwowar.experiments.AbstractTask;
 import bpiwowar.experiments.TaskDescription;
-import bpiwowar.utils.iterators.ReadLineIterator;
+import bpiwowar.io.RecordReader;
+import java.io.PrintStream;
 
 @TaskDescription(name = "check-number-of-tabs", description = "Check that there is a given number of tabs on each line, redirecting to standard output the wrong lines", project = {"data"})
 public class CheckNumberTabs extends AbstractTask {
@@ -12,16 +13,13 @@ public class CheckNumberTabs extends AbstractTask {
 
     @Override
     public int execute() throws Throwable {
-        for (String line : new ReadLineIterator(System.in)) {
-            int count = 0;
-            for (int i = line.length(); --i >= 0 && count <= n; )
-                if (line.charAt(i) == '\t')
-                    count++;
-            if (count == n)
-                System.out.println(line);
-            else
-                System.err.println(line);
-
+        // Lines are copied as bytes, without being decoded
+        final RecordReader reader = new RecordReader(System.in, '\t');
+        while (reader.next()) {
+            final PrintStream out = reader.fieldCount() == n + 1 ? System.out
+                : System.err;
+            reader.writeTo(out);
+            out.println();
         }
         return 0;
     }
@@ -21,9 +21,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Type;
-import java.util.zip.GZIPInputStream;
 
 @TaskDescription(name = "get-stored-object", description = "Get an object stored in a BatchFileStorage", project = {"db"})
 public class GetStoredObject extends AbstractTask {
@@ -80,6 +80,7 @@ public class GetStoredObject extends AbstractTask {
         @SuppressWarnings({"rawtypes"})
         BatchFileStorage storage = new BatchFileStorage(dbenv, dbname, null,
             keyClass, true, false);
+        storage.setMemoryMapped(true);
         if (key != null) {
 
             Object tkey = null;
@@ -114,7 +115,7 @@ public class GetStoredObject extends AbstractTask {
                 if (storage.isCompressed()) {
                     ByteArrayInputStream byteIn = new ByteArrayInputStream(
                         byteArray.toByteArray());
-                    GZIPInputStream gzin = new GZIPInputStream(byteIn);
+                    InputStream gzin = storage.getCompression().input(byteIn);
                     byteArray.reset();
                     byte[] buffer = new byte[8192];
                     int len = 0;
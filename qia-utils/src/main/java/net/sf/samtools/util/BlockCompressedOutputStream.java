@@ -111,6 +111,35 @@ public class BlockCompressedOutputStream
         deflater = new Deflater(compressionLevel, true);
     }
 
+    /**
+     * Compress to a stream (see {@link #BlockCompressedOutputStream(OutputStream, int)}). Uses default compression
+     * level, which is 5 unless changed by setDefaultCompressionLevel
+     */
+    public BlockCompressedOutputStream(final OutputStream stream) {
+        this(stream, defaultCompressionLevel);
+    }
+
+    /**
+     * Compress to a stream. Calling flush() writes all the buffered bytes as complete blocks, so that several
+     * sequences of blocks can be written to the same stream (e.g. one per record) without writing the terminator
+     * block.
+     *
+     * @param compressionLevel 1 <= compressionLevel <= 9
+     */
+    public BlockCompressedOutputStream(final OutputStream stream, final int compressionLevel) {
+        this.file = null;
+        codec = new BinaryCodec(stream);
+        deflater = new Deflater(compressionLevel, true);
+    }
+
+    /**
+     * Change the underlying stream (only for stream based output, after a flush)
+     */
+    public void setOutputStream(final OutputStream stream) {
+        assert (file == null && numUncompressedBytes == 0);
+        codec.setOutputStream(stream);
+    }
+
     /**
      * Writes b.length bytes from the specified byte array to this output stream. The general contract for write(b) is
      * that it should have exactly the same effect as the call write(b, 0, b.length).
@@ -174,7 +203,8 @@ public class BlockCompressedOutputStream
         // }
         codec.writeBytes(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
         codec.close();
-        if (BlockCompressedInputStream.checkTermination(this.file) !=
+        deflater.end();
+        if (this.file != null && BlockCompressedInputStream.checkTermination(this.file) !=
             BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK) {
             throw new IOException("Terminator block not found after closing BGZF file " + this.file);
         }
@@ -0,0 +1,478 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.IntegerLocation;
+import bpiwowar.io.Compression;
+import bpiwowar.io.StreamSerializers;
+import bpiwowar.maths.matrix.CDenseDoubleMatrix2D;
+import bpiwowar.maths.matrix.DenseDoubleMatrix2D;
+import bpiwowar.maths.matrix.DoubleMatrix2D;
+import bpiwowar.maths.matrix.MatrixSerializers;
+import bpiwowar.pipe.Processor;
+import bpiwowar.system.TemporaryDirectory;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchFileStorageTest {
+    private TemporaryDirectory directory;
+
+    private Environment dbenv;
+
+    @Before
+    public void setUp() throws Throwable {
+        directory = new TemporaryDirectory("batchfilestorage", "");
+        EnvironmentConfig config = new EnvironmentConfig();
+        config.setAllowCreate(true);
+        dbenv = new Environment(directory.getFile(), config);
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        dbenv.close();
+        directory.close();
+    }
+
+    static String value(int i) {
+        return "object-" + i;
+    }
+
+    BatchFileStorage<Integer, IntegerLocation, String> create(boolean compress)
+        throws Throwable {
+        return new BatchFileStorage<Integer, IntegerLocation, String>(dbenv,
+            "test", null, IntegerLocation.class, compress, false);
+    }
+
+    @Test
+    public void storeAndGet() throws Throwable {
+        for (boolean compress : new boolean[] {false, true}) {
+            BatchFileStorage<Integer, IntegerLocation, String> storage = create(compress);
+            for (int i = 0; i < 100; i++)
+                storage.storeObject(i, value(i));
+            storage.storeObject(10, value(1000));
+
+            Assert.assertEquals(100, storage.count());
+            Assert.assertEquals(value(1000), storage.getStoredObject(10));
+            for (int i = 11; i < 100; i++)
+                Assert.assertEquals(value(i), storage.getStoredObject(i));
+            Assert.assertNull(storage.getStoredObject(1000));
+            storage.close();
+        }
+    }
+
+    @Test
+    public void multiGet() throws Throwable {
+        BatchFileStorage<Integer, IntegerLocation, String> storage = create(true);
+        storage.sizeLimit = 4096;
+        for (int i = 0; i < 1000; i++)
+            storage.storeObject(i, value(i));
+        for (int i = 0; i < 1000; i += 3)
+            storage.storeObject(i, value(i + 1000));
+
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 1500; --i >= 0; )
+            keys.add(i);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (ExecutorService e : new ExecutorService[] {null, executor}) {
+            Map<Integer, String> map = storage.getStoredObjects(keys, e);
+            Assert.assertEquals(1000, map.size());
+            for (int i = 0; i < 1000; i++)
+                Assert.assertEquals(value(i % 3 == 0 ? i + 1000 : i), map
+                    .get(i));
+        }
+        executor.shutdown();
+        storage.close();
+    }
+
+    @Test
+    public void scan() throws Throwable {
+        BatchFileStorage<Integer, IntegerLocation, String> storage = create(true);
+        storage.sizeLimit = 4096;
+        for (int i = 0; i < 1000; i++)
+            storage.storeObject(i, value(i));
+        for (int i = 0; i < 1000; i += 3)
+            storage.storeObject(i, value(i + 1000));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (ExecutorService e : new ExecutorService[] {null, executor}) {
+            final Map<Integer, String> map = new ConcurrentHashMap<Integer, String>();
+            Assert.assertEquals(1000, storage.scan(e,
+                new Processor<Entry<Integer, String>, Object>() {
+                    @Override
+                    public Object process(Entry<Integer, String> entry) {
+                        Assert.assertNull(map.put(entry.getKey(), entry
+                            .getValue()));
+                        return null;
+                    }
+                }));
+            Assert.assertEquals(1000, map.size());
+            for (int i = 0; i < 1000; i++)
+                Assert.assertEquals(value(i % 3 == 0 ? i + 1000 : i), map
+                    .get(i));
+        }
+        executor.shutdown();
+        storage.close();
+    }
+
+    @Test
+    public void batchWrites() throws Throwable {
+        BatchFileStorage<Integer, IntegerLocation, String> storage = create(true);
+        storage.sizeLimit = 4096;
+
+        BatchFileStorage<Integer, IntegerLocation, String>.BatchWriter writer = storage
+            .writer(1000);
+        for (int i = 0; i < 1000; i++)
+            writer.add(i, value(i));
+        writer.close();
+
+        Map<Integer, String> map = new TreeMap<Integer, String>();
+        for (int i = 0; i < 1000; i += 2)
+            map.put(i, value(i + 1000));
+        storage.storeObjects(map);
+
+        Assert.assertTrue(storage.getCurrentBatchIndex() > 0);
+        Assert.assertEquals(1000, storage.count());
+        for (int i = 0; i < 1000; i++)
+            Assert.assertEquals(value(i % 2 == 0 ? i + 1000 : i), storage
+                .getStoredObject(i));
+        storage.close();
+    }
+
+    @Test
+    public void compaction() throws Throwable {
+        final BatchFileStorage<Integer, IntegerLocation, String> storage = create(false);
+        storage.sizeLimit = 4096;
+        final int n = 1000;
+        for (int i = 0; i < n; i++)
+            storage.storeObject(i, value(i));
+        // Most of the first objects are replaced
+        for (int i = 0; i < n / 2; i++)
+            if (i % 10 != 0)
+                storage.storeObject(i, value(i + n));
+        final int batches = storage.getCurrentBatchIndex();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int k = 0; k < 10; k++)
+                        for (int i = 0; i < n; i++)
+                            Assert.assertEquals(value(i < n / 2
+                                && i % 10 != 0 ? i + n : i), storage
+                                .getStoredObject(i));
+                }
+                catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+        reader.start();
+
+        BatchFileCompactor<Integer, IntegerLocation, String> compactor = new BatchFileCompactor<Integer, IntegerLocation, String>(
+            storage, .5, 0);
+        compactor.setMaxBatches(Integer.MAX_VALUE);
+        Assert.assertTrue(compactor.compact() > 0);
+        reader.join();
+        if (error.get() != null)
+            throw error.get();
+
+        // Retired batches are deleted by the next pass
+        Assert.assertFalse(storage.retiredBatches.isEmpty());
+        compactor.compact();
+        int remaining = directory.getFile().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".obj");
+            }
+        }).length;
+        Assert.assertTrue(remaining <= batches);
+
+        for (int i = 0; i < n; i++)
+            Assert.assertEquals(value(i < n / 2 && i % 10 != 0 ? i + n : i),
+                storage.getStoredObject(i));
+        storage.close();
+    }
+
+    @Test
+    public void compactionWhileStoring() throws Throwable {
+        final BatchFileStorage<Integer, IntegerLocation, String> storage = create(false);
+        storage.sizeLimit = 4096;
+        final int n = 1000;
+        for (int i = 0; i < n; i++)
+            storage.storeObject(i, value(i));
+        for (int i = 0; i < n / 2; i++)
+            if (i % 10 != 0)
+                storage.storeObject(i, value(i + n));
+
+        // Writers replace the objects that the compaction moves
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int first = 10 * t;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 50; k++)
+                            for (int i = first; i < n / 2; i += 40)
+                                storage.storeObject(i, value(i + 2 * n));
+                    }
+                    catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers)
+            writer.start();
+
+        BatchFileCompactor<Integer, IntegerLocation, String> compactor = new BatchFileCompactor<Integer, IntegerLocation, String>(
+            storage, .5, 0);
+        compactor.setMaxBatches(Integer.MAX_VALUE);
+        for (Thread writer : writers)
+            while (writer.isAlive())
+                compactor.compact();
+        if (error.get() != null)
+            throw error.get();
+        compactor.compact();
+        compactor.compact();
+
+        // Statistics match the index
+        for (Entry<Integer, BatchFileStorage.BatchInformation> entry : storage.batchFiles
+            .entrySet())
+            Assert.assertEquals(storage.getLocations(
+                Collections.singleton(entry.getKey())).size(), entry
+                .getValue().statistics.used);
+
+        for (int i = 0; i < n; i++)
+            Assert.assertEquals(value(i >= n / 2 ? i : (i % 10 == 0 ? i + 2
+                * n : i + n)), storage.getStoredObject(i));
+        storage.close();
+    }
+
+    @Test
+    public void readAfterCompaction() throws Throwable {
+        final BatchFileStorage<Integer, IntegerLocation, String> storage = create(false);
+        storage.sizeLimit = 4096;
+        final int n = 1000;
+        for (int i = 0; i < n; i++)
+            storage.storeObject(i, value(i));
+        for (int i = 0; i < n / 2; i++)
+            if (i % 10 != 0)
+                storage.storeObject(i, value(i + n));
+
+        // Locations read before the compaction
+        final IntegerLocation old = storage.getLocation(0);
+        final File batchFile = new File(directory.getFile(), String.format(
+            "test-%05d.obj", old.batchIndex));
+
+        BatchFileCompactor<Integer, IntegerLocation, String> compactor = new BatchFileCompactor<Integer, IntegerLocation, String>(
+            storage, .5, 0);
+        compactor.setMaxBatches(Integer.MAX_VALUE);
+        compactor.compact();
+        compactor.compact();
+        Assert.assertFalse(batchFile.exists());
+
+        // Readers re-resolve the location, and do not create the batch again
+        Assert.assertEquals(value(0), storage.getStoredObject(old));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        storage.outputObject(out, 0);
+        Assert.assertEquals(storage.getObjectSize(0), out.size());
+        Assert.assertFalse(batchFile.exists());
+        storage.close();
+    }
+
+    @Test
+    public void compression() throws Throwable {
+        for (Compression compression : Compression.values()) {
+            BatchFileStorage<Integer, IntegerLocation, String> storage = new BatchFileStorage<Integer, IntegerLocation, String>(
+                dbenv, compression.toString(), null, IntegerLocation.class,
+                compression, false, StreamSerializers.<String>java());
+            for (int i = 0; i < 100; i++)
+                storage.storeObject(i, value(i));
+            for (int i = 0; i < 100; i++)
+                Assert.assertEquals(value(i), storage.getStoredObject(i));
+            storage.close();
+        }
+    }
+
+    @Test
+    public void serializer() throws Throwable {
+        BatchFileStorage<Integer, IntegerLocation, DoubleMatrix2D> storage = new BatchFileStorage<Integer, IntegerLocation, DoubleMatrix2D>(
+            dbenv, "matrices", null, IntegerLocation.class, Compression.DEFLATE, false,
+            MatrixSerializers.DOUBLE_MATRIX_2D);
+
+        DenseDoubleMatrix2D dense = new DenseDoubleMatrix2D(3, 4);
+        CDenseDoubleMatrix2D cdense = new CDenseDoubleMatrix2D(4, 3);
+        for (int i = 0; i < 3; i++)
+            for (int j = 0; j < 4; j++) {
+                dense.set(i, j, i * 4 + j + .5);
+                cdense.set(j, i, -i * 4 - j);
+            }
+        storage.storeObject(1, dense);
+        storage.storeObject(2, cdense);
+        storage.storeObject(3, dense.viewPart(1, 1, 2, 2));
+
+        final DoubleMatrix2D m1 = storage.getStoredObject(1);
+        Assert.assertTrue(m1 instanceof DenseDoubleMatrix2D);
+        Assert.assertEquals(dense.hashCode(), m1.hashCode());
+
+        final DoubleMatrix2D m2 = storage.getStoredObject(2);
+        Assert.assertTrue(m2 instanceof CDenseDoubleMatrix2D);
+        Assert.assertEquals(cdense.hashCode(), m2.hashCode());
+
+        final DoubleMatrix2D m3 = storage.getStoredObject(3);
+        Assert.assertEquals(2, m3.rows());
+        Assert.assertEquals(dense.get(2, 2), m3.get(1, 1), 0);
+        storage.close();
+    }
+
+    @Test
+    public void cache() throws Throwable {
+        BatchFileStorage<Integer, IntegerLocation, String> storage = create(true);
+        for (int i = 0; i < 100; i++)
+            storage.storeObject(i, value(i));
+        final int size = storage.getObjectSize(0);
+
+        // Room for about 20 objects
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+            20 * size, false);
+        storage.setCache(cache);
+
+        final String object = storage.getStoredObject(1);
+        Assert.assertSame(object, storage.getStoredObject(1));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        // Replaced objects are not returned
+        storage.storeObject(1, value(1001));
+        Assert.assertEquals(value(1001), storage.getStoredObject(1));
+
+        // A scan does not evict the protected objects
+        storage.getStoredObject(1);
+        for (int i = 2; i < 100; i++)
+            Assert.assertEquals(value(i), storage.getStoredObject(i));
+        Assert.assertTrue(cache.getEvictions() > 0);
+        Assert.assertTrue(cache.getWeight() <= 20 * size);
+        final long hits = cache.getHits();
+        storage.getStoredObject(1);
+        Assert.assertEquals(hits + 1, cache.getHits());
+
+        // Multi-get uses and fills the cache
+        Map<Integer, String> map = storage.getStoredObjects(Arrays.asList(1,
+            98, 99, 50));
+        Assert.assertEquals(4, map.size());
+        Assert.assertEquals(value(50), map.get(50));
+        Assert.assertTrue(cache.getHits() >= hits + 3);
+
+        // Objects heavier than the probation segment are not cached
+        cache = new ObjectCache<Integer, String>(4 * size, false);
+        storage.setCache(cache);
+        storage.getStoredObject(1);
+        Assert.assertEquals(0, cache.size());
+        cache = new ObjectCache<Integer, String>(4 * size, .5, false);
+        storage.setCache(cache);
+        storage.getStoredObject(1);
+        Assert.assertEquals(1, cache.size());
+
+        // Soft references
+        storage.setCache(new ObjectCache<Integer, String>(1 << 20, true));
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals(value(i == 1 ? 1001 : i), storage
+                .getStoredObject(i));
+        storage.close();
+    }
+
+    @Test
+    public void memoryMapped() throws Throwable {
+        BatchFileStorage<Integer, IntegerLocation, String> storage = create(true);
+        storage.sizeLimit = 4096;
+        for (int i = 0; i < 1000; i++)
+            storage.storeObject(i, value(i));
+        storage.close();
+        dbenv.close();
+
+        EnvironmentConfig config = new EnvironmentConfig();
+        config.setReadOnly(true);
+        dbenv = new Environment(directory.getFile(), config);
+        storage = create(true);
+        storage.setMemoryMapped(true);
+        Assert.assertTrue(storage.isMemoryMapped());
+        Assert.assertTrue(storage.getCurrentBatchIndex() > 0);
+        for (int i = 0; i < 1000; i++)
+            Assert.assertEquals(value(i), storage.getStoredObject(i));
+        storage.close();
+    }
+
+    @Test
+    public void concurrentReads() throws Throwable {
+        final BatchFileStorage<Integer, IntegerLocation, String> storage = create(true);
+        final int n = 1000;
+        for (int i = 0; i < n; i++)
+            storage.storeObject(i, value(i));
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 5 * n; k++) {
+                            int i = (k * 7 + seed * 13) % n;
+                            Assert.assertEquals(value(i), storage
+                                .getStoredObject(i));
+                        }
+                    }
+                    catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        // A writer appends new objects while the readers are working
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = n; i < 2 * n; i++)
+                        storage.storeObject(i, value(i));
+                }
+                catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        if (error.get() != null)
+            throw error.get();
+
+        for (int i = 0; i < 2 * n; i++)
+            Assert.assertEquals(value(i), storage.getStoredObject(i));
+        storage.close();
+    }
+}
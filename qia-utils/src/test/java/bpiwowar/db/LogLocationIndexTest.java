@@ -0,0 +1,124 @@
+package bpiwowar.db;
+
+import bpiwowar.db.BatchFileStorage.IntegerLocation;
+import bpiwowar.db.BatchFileStorage.StringLocation;
+import bpiwowar.io.Compression;
+import bpiwowar.io.StreamSerializers;
+import bpiwowar.system.TemporaryDirectory;
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogLocationIndexTest {
+    private TemporaryDirectory directory;
+
+    @Before
+    public void setUp() throws Throwable {
+        directory = new TemporaryDirectory("locationindex", "");
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        directory.close();
+    }
+
+    LogLocationIndex<String, StringLocation> open(boolean readOnly)
+        throws Throwable {
+        return new LogLocationIndex<String, StringLocation>(directory
+            .getFile(), "test", StringLocation.class, readOnly, false);
+    }
+
+    static StringLocation location(int i) {
+        StringLocation location = new StringLocation("key-" + i + "-\u00e9");
+        location.batchIndex = i % 7;
+        location.position = 1000l * i;
+        location.size = i;
+        return location;
+    }
+
+    static void check(LogLocationIndex<String, StringLocation> index, int n,
+        int replaced) {
+        Assert.assertEquals(n, index.count());
+        for (int i = 0; i < n; i++) {
+            StringLocation location = index.get("key-" + i + "-\u00e9");
+            Assert.assertEquals(i < replaced ? -i : i, location.size);
+            Assert.assertEquals(1000l * i, location.position);
+        }
+        Assert.assertNull(index.get("key-" + n));
+    }
+
+    @Test
+    public void logAndSnapshot() throws Throwable {
+        LogLocationIndex<String, StringLocation> index = open(false);
+        index.minLogRecords = 100;
+        final int n = 1000;
+        for (int i = 0; i < n; i++)
+            index.put(location(i));
+        for (int i = 0; i < 10; i++) {
+            StringLocation location = location(i);
+            location.size = -i;
+            index.put(location);
+        }
+        check(index, n, 10);
+
+        // Cursor
+        int count = 0;
+        LocationIndex.Cursor<StringLocation> cursor = index.cursor();
+        for (StringLocation location = cursor.next(); location != null; location = cursor
+            .next())
+            count++;
+        cursor.close();
+        Assert.assertEquals(n, count);
+
+        // Without closing (log only)
+        index.sync();
+        check(open(true), n, 10);
+
+        index.close();
+        Assert.assertEquals(0, new File(directory.getFile(),
+            "test.locations.log").length());
+        check(open(true), n, 10);
+    }
+
+    @Test
+    public void truncatedLog() throws Throwable {
+        LogLocationIndex<String, StringLocation> index = open(false);
+        for (int i = 0; i < 10; i++)
+            index.put(location(i));
+        index.sync();
+
+        // Simulates a crash while writing the last record
+        File log = new File(directory.getFile(), "test.locations.log");
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        index = open(false);
+        Assert.assertEquals(9, index.count());
+        index.put(location(9));
+        index.sync();
+        check(open(true), 10, 0);
+    }
+
+    @Test
+    public void storage() throws Throwable {
+        final File home = directory.getFile();
+        for (int k = 0; k < 2; k++) {
+            BatchFileStorage<Integer, IntegerLocation, String> storage = new BatchFileStorage<Integer, IntegerLocation, String>(
+                new LogLocationIndex<Integer, IntegerLocation>(home, "objects",
+                    IntegerLocation.class, false, k == 0), "objects", home,
+                IntegerLocation.class, Compression.DEFLATE, k == 0,
+                StreamSerializers.<String>java());
+            if (k == 0)
+                for (int i = 0; i < 100; i++)
+                    storage.storeObject(i, "object-" + i);
+            Assert.assertEquals(100, storage.count());
+            for (int i = 0; i < 100; i++)
+                Assert.assertEquals("object-" + i, storage.getStoredObject(i));
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package bpiwowar.io;
+
+import bpiwowar.pipe.CloseableIterator;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedReaderTest {
+    private File file;
+
+    private ArrayList<String> lines = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Throwable {
+        file = File.createTempFile("chunks", ".txt");
+        PrintStream out = new PrintStream(file, "UTF-8");
+        for (int i = 0; i < 5000; i++) {
+            final String line = String.format("topic-%d\tdoc-%d\t%d", i % 7,
+                i, i % 3);
+            lines.add(line);
+            out.print(line);
+            if (i < 4999)
+                out.print('\n');
+        }
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** Returns the lines of a chunk */
+    static final ChunkedReader.Handler<List<String>> LINES = new ChunkedReader.Handler<List<String>>() {
+        public List<String> process(ChunkedReader.Chunk chunk,
+            RecordReader records) throws IOException {
+            ArrayList<String> list = new ArrayList<String>();
+            while (records.next())
+                list.add(records.toString());
+            return list;
+        }
+    };
+
+    @Test
+    public void split() throws Throwable {
+        ChunkedReader reader = new ChunkedReader(file, '\t');
+        for (long size : new long[] {1, 100, 4096, 1 << 20}) {
+            List<ChunkedReader.Chunk> chunks = reader.split(size);
+            Assert.assertEquals(0, chunks.get(0).start);
+            Assert.assertEquals(file.length(), chunks.get(chunks.size() - 1).end);
+            ArrayList<String> all = new ArrayList<String>();
+            for (int i = 0; i < chunks.size(); i++) {
+                if (i > 0)
+                    Assert.assertEquals(chunks.get(i - 1).end,
+                        chunks.get(i).start);
+                all.addAll(LINES.process(chunks.get(i), reader.open(chunks
+                    .get(i))));
+            }
+            Assert.assertEquals(lines, all);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void ordered() throws Throwable {
+        ChunkedReader reader = new ChunkedReader(file, '\t');
+        CloseableIterator<List<String>> results = reader.process(LINES, 1000,
+            4, true);
+        ArrayList<String> all = new ArrayList<String>();
+        while (results.hasNext())
+            all.addAll(results.next());
+        Assert.assertEquals(lines, all);
+        reader.close();
+    }
+
+    @Test
+    public void merged() throws Throwable {
+        ChunkedReader reader = new ChunkedReader(file, '\t');
+        Map<String, Integer> sums = ChunkedReader.merge(reader.process(
+            new ChunkedReader.Handler<Map<String, Integer>>() {
+                public Map<String, Integer> process(ChunkedReader.Chunk chunk,
+                    RecordReader records) throws IOException {
+                    HashMap<String, Integer> map = new HashMap<String, Integer>();
+                    while (records.next()) {
+                        String topic = records.field(0).toString();
+                        Integer sum = map.get(topic);
+                        map.put(topic, (sum == null ? 0 : sum)
+                            + records.field(2).parseInt());
+                    }
+                    return map;
+                }
+            }, 500, 3, false), ChunkedReader.INTEGER_SUM);
+        reader.close();
+
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            String topic = "topic-" + (i % 7);
+            Integer sum = expected.get(topic);
+            expected.put(topic, (sum == null ? 0 : sum) + i % 3);
+        }
+        Assert.assertEquals(expected, sums);
+    }
+}
@@ -0,0 +1,66 @@
+package bpiwowar.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressionTest {
+    static byte[] data(Random random, int length, int alphabet) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte)random.nextInt(alphabet);
+        return data;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Random random = new Random(1);
+        for (Compression compression : Compression.values())
+            for (int length : new int[] {0, 1, 100, 70000, 300000})
+                for (int alphabet : new int[] {2, 256}) {
+                    final byte[] data = data(random, length, alphabet);
+
+                    // Two records in a row, to check that closing does not
+                    // close the underlying stream
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    for (int k = 0; k < 2; k++) {
+                        OutputStream out = compression.output(bytes);
+                        final int half = length / 2;
+                        out.write(data, 0, half);
+                        if (length > 0) {
+                            out.write(data[half]);
+                            out.write(data, half + 1, length - half - 1);
+                        }
+                        out.close();
+                    }
+                    final int size = bytes.size() / 2;
+
+                    InputStream in = compression.input(new ByteArrayInputStream(
+                        bytes.toByteArray(), 0, size));
+                    byte[] read = new byte[length];
+                    StreamSerializers.readFully(in, read, 0, length);
+                    Assert.assertEquals(compression.toString(), -1, in.read());
+                    in.close();
+                    Assert.assertArrayEquals(compression.toString(), data, read);
+                }
+    }
+
+    @Test
+    public void lzf() throws Exception {
+        LZF encoder = new LZF();
+        byte[] data = "abcabcabcabcabcabcxyzxyzabcabcabcabcabcabc-abcabcabcabc"
+            .getBytes();
+        byte[] compressed = new byte[LZF.maxCompressedLength(data.length)];
+        int size = encoder.compress(data, 0, data.length, compressed, 0);
+        Assert.assertTrue(size < data.length);
+
+        byte[] decompressed = new byte[data.length];
+        Assert.assertEquals(data.length, LZF.decompress(compressed, 0, size,
+            decompressed, 0));
+        Assert.assertArrayEquals(data, decompressed);
+    }
+}
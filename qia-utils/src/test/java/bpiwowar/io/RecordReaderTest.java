@@ -0,0 +1,130 @@
+package bpiwowar.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RecordReaderTest {
+    static RecordReader reader(String s, int separator, int bufferSize) {
+        return new RecordReader(Channels.newChannel(new ByteArrayInputStream(
+            s.getBytes(RecordReader.UTF8))), separator, bufferSize);
+    }
+
+    @Test
+    public void whitespace() throws Throwable {
+        RecordReader reader = reader(
+            "q1 Q0  doc-1 1 12.5 run\r\n\n  q2\tQ0 d\u00e9 2 -3 run", RecordReader.WHITESPACE,
+            16);
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(6, reader.fieldCount());
+        Assert.assertEquals("doc-1", reader.field(2).toString());
+        Assert.assertTrue(reader.field(0).contentEquals("q1"));
+        Assert.assertEquals(1, reader.field(3).parseInt());
+        Assert.assertEquals(12.5, reader.field(4).parseDouble(), 0);
+        Assert.assertEquals("run", reader.field(5).toString());
+
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(0, reader.fieldCount());
+
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(6, reader.fieldCount());
+        Assert.assertEquals("q2", reader.field(0).toString());
+        Assert.assertEquals("d\u00e9", reader.field(2).toString());
+        Assert.assertEquals(-3., reader.field(4).parseDouble(), 0);
+        Assert.assertEquals(3, reader.getLineNumber());
+        Assert.assertFalse(reader.next());
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void separator() throws Throwable {
+        RecordReader reader = new RecordReader(ByteBuffer.wrap("a\t\tb\n\tc\n"
+            .getBytes(RecordReader.UTF8)), '\t');
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(3, reader.fieldCount());
+        Assert.assertEquals(0, reader.field(1).length());
+        Assert.assertEquals("b", reader.field(2).toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.writeTo(out);
+        Assert.assertEquals("a\t\tb", out.toString("UTF-8"));
+
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(2, reader.fieldCount());
+        Assert.assertEquals("c", reader.field(1).toString());
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void longLines() throws Throwable {
+        // Lines longer than the buffer
+        StringBuilder sb = new StringBuilder();
+        for (int line = 0; line < 50; line++) {
+            for (int i = 0; i < line * 3; i++)
+                sb.append(i).append('\t');
+            sb.append("end\n");
+        }
+        RecordReader reader = reader(sb.toString(), '\t', 16);
+        for (int line = 0; line < 50; line++) {
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(line * 3 + 1, reader.fieldCount());
+            for (int i = 0; i < line * 3; i++)
+                Assert.assertEquals(i, reader.field(i).parseInt());
+            Assert.assertEquals("end", reader.field(line * 3).toString());
+        }
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void numbers() throws Throwable {
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        String[] values = new String[1000];
+        for (int i = 0; i < values.length; i++) {
+            switch (i % 4) {
+            case 0:
+                values[i] = Double.toString(random.nextGaussian());
+                break;
+            case 1:
+                values[i] = String.format(Locale.ENGLISH, "%.4f",
+                    random.nextDouble() * 1000);
+                break;
+            case 2:
+                values[i] = Long.toString(random.nextLong());
+                break;
+            default:
+                values[i] = Double.toString(random.nextDouble() * 1e-30);
+            }
+            sb.append(values[i]).append(' ');
+        }
+        sb.append(Long.MIN_VALUE).append(' ').append("NaN 0.000001 -0\n");
+        RecordReader reader = reader(sb.toString(), RecordReader.WHITESPACE,
+            64);
+        Assert.assertTrue(reader.next());
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(values[i], Double.parseDouble(values[i]),
+                reader.field(i).parseDouble(), 0);
+            if (i % 4 == 2)
+                Assert.assertEquals(Long.parseLong(values[i]), reader.field(i)
+                    .parseLong());
+        }
+        Assert.assertEquals(Long.MIN_VALUE, reader.field(values.length)
+            .parseLong());
+        Assert.assertTrue(Double.isNaN(reader.field(values.length + 1)
+            .parseDouble()));
+        Assert.assertEquals(0.000001, reader.field(values.length + 2)
+            .parseDouble(), 0);
+
+        try {
+            reader.field(values.length + 1).parseInt();
+            Assert.fail("NaN is not an integer");
+        }
+        catch (NumberFormatException e) {
+        }
+    }
+}
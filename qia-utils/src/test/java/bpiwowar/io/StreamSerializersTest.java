@@ -0,0 +1,72 @@
+package bpiwowar.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamSerializersTest {
+    /**
+     * Contiguous and strided values, over several blocks
+     */
+    @Test
+    public void strides() throws Exception {
+        Random random = new Random(1);
+        for (int length : new int[] {0, 1, 3000})
+            for (int stride : new int[] {1, 3}) {
+                final int size = length * stride + 2;
+                double[] doubles = new double[size];
+                int[] ints = new int[size];
+                long[] longs = new long[size];
+                float[] floats = new float[size];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = random.nextDouble();
+                    ints[i] = random.nextInt();
+                    longs[i] = random.nextLong();
+                    floats[i] = random.nextFloat();
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                StreamSerializers.writeDoubles(out, doubles, 2, stride, length);
+                StreamSerializers.writeInts(out, ints, 2, stride, length);
+                StreamSerializers.writeLongs(out, longs, 2, stride, length);
+                StreamSerializers.writeFloats(out, floats, 2, stride, length);
+                Assert.assertEquals(length * 24, out.size());
+
+                InputStream in = new ByteArrayInputStream(out.toByteArray());
+                // Same format as the data streams
+                DataInputStream data = new DataInputStream(
+                    new ByteArrayInputStream(out.toByteArray()));
+                double[] d = new double[size];
+                int[] n = new int[size];
+                long[] l = new long[size];
+                float[] f = new float[size];
+                StreamSerializers.readDoubles(in, d, 2, stride, length);
+                StreamSerializers.readInts(in, n, 2, stride, length);
+                StreamSerializers.readLongs(in, l, 2, stride, length);
+                StreamSerializers.readFloats(in, f, 2, stride, length);
+                Assert.assertEquals(-1, in.read());
+
+                for (int i = 0, k = 2; i < length; i++, k += stride)
+                    Assert.assertEquals(doubles[k], data.readDouble(), 0);
+                for (int i = 0, k = 2; i < length; i++, k += stride)
+                    Assert.assertEquals(ints[k], data.readInt());
+                for (int i = 0, k = 2; i < length; i++, k += stride)
+                    Assert.assertEquals(longs[k], data.readLong());
+                for (int i = 0, k = 2; i < length; i++, k += stride)
+                    Assert.assertEquals(floats[k], data.readFloat(), 0);
+
+                for (int i = 0; i < size; i++) {
+                    final boolean read = i >= 2 && (i - 2) % stride == 0
+                        && i < 2 + length * stride;
+                    Assert.assertEquals(read ? doubles[i] : 0, d[i], 0);
+                    Assert.assertEquals(read ? ints[i] : 0, n[i]);
+                    Assert.assertEquals(read ? longs[i] : 0, l[i]);
+                    Assert.assertEquals(read ? floats[i] : 0, f[i], 0);
+                }
+            }
+    }
+}
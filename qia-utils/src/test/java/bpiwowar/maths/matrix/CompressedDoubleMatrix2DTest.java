@@ -0,0 +1,179 @@
+package bpiwowar.maths.matrix;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressedDoubleMatrix2DTest {
+    final static private double DELTA = 1e-10;
+
+    /**
+     * Fills a builder and a dense matrix with the same random sparse values
+     */
+    static COOBuilder random(Random random, DenseDoubleMatrix2D dense,
+        double density) {
+        COOBuilder builder = new COOBuilder(dense.rows, dense.columns);
+        for (int i = 0; i < dense.rows; i++)
+            for (int j = 0; j < dense.columns; j++)
+                if (random.nextDouble() < density) {
+                    double v = random.nextDouble() - .5;
+                    // Split the value in two triples
+                    builder.add(i, j, v / 4);
+                    builder.add(i, j, 3 * v / 4);
+                    dense.set(i, j, v);
+                }
+        return builder;
+    }
+
+    static CompressedDoubleMatrix2D build(COOBuilder builder, boolean csr) {
+        return csr ? builder.buildCSR() : builder.buildCSC();
+    }
+
+    @Test
+    public void builder() {
+        COOBuilder builder = new COOBuilder(3, 4);
+        builder.add(2, 1, 1);
+        builder.add(0, 3, 2);
+        builder.add(2, 1, 2);
+        builder.add(1, 0, 5);
+        builder.add(1, 0, -5);
+        builder.add(0, 0, 1);
+
+        for (CompressedDoubleMatrix2D m : new CompressedDoubleMatrix2D[] {
+            builder.buildCSR(), builder.buildCSC() }) {
+            Assert.assertEquals(3, m.getNonZeroCount());
+            Assert.assertEquals(3., m.get(2, 1), 0);
+            Assert.assertEquals(2., m.get(0, 3), 0);
+            Assert.assertEquals(1., m.get(0, 0), 0);
+            Assert.assertEquals(0., m.get(1, 0), 0);
+            Assert.assertEquals(3., m.cardinality(), 0);
+
+            m.set(2, 1, 4);
+            Assert.assertEquals(4., m.get(2, 1), 0);
+            Assert.assertEquals(4., m.viewDice().get(1, 2), 0);
+            try {
+                m.set(1, 1, 1);
+                Assert.fail("The structure of a compressed matrix is fixed");
+            }
+            catch (IndexOutOfBoundsException e) {
+            }
+        }
+    }
+
+    @Test
+    public void matrixVector() {
+        Random random = new Random(0);
+        for (int size : new int[] { 5, 700 }) {
+            DenseDoubleMatrix2D dense = new DenseDoubleMatrix2D(size, size + 3);
+            COOBuilder builder = random(random, dense, .1);
+            for (boolean csr : new boolean[] { true, false })
+                for (boolean transpose : new boolean[] { false, true }) {
+                    CompressedDoubleMatrix2D A = build(builder, csr);
+                    final int m = transpose ? A.columns : A.rows;
+                    final int n = transpose ? A.rows : A.columns;
+                    DenseDoubleMatrix1D x = DoubleMatrix1DTest.randomise(
+                        random, new DenseDoubleMatrix1D(n));
+                    DenseDoubleMatrix1D y = DoubleMatrix1DTest.randomise(
+                        random, new DenseDoubleMatrix1D(m));
+                    DoubleMatrix1D expected = new Multiply.DefaultMultiplier1D()
+                        .multiply(dense, x, y.copy(), 2, .5, transpose);
+
+                    Multiply.multiply(A, x, y, 2, .5, transpose);
+                    for (int i = 0; i < m; i++)
+                        Assert.assertEquals(expected.get(i), y.get(i), DELTA);
+                }
+        }
+    }
+
+    @Test
+    public void sparseDense() {
+        Random random = new Random(1);
+        for (int size : new int[] { 6, 300 }) {
+            DenseDoubleMatrix2D dense = new DenseDoubleMatrix2D(size, size + 5);
+            COOBuilder builder = random(random, dense, .05);
+            for (int t = 0; t < 8; t++) {
+                final boolean csr = (t & 1) != 0, tA = (t & 2) != 0, tB = (t & 4) != 0;
+                CompressedDoubleMatrix2D A = build(builder, csr);
+                final int m = tA ? A.columns : A.rows;
+                final int n = tA ? A.rows : A.columns;
+                final int p = 20;
+                DenseDoubleMatrix2D B = DoubleMatrix2DTest.randomise(random,
+                    new DenseDoubleMatrix2D(tB ? p : n, tB ? n : p));
+                DenseDoubleMatrix2D C = DoubleMatrix2DTest.randomise(random,
+                    new DenseDoubleMatrix2D(m, p));
+                DoubleMatrix2D expected = C.copy();
+                new Multiply.DefaultMultiplier2D().multiply(dense, B, expected,
+                    -1, 2, tA, tB);
+
+                Multiply.multiply(A, B, C, -1, 2, tA, tB);
+                DoubleMatrix2DTest.assertEqual(expected, C, DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void sparseSparse() {
+        Random random = new Random(2);
+        for (int size : new int[] { 7, 400 }) {
+            DenseDoubleMatrix2D denseA = new DenseDoubleMatrix2D(size, size + 2);
+            COOBuilder builderA = random(random, denseA, .02);
+            DenseDoubleMatrix2D denseB = new DenseDoubleMatrix2D(size + 2, size);
+            COOBuilder builderB = random(random, denseB, .02);
+
+            for (int t = 0; t < 16; t++) {
+                final boolean csrA = (t & 1) != 0, csrB = (t & 2) != 0;
+                // A B, or t(t(A)) t(t(B))
+                final boolean tA = (t & 4) != 0, tB = (t & 8) != 0;
+                CompressedDoubleMatrix2D A = build(builderA, csrA);
+                CompressedDoubleMatrix2D B = build(builderB, csrB);
+                if (tA)
+                    A = A.transpose();
+                if (tB)
+                    B = B.transpose();
+
+                DoubleMatrix2D expected = new Multiply.DefaultMultiplier2D()
+                    .multiply(denseA, denseB, null, 3, 0, false, false);
+                DoubleMatrix2D C = Multiply.multiply(A, B, null, 3, 0, tA, tB);
+                Assert.assertTrue(C instanceof CSRDoubleMatrix2D);
+                DoubleMatrix2DTest.assertEqual(expected, C, DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void sparseSparseAccumulate() {
+        Random random = new Random(3);
+        DenseDoubleMatrix2D denseA = new DenseDoubleMatrix2D(50, 40);
+        CompressedDoubleMatrix2D A = random(random, denseA, .05).buildCSR();
+        DenseDoubleMatrix2D denseB = new DenseDoubleMatrix2D(40, 60);
+        CompressedDoubleMatrix2D B = random(random, denseB, .05).buildCSC();
+
+        // C has the structure of A B, and some more elements
+        DenseDoubleMatrix2D denseC = new DenseDoubleMatrix2D(50, 60);
+        COOBuilder builder = random(random, denseC, .05);
+        final CSRDoubleMatrix2D AB = (CSRDoubleMatrix2D)Multiply.multiply(A, B,
+            null, 1, 0, false, false);
+        for (int i = 0; i < AB.rows; i++)
+            for (int k = AB.pointers[i]; k < AB.pointers[i + 1]; k++) {
+                final double v = random.nextDouble() + 1;
+                builder.add(i, AB.indices[k], v);
+                denseC.set(i, AB.indices[k], denseC.get(i, AB.indices[k]) + v);
+            }
+        CSRDoubleMatrix2D C = builder.buildCSR();
+
+        DoubleMatrix2D expected = denseC.copy();
+        new Multiply.DefaultMultiplier2D().multiply(denseA, denseB, expected,
+            2, -.5, false, false);
+        Assert.assertSame(C, Multiply.multiply(A, B, C, 2, -.5, false, false));
+        DoubleMatrix2DTest.assertEqual(expected, C, DELTA);
+
+        // The product does not fit in an empty structure
+        CSRDoubleMatrix2D empty = new CSRDoubleMatrix2D(50, 60);
+        try {
+            Multiply.multiply(A, B, empty, 1, 1, false, false);
+            Assert.fail("The product was added outside of the structure");
+        }
+        catch (IndexOutOfBoundsException e) {
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package bpiwowar.maths.matrix;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectDoubleMatrix2DTest {
+    final static private double DELTA = 1e-10;
+
+    @Test
+    public void mapped() throws Throwable {
+        File file = File.createTempFile("matrix", ".bin");
+        try {
+            DirectDoubleMatrix2D m = DirectDoubleMatrix2D.map(file, 3, 4);
+            for (int i = 0; i < 3; i++)
+                for (int j = 0; j < 4; j++)
+                    m.set(i, j, i * 10 + j);
+            Assert.assertEquals(3 * 4 * 8, file.length());
+
+            // A second mapping sees the same values
+            DirectDoubleMatrix2D other = DirectDoubleMatrix2D.map(file, 3, 4);
+            Assert.assertEquals(23., other.get(2, 3), 0);
+            other.set(1, 1, -1);
+            Assert.assertEquals(-1., m.get(1, 1), 0);
+        }
+        finally {
+            file.delete();
+        }
+
+        DirectDoubleMatrix2D m = new DirectDoubleMatrix2D.MappedFactory(null)
+            .create(2, 2);
+        m.set(1, 1, 5);
+        Assert.assertEquals(5., m.get(1, 1), 0);
+    }
+
+    @Test
+    public void viewsAndResize() {
+        DirectDoubleMatrix2D m = DoubleMatrix2DTest.randomise(new Random(0),
+            new DirectDoubleMatrix2D(5, 6));
+        DoubleMatrix2D view = m.viewPart(1, 2, 3, 3);
+        Assert.assertTrue(view instanceof DirectDoubleMatrix2D);
+        Assert.assertEquals(m.get(2, 3), view.get(1, 1), 0);
+
+        DoubleMatrix2D copy = m.copy();
+        m.copyRow(4, 0);
+        for (int j = 0; j < 6; j++)
+            Assert.assertEquals(copy.get(4, j), m.get(0, j), 0);
+
+        DoubleMatrix2D larger = m.resize(8, 9);
+        Assert.assertEquals(8, larger.rows());
+        Assert.assertEquals(m.get(3, 5), larger.get(3, 5), 0);
+    }
+
+    @Test
+    public void serialization() throws Throwable {
+        DirectDoubleMatrix2D m = DoubleMatrix2DTest.randomise(new Random(1),
+            new DirectDoubleMatrix2D(4, 5)).getViewPart(1, 1, 3, 3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(m);
+        out.close();
+        DoubleMatrix2D read = (DoubleMatrix2D)new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        DoubleMatrix2DTest.assertEqual(m, read, 0);
+    }
+
+    @Test
+    public void multiply() {
+        Random random = new Random(2);
+        DirectDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+            new DirectDoubleMatrix2D(7, 9));
+        DirectDoubleMatrix2D B = DoubleMatrix2DTest.randomise(random,
+            new DirectDoubleMatrix2D(11, 9));
+        DirectDoubleMatrix2D C = DoubleMatrix2DTest.randomise(random,
+            new DirectDoubleMatrix2D(7, 11));
+        DoubleMatrix2D expected = C.copy();
+        new Multiply.DefaultMultiplier2D().multiply(A, B, expected, 2, .5,
+            false, true);
+
+        Multiply.multiply(A, B, C, 2, .5, false, true);
+        DoubleMatrix2DTest.assertEqual(expected, C, DELTA);
+    }
+
+    @Test
+    public void javaMultiply() {
+        // Views (offset and row stride), with several panels for the last
+        // size (n = 2^15 gives panels of 32 rows or columns)
+        Random random = new Random(3);
+        final DirectDoubleMatrix2D.BlasMultiplier2D multiplier = new DirectDoubleMatrix2D.BlasMultiplier2D(
+            false);
+        for (int[] size : new int[][] { { 7, 9, 11 }, { 35, 1 << 15, 34 } })
+            for (boolean transposeA : new boolean[] { false, true })
+                for (boolean transposeB : new boolean[] { false, true }) {
+                    final int m = size[0], n = size[1], p = size[2];
+                    DirectDoubleMatrix2D A = DoubleMatrix2DTest.randomise(
+                        random,
+                        new DirectDoubleMatrix2D(transposeA ? n + 1 : m + 1,
+                            transposeA ? m + 2 : n + 2)).getViewPart(1, 2,
+                        transposeA ? n : m, transposeA ? m : n);
+                    DirectDoubleMatrix2D B = DoubleMatrix2DTest.randomise(
+                        random,
+                        new DirectDoubleMatrix2D(transposeB ? p : n,
+                            transposeB ? n + 1 : p + 1)).getViewPart(0, 1,
+                        transposeB ? p : n, transposeB ? n : p);
+                    DirectDoubleMatrix2D C = DoubleMatrix2DTest.randomise(
+                        random, new DirectDoubleMatrix2D(m + 1, p + 3))
+                        .getViewPart(1, 1, m, p);
+                    DoubleMatrix2D expected = C.copy();
+                    new Multiply.DefaultMultiplier2D().multiply(A, B,
+                        expected, 2, .5, transposeA, transposeB);
+
+                    multiplier.multiply(A, B, C, 2, .5, transposeA, transposeB);
+                    DoubleMatrix2DTest.assertEqual(expected, C, 1e-8);
+                }
+    }
+
+    @Test
+    public void vectors() {
+        Random random = new Random(3);
+        DirectDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+            new DirectDoubleMatrix2D(8, 10)).getViewPart(1, 2, 6, 7);
+        for (boolean transpose : new boolean[] {false, true}) {
+            DenseDoubleMatrix1D x = DoubleMatrix1DTest.randomise(random,
+                new DenseDoubleMatrix1D(transpose ? 6 : 7));
+            DenseDoubleMatrix1D y = DoubleMatrix1DTest.randomise(random,
+                new DenseDoubleMatrix1D(transpose ? 7 : 6));
+            DoubleMatrix1D expected = new Multiply.DefaultMultiplier1D()
+                .multiply(A, x, y.copy(), 2, .5, transpose);
+            new DirectDoubleMatrix2D.BlasMultiplier1D().multiply(A, x, y, 2,
+                .5, transpose);
+            for (int i = 0; i < y.size(); i++)
+                Assert.assertEquals(expected.get(i), y.get(i), DELTA);
+        }
+
+        DenseDoubleMatrix1D x = DoubleMatrix1DTest.randomise(random,
+            new DenseDoubleMatrix1D(6));
+        DenseDoubleMatrix1D y = DoubleMatrix1DTest.randomise(random,
+            new DenseDoubleMatrix1D(7));
+        DoubleMatrix2D expected = A.copy();
+        new Multiply.DefautRankOneUpdater().update(-1.5, expected, x, y);
+        new DirectDoubleMatrix2D.DirectRankOneUpdater().update(-1.5, A, x, y);
+        DoubleMatrix2DTest.assertEqual(expected, A, DELTA);
+
+        // They are preferred to the generic implementations
+        Multiply.Multiplier1D<DirectDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> multiplier = Multiply
+            .getMultiplier1D(DirectDoubleMatrix2D.class,
+                DenseDoubleMatrix1D.class, DenseDoubleMatrix1D.class, 6, 7);
+        Assert.assertTrue(multiplier instanceof DirectDoubleMatrix2D.BlasMultiplier1D);
+        Multiply.RankOneUpdater<DirectDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> updater = Multiply
+            .getRankOneUpdater(DirectDoubleMatrix2D.class,
+                DenseDoubleMatrix1D.class, DenseDoubleMatrix1D.class, 6, 7);
+        Assert.assertTrue(updater instanceof DirectDoubleMatrix2D.DirectRankOneUpdater);
+    }
+}
@@ -64,7 +64,7 @@ public class DoubleMatrix2DTest {
     @SuppressWarnings("unchecked")
     private static final ListAdaptator<DoubleMatrix2DFactory[]> MATRIX2D_TYPES = ListAdaptator
         .create(new DoubleMatrix2DFactory[][] {
-            {DenseDoubleMatrix2D.FACTORY},
+            {DenseDoubleMatrix2D.FACTORY}, {DirectDoubleMatrix2D.FACTORY},
             {new DensePartViewFactory()}, {new PartViewFactory()},
             {new DiceViewFactory()},});
 
@@ -0,0 +1,199 @@
+package bpiwowar.maths.matrix;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JavaMultiplyTest {
+    final static private double DELTA = 1e-10;
+
+    static final int[][] SIZES = { { 1, 1, 1 }, { 3, 5, 2 }, { 7, 13, 9 },
+        { 4, 300, 4 }, { 131, 260, 70 }, { 150, 300, 600 } };
+
+    /** Naive alpha A B + beta C */
+    static double[][] expected(DoubleMatrix2D A, DoubleMatrix2D B,
+        DoubleMatrix2D C, double alpha, double beta, boolean tA, boolean tB) {
+        final int m = tA ? A.columns : A.rows;
+        final int n = tA ? A.rows : A.columns;
+        final int p = tB ? B.rows : B.columns;
+        double[][] r = new double[m][p];
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < p; j++) {
+                double s = 0;
+                for (int k = 0; k < n; k++)
+                    s += (tA ? A.get(k, i) : A.get(i, k))
+                        * (tB ? B.get(j, k) : B.get(k, j));
+                r[i][j] = alpha * s + beta * C.get(i, j);
+            }
+        return r;
+    }
+
+    static void check(double[][] expected, DoubleMatrix2D C) {
+        for (int i = 0; i < expected.length; i++)
+            for (int j = 0; j < expected[i].length; j++)
+                Assert.assertEquals(String.format("(%d,%d)", i, j),
+                    expected[i][j], C.get(i, j), DELTA);
+    }
+
+    @Test
+    public void dense() {
+        Random random = new Random(0);
+        JavaMultiply.DenseMultiplier2D multiplier = new JavaMultiply.DenseMultiplier2D();
+        for (int[] size : SIZES)
+            for (int t = 0; t < 4; t++) {
+                final boolean tA = (t & 1) != 0, tB = (t & 2) != 0;
+                final int m = size[0], n = size[1], p = size[2];
+                // Views, so that offsets and strides are not trivial
+                DenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+                    new DenseDoubleMatrix2D(n + 3, m + 2)).getViewPart(1, 2,
+                    tA ? n : m, tA ? m : n);
+                DenseDoubleMatrix2D B = DoubleMatrix2DTest.randomise(random,
+                    new DenseDoubleMatrix2D(tB ? p : n, tB ? n : p));
+                DenseDoubleMatrix2D C = DoubleMatrix2DTest.randomise(random,
+                    new DenseDoubleMatrix2D(m + 1, p + 1)).getViewPart(1, 0, m,
+                    p);
+
+                double[][] expected = expected(A, B, C, .5, -2, tA, tB);
+                multiplier.multiply(A, B, C, .5, -2, tA, tB);
+                check(expected, C);
+            }
+    }
+
+    @Test
+    public void columnMajor() {
+        Random random = new Random(1);
+        JavaMultiply.CDenseMultiplier2D multiplier = new JavaMultiply.CDenseMultiplier2D();
+        for (int[] size : SIZES)
+            for (int t = 0; t < 4; t++) {
+                final boolean tA = (t & 1) != 0, tB = (t & 2) != 0;
+                final int m = size[0], n = size[1], p = size[2];
+                CDenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+                    new CDenseDoubleMatrix2D(tA ? n : m, tA ? m : n));
+                CDenseDoubleMatrix2D B = DoubleMatrix2DTest.randomise(random,
+                    new CDenseDoubleMatrix2D(tB ? p : n, tB ? n : p));
+                CDenseDoubleMatrix2D C = new CDenseDoubleMatrix2D(m, p);
+                for (int i = 0; i < m; i++)
+                    for (int j = 0; j < p; j++)
+                        C.set(i, j, Double.NaN);
+
+                // beta = 0 should ignore the content of C
+                double[][] expected = expected(A, B, new CDenseDoubleMatrix2D(
+                    m, p), 1, 0, tA, tB);
+                multiplier.multiply(A, B, C, 1, 0, tA, tB);
+                check(expected, C);
+            }
+    }
+
+    /** A dense vector with a stride */
+    static DenseDoubleMatrix1D vector(Random random, int n) {
+        DenseDoubleMatrix1D x = new DenseDoubleMatrix1D(new double[2 * n + 1],
+            1, 2, n);
+        for (int i = 0; i < n; i++)
+            x.set(i, random.nextDouble() - .5);
+        return x;
+    }
+
+    @Test
+    public void vectors() {
+        Random random = new Random(3);
+        for (int n : new int[] { 0, 1, 3, 4, 17, 100 }) {
+            DenseDoubleMatrix1D x = vector(random, n);
+            DenseDoubleMatrix1D y = new DenseDoubleMatrix1D(n);
+            y.assign(vector(random, n));
+            Assert.assertEquals(Multiply.DefaultInnerProduct
+                .staticInnerProduct(x, y), new JavaMultiply.DenseInnerProduct()
+                .innerProduct(x, y), DELTA);
+            Assert.assertEquals(Multiply.DefaultInnerProduct
+                .staticInnerProduct(x, y), Multiply.innerProduct(y, x), DELTA);
+
+            double[] expected = new double[n];
+            for (int i = 0; i < n; i++)
+                expected[i] = y.get(i) - 3 * x.get(i);
+            y.add(-3, x);
+            for (int i = 0; i < n; i++)
+                Assert.assertEquals(expected[i], y.get(i), DELTA);
+        }
+    }
+
+    @Test
+    public void matrixVector() {
+        Random random = new Random(4);
+        for (int[] size : SIZES)
+            for (boolean transpose : new boolean[] { false, true }) {
+                final int m = size[0], n = size[1];
+                DenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+                    new DenseDoubleMatrix2D(transpose ? n : m, transpose ? m
+                        : n));
+                CDenseDoubleMatrix2D cA = new CDenseDoubleMatrix2D(A.rows,
+                    A.columns);
+                cA.assign(A);
+                DenseDoubleMatrix1D x = vector(random, n);
+                DenseDoubleMatrix1D y = vector(random, m);
+
+                double[] expected = new double[m];
+                for (int i = 0; i < m; i++) {
+                    double s = 0;
+                    for (int j = 0; j < n; j++)
+                        s += (transpose ? A.get(j, i) : A.get(i, j)) * x.get(j);
+                    expected[i] = 2 * s + .5 * y.get(i);
+                }
+
+                DenseDoubleMatrix1D y1 = new DenseDoubleMatrix1D(m);
+                y1.assign(y);
+                new JavaMultiply.DenseMultiplier1D().multiply(A, x, y1, 2, .5,
+                    transpose);
+                DenseDoubleMatrix1D y2 = new DenseDoubleMatrix1D(m);
+                y2.assign(y);
+                new JavaMultiply.CDenseMultiplier1D().multiply(cA, x, y2, 2,
+                    .5, transpose);
+                for (int i = 0; i < m; i++) {
+                    Assert.assertEquals(expected[i], y1.get(i), DELTA);
+                    Assert.assertEquals(expected[i], y2.get(i), DELTA);
+                }
+            }
+    }
+
+    @Test
+    public void rankOneUpdate() {
+        Random random = new Random(5);
+        final int m = 13, n = 7;
+        DenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+            new DenseDoubleMatrix2D(m, n));
+        CDenseDoubleMatrix2D cA = new CDenseDoubleMatrix2D(m, n);
+        cA.assign(A);
+        DenseDoubleMatrix1D x = vector(random, m);
+        DenseDoubleMatrix1D y = vector(random, n);
+
+        DoubleMatrix2D expected = A.like(m, n);
+        expected.assign(A);
+        new Multiply.DefautRankOneUpdater().update(.8, expected, x, y);
+
+        new JavaMultiply.DenseRankOneUpdater().update(.8, A, x, y);
+        new JavaMultiply.CDenseRankOneUpdater().update(.8, cA, x, y);
+        DoubleMatrix2DTest.assertEqual(expected, A, DELTA);
+        DoubleMatrix2DTest.assertEqual(expected, cA, DELTA);
+    }
+
+    @Test
+    public void selected() {
+        // Without BLAS, Multiply should use the blocked multiplier
+        Random random = new Random(2);
+        DenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+            new DenseDoubleMatrix2D(40, 30));
+        DenseDoubleMatrix2D B = DoubleMatrix2DTest.randomise(random,
+            new DenseDoubleMatrix2D(30, 20));
+        DoubleMatrix2D C = Multiply.multiply(A, B, null, 1, 0, false, false);
+        check(expected(A, B, new DenseDoubleMatrix2D(40, 20), 1, 0, false,
+            false), C);
+
+        Assert.assertTrue(new JavaMultiply.DenseMultiplier2D().complexity(40,
+            30, 20) < new DenseDoubleMatrix2D.BlasMultiplier2D(false)
+            .complexity(40, 30, 20));
+        if (!Blas.register()) {
+            Multiply.Multiplier2D<DenseDoubleMatrix2D, DenseDoubleMatrix2D, DenseDoubleMatrix2D> multiplier = Multiply
+                .getMultiplier2D(DenseDoubleMatrix2D.class,
+                    DenseDoubleMatrix2D.class, null, 40, 30, 20);
+            Assert.assertTrue(multiplier instanceof JavaMultiply.DenseMultiplier2D);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package bpiwowar.maths.matrix;
+
+import bpiwowar.maths.matrix.Multiply.InnerProduct;
+import bpiwowar.maths.matrix.Multiply.Multiplier1D;
+import bpiwowar.maths.matrix.Multiply.Multiplier2D;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultiplyTest {
+    final static private double DELTA = 1e-10;
+
+    @Test
+    public void boundMultiplier() {
+        Multiplier2D<DenseDoubleMatrix2D, DenseDoubleMatrix2D, DenseDoubleMatrix2D> multiplier = Multiply
+            .getMultiplier2D(DenseDoubleMatrix2D.class,
+                DenseDoubleMatrix2D.class, DenseDoubleMatrix2D.class, 10, 20,
+                30);
+        // The choice is cached for the size class
+        Assert.assertSame(multiplier, Multiply.getMultiplier2D(
+            DenseDoubleMatrix2D.class, DenseDoubleMatrix2D.class,
+            DenseDoubleMatrix2D.class, 12, 17, 31));
+
+        Random random = new Random(0);
+        DenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+            new DenseDoubleMatrix2D(10, 20));
+        DenseDoubleMatrix2D B = DoubleMatrix2DTest.randomise(random,
+            new DenseDoubleMatrix2D(20, 30));
+        DenseDoubleMatrix2D C = new DenseDoubleMatrix2D(10, 30);
+        multiplier.multiply(A, B, C, 1, 0, false, false);
+
+        DoubleMatrix2D expected = new Multiply.DefaultMultiplier2D().multiply(
+            A, B, null, 1, 0, false, false);
+        DoubleMatrix2DTest.assertEqual(expected, C, DELTA);
+        DoubleMatrix2DTest.assertEqual(expected, Multiply.multiply(A, B),
+            DELTA);
+    }
+
+    @Test
+    public void boundVectorOperations() {
+        Random random = new Random(1);
+        DenseDoubleMatrix2D A = DoubleMatrix2DTest.randomise(random,
+            new DenseDoubleMatrix2D(5, 8));
+        DenseDoubleMatrix1D x = new DenseDoubleMatrix1D(8);
+        DoubleMatrix1DTest.randomise(random, x);
+
+        Multiplier1D<DenseDoubleMatrix2D, DenseDoubleMatrix1D, DenseDoubleMatrix1D> multiplier = Multiply
+            .getMultiplier1D(DenseDoubleMatrix2D.class,
+                DenseDoubleMatrix1D.class, null, 5, 8);
+        DoubleMatrix1D y = multiplier.multiply(A, x, null, 1, 0, false);
+        InnerProduct<DenseDoubleMatrix1D, DenseDoubleMatrix1D> product = Multiply
+            .getInnerProduct(DenseDoubleMatrix1D.class,
+                DenseDoubleMatrix1D.class, 8);
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals(Multiply.DefaultInnerProduct
+                .staticInnerProduct(A.viewRow(i), x), y.get(i), DELTA);
+        Assert.assertEquals(Multiply.DefaultInnerProduct.staticInnerProduct(
+            x, x), product.innerProduct(x, x), DELTA);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void noCandidate() {
+        // No inner product is registered for 2D matrices
+        Multiply.innerProductsDispatcher.get(DenseDoubleMatrix2D.class,
+            DenseDoubleMatrix2D.class, null, 1, 0, 0);
+    }
+}
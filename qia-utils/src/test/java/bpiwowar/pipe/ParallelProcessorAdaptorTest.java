@@ -0,0 +1,110 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelProcessorAdaptorTest {
+    static ArrayList<Integer> range(int n) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            list.add(i);
+        return list;
+    }
+
+    /**
+     * Squares odd numbers (and skips even ones), with random delays
+     */
+    static final Processor<Integer, Integer> SQUARE = new Processor<Integer, Integer>() {
+        public Integer process(Integer input) {
+            if (input % 7 == 0)
+                try {
+                    Thread.sleep(input % 3);
+                }
+                catch (InterruptedException e) {
+                }
+            return input % 2 == 0 ? null : input * input;
+        }
+    };
+
+    @Test
+    public void ordered() {
+        ParallelProcessorAdaptor<Integer, Integer> adaptor = new ParallelProcessorAdaptor<Integer, Integer>(
+            range(1000).iterator(), SQUARE, 4, true);
+        int expected = 1;
+        while (adaptor.hasNext()) {
+            Assert.assertEquals(expected * expected, adaptor.next().intValue());
+            expected += 2;
+        }
+        Assert.assertEquals(1001, expected);
+    }
+
+    @Test
+    public void unordered() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ParallelProcessorAdaptor<Integer, Integer> adaptor = new ParallelProcessorAdaptor<Integer, Integer>(
+            range(1000).iterator(), SQUARE, executor, 8, false);
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        while (adaptor.hasNext())
+            list.add(adaptor.next());
+        Collections.sort(list);
+        Assert.assertEquals(500, list.size());
+        for (int i = 0; i < 500; i++)
+            Assert.assertEquals((2 * i + 1) * (2 * i + 1), list.get(i)
+                .intValue());
+        executor.shutdown();
+    }
+
+    @Test
+    public void window() {
+        final AtomicInteger read = new AtomicInteger();
+        final Iterator<Integer> numbers = range(100).iterator();
+        Iterator<Integer> input = new Iterator<Integer>() {
+            public boolean hasNext() {
+                return numbers.hasNext();
+            }
+
+            public Integer next() {
+                read.incrementAndGet();
+                return numbers.next();
+            }
+
+            public void remove() {
+            }
+        };
+
+        ParallelProcessorAdaptor<Integer, Integer> adaptor = new ParallelProcessorAdaptor<Integer, Integer>(
+            input, SQUARE, 2, true);
+        adaptor.next();
+        // At most 4 inputs are read in advance
+        Assert.assertTrue(read.get() <= 5);
+        adaptor.close();
+    }
+
+    @Test
+    public void taskManager() {
+        Iterator<Integer> iterator = TaskManager.connect(range(10).iterator(),
+            new ParallelProcessor<Integer, Integer>(SQUARE, 2, true));
+        Assert.assertEquals(1, iterator.next().intValue());
+        Assert.assertEquals(9, iterator.next().intValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void exception() {
+        ParallelProcessorAdaptor<Integer, Integer> adaptor = new ParallelProcessorAdaptor<Integer, Integer>(
+            range(10).iterator(), new Processor<Integer, Integer>() {
+                public Integer process(Integer input) {
+                    if (input == 5)
+                        throw new IllegalStateException();
+                    return input;
+                }
+            }, 2, true);
+        while (adaptor.hasNext())
+            adaptor.next();
+    }
+}
@@ -0,0 +1,110 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipeMetricsTest {
+    static List<Integer> range(int n) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            list.add(i);
+        return list;
+    }
+
+    @Test
+    public void bufferMetrics() throws Throwable {
+        // Records the producing thread
+        final AtomicReference<Thread> producer = new AtomicReference<Thread>();
+        final Iterator<Integer> source = range(100).iterator();
+        BufferedIterator<Integer> iterator = new BufferedIterator<Integer>(
+            new Iterator<Integer>() {
+                public boolean hasNext() {
+                    producer.set(Thread.currentThread());
+                    return source.hasNext();
+                }
+
+                public Integer next() {
+                    return source.next();
+                }
+
+                public void remove() {
+                }
+            }, 4);
+        StageMetrics metrics = iterator.getMetrics();
+        Assert.assertEquals(4, metrics.getCapacity());
+
+        // The producer fills the buffer, and then waits for us
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((metrics.getOccupancy() < 4 || producer.get() == null || producer
+            .get().getState() != Thread.State.TIMED_WAITING)
+            && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        Assert.assertEquals(4, metrics.getOccupancy());
+        Assert.assertEquals(Thread.State.TIMED_WAITING, producer.get()
+            .getState());
+
+        int n = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            n++;
+        }
+        Assert.assertEquals(100, n);
+        Assert.assertEquals(100, metrics.getItemsIn());
+        Assert.assertEquals(100, metrics.getItemsOut());
+        Assert.assertEquals(0, metrics.getOccupancy());
+        Assert.assertTrue(metrics.getFullTime() > 0);
+    }
+
+    @Test
+    public void adaptorMetrics() {
+        ProcessorAdaptor<Integer, Integer> adaptor = new ProcessorAdaptor<Integer, Integer>(
+            range(10).iterator(), new Processor<Integer, Integer>() {
+                public Integer process(Integer input) {
+                    return input % 2 == 0 ? input : null;
+                }
+            });
+        StageMetrics metrics = adaptor.getMetrics();
+        while (adaptor.hasNext())
+            adaptor.next();
+        Assert.assertEquals(10, metrics.getItemsIn());
+        Assert.assertEquals(5, metrics.getItemsOut());
+        Assert.assertEquals(-1, metrics.getCapacity());
+
+        Flattener<Integer> flattener = new Flattener<Integer>(Arrays.asList(
+            range(3).iterator(), range(0).iterator(), range(2).iterator())
+            .iterator());
+        metrics = flattener.getMetrics();
+        while (flattener.hasNext())
+            flattener.next();
+        Assert.assertEquals(5, metrics.getItemsOut());
+    }
+
+    @Test
+    public void registry() {
+        PipeMetrics registry = new PipeMetrics();
+        StageMetrics.Counters counters = new StageMetrics.Counters();
+        counters.addIn(3);
+        counters.addOut(2);
+        registry.register("stage", counters);
+        registry.register("buffer", StageMetrics.of(RingBuffer
+            .<Integer>spsc(8)));
+        Assert.assertEquals(Arrays.asList("stage", "buffer"),
+            new ArrayList<String>(registry.getStages().keySet()));
+
+        PipeMetrics.Reporter reporter = registry.startReporter(Logger
+            .getLogger(PipeMetricsTest.class), 60000);
+        reporter.report();
+        counters.addIn(1);
+        reporter.report();
+        reporter.close();
+
+        registry.unregister("stage");
+        Assert.assertEquals(1, registry.getStages().size());
+    }
+}
@@ -0,0 +1,106 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipelineTest {
+    static List<Integer> range(int n) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            list.add(i);
+        return list;
+    }
+
+    static final Processor<Integer, Integer> DOUBLE = new Processor<Integer, Integer>() {
+        public Integer process(Integer input) {
+            return 2 * input;
+        }
+    };
+
+    /**
+     * Outputs the input twice
+     */
+    static final NestedProcessor<Integer, Integer> TWICE = new NestedProcessor<Integer, Integer>() {
+        public CloseableIterator<Integer> process(Integer input) {
+            final List<Integer> list = Arrays.asList(input, input);
+            return BatchingIterator.flatten(Collections.singletonList(list)
+                .iterator());
+        }
+    };
+
+    @Test
+    public void dag() throws Throwable {
+        final int n = 10000;
+        Pipeline pipeline = new Pipeline(16);
+        Pipeline.Stage<Integer> source = pipeline.source("source", range(n)
+            .iterator());
+
+        // Fan-out: two branches, one of them being a sink
+        Pipeline.Stage<Integer> doubled = source.process("double", DOUBLE, 4);
+        Pipeline.Stage<Integer> twice = source.flatten("twice", TWICE, 2);
+        final AtomicLong sinkSum = new AtomicLong();
+        doubled.process("sink", new Processor<Integer, Object>() {
+            public Object process(Integer input) {
+                sinkSum.addAndGet(input);
+                return null;
+            }
+        }, 2);
+
+        // Fan-in
+        CloseableIterator<Integer> iterator = pipeline.merge("merge", doubled,
+            twice).iterator();
+        pipeline.start();
+
+        long sum = 0, count = 0;
+        while (iterator.hasNext()) {
+            sum += iterator.next();
+            count++;
+        }
+        pipeline.await();
+
+        final long s = (long)n * (n - 1) / 2;
+        Assert.assertEquals(3 * n, count);
+        Assert.assertEquals(4 * s, sum);
+        Assert.assertEquals(2 * s, sinkSum.get());
+    }
+
+    @Test
+    public void error() throws Throwable {
+        Pipeline pipeline = new Pipeline(4);
+        CloseableIterator<Integer> iterator = pipeline.source("source",
+            range(1000).iterator()).process("fail",
+            new Processor<Integer, Integer>() {
+                public Integer process(Integer input) {
+                    if (input == 500)
+                        throw new IllegalStateException("failure");
+                    return input;
+                }
+            }, 2).iterator();
+        pipeline.start();
+        try {
+            while (iterator.hasNext())
+                iterator.next();
+            Assert.fail("No exception was thrown");
+        }
+        catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void earlyClose() throws Throwable {
+        Pipeline pipeline = new Pipeline(4);
+        CloseableIterator<Integer> iterator = pipeline.source("source",
+            range(100000).iterator()).process("double", DOUBLE, 2).iterator();
+        pipeline.start();
+        Assert.assertEquals(0, iterator.next().intValue());
+        iterator.close();
+        // The pipeline finishes even though nobody reads the outputs
+        pipeline.await();
+    }
+}
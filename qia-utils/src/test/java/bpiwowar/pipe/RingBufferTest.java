@@ -0,0 +1,329 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RingBufferTest {
+    @Test
+    public void singleProducer() throws Throwable {
+        final RingBuffer<Integer> buffer = RingBuffer.spsc(10);
+        Assert.assertEquals(16, buffer.getCapacity());
+        final int n = 100000;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < n; i++)
+                        buffer.put(i);
+                    buffer.close();
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        };
+        producer.start();
+
+        int expected = 0;
+        for (Integer i = buffer.take(); i != null; i = buffer.take())
+            Assert.assertEquals(expected++, i.intValue());
+        Assert.assertEquals(n, expected);
+        producer.join();
+    }
+
+    @Test
+    public void multipleProducers() throws Throwable {
+        final RingBuffer<Integer> buffer = RingBuffer.mpmc(8);
+        final int n = 50000, producers = 4, consumers = 3;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++)
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < n; i++)
+                            buffer.put(i);
+                    }
+                    catch (InterruptedException e) {
+                    }
+                }
+            });
+        ArrayList<Thread> consumerThreads = new ArrayList<Thread>();
+        for (int c = 0; c < consumers; c++)
+            consumerThreads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (Integer i = buffer.take(); i != null; i = buffer
+                            .take()) {
+                            sum.addAndGet(i);
+                            count.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                    }
+                }
+            });
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : consumerThreads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        buffer.close();
+        for (Thread thread : consumerThreads)
+            thread.join();
+
+        Assert.assertEquals((long)producers * n, count.get());
+        Assert.assertEquals((long)producers * n * (n - 1) / 2, sum.get());
+    }
+
+    @Test
+    public void nonBlocking() {
+        RingBuffer<String> buffer = RingBuffer.mpmc(2);
+        Assert.assertTrue(buffer.offer("a"));
+        Assert.assertTrue(buffer.offer("b"));
+        Assert.assertFalse(buffer.offer("c"));
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertEquals("a", buffer.poll());
+        Assert.assertEquals("b", buffer.poll());
+        Assert.assertNull(buffer.poll());
+    }
+
+    @Test
+    public void bufferedIterator() {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++)
+            list.add(i);
+        BufferedIterator<Integer> iterator = new BufferedIterator<Integer>(
+            list.iterator(), 10);
+        int expected = 0;
+        while (iterator.hasNext())
+            Assert.assertEquals(expected++, iterator.next().intValue());
+        Assert.assertEquals(1000, expected);
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void batches() throws Throwable {
+        final ArrayList<RingBuffer<Integer>> buffers = new ArrayList<RingBuffer<Integer>>();
+        buffers.add(RingBuffer.<Integer>spsc(16));
+        buffers.add(RingBuffer.<Integer>mpmc(16));
+        for (final RingBuffer<Integer> buffer : buffers) {
+            final int n = 10000;
+            Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ArrayList<Integer> batch = new ArrayList<Integer>();
+                        for (int i = 0; i < n; i++) {
+                            batch.add(i);
+                            if (batch.size() == 37) {
+                                buffer.put(batch);
+                                batch.clear();
+                            }
+                        }
+                        buffer.put(batch);
+                        buffer.close();
+                    }
+                    catch (InterruptedException e) {
+                    }
+                }
+            };
+            producer.start();
+
+            ArrayList<Integer> list = new ArrayList<Integer>();
+            while (buffer.take(list, 10) > 0)
+                Assert.assertTrue(list.size() <= n);
+            producer.join();
+            Assert.assertEquals(n, list.size());
+            for (int i = 0; i < n; i++)
+                Assert.assertEquals(i, list.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void batchingIterator() {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++)
+            list.add(i);
+
+        // Batches of 64 objects, exchanged through the buffer
+        BufferedIterator<List<Integer>> batches = new BufferedIterator<List<Integer>>(
+            new BatchingIterator<Integer>(list.iterator(), 64), 4);
+        CloseableIterator<Integer> iterator = BatchingIterator
+            .flatten(batches);
+        int expected = 0;
+        while (iterator.hasNext())
+            Assert.assertEquals(expected++, iterator.next().intValue());
+        Assert.assertEquals(1000, expected);
+
+        // Batched production and consumption
+        BufferedIterator<Integer> buffered = new BufferedIterator<Integer>(
+            list.iterator(), 16, 100);
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        Assert.assertTrue(buffered.hasNext());
+        result.add(buffered.next());
+        while (buffered.drainTo(result, 50) > 0)
+            ;
+        Assert.assertEquals(list, result);
+    }
+
+    @Test
+    public void bufferedConsumer() throws Throwable {
+        final ArrayList<Integer> consumed = new ArrayList<Integer>();
+        BufferedConsumer<Integer> consumer = new BufferedConsumer<Integer>(4,
+            true) {
+            @Override
+            public void run() {
+                super.run();
+                while (hasNext())
+                    consumed.add(next());
+                synchronized (consumed) {
+                    consumed.notifyAll();
+                }
+            }
+        };
+        consumer.readyToConsume();
+        for (int i = 0; i < 5; i++)
+            consumer.put(i);
+        synchronized (consumed) {
+            consumer.close();
+            consumed.wait(10000);
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), consumed);
+    }
+
+    @Test
+    public void concurrentConsumers() throws Throwable {
+        final int n = 100000;
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            list.add(i);
+        final BufferedIterator<Integer> iterator = new BufferedIterator<Integer>(
+            list.iterator(), 16, 10);
+
+        // Each consumer alternates next() and drainTo()
+        final ArrayList<List<Integer>> consumed = new ArrayList<List<Integer>>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final ArrayList<Integer> own = new ArrayList<Integer>();
+            consumed.add(own);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (boolean single = true; ; single = !single)
+                        if (single)
+                            try {
+                                own.add(iterator.next());
+                            }
+                            catch (java.util.NoSuchElementException e) {
+                                return;
+                            }
+                        else if (iterator.drainTo(own, 7) == 0)
+                            return;
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        // Every object was consumed once
+        final boolean[] seen = new boolean[n];
+        int count = 0;
+        for (List<Integer> own : consumed)
+            for (Integer i : own) {
+                Assert.assertFalse(seen[i]);
+                seen[i] = true;
+                count++;
+            }
+        Assert.assertEquals(n, count);
+    }
+
+    @Test
+    public void sharedExecutor() {
+        // Many streams are opened at once, and consumed in turn
+        final int streams = 500, n = 100;
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            list.add(i);
+        ArrayList<BufferedIterator<Integer>> iterators = new ArrayList<BufferedIterator<Integer>>();
+        for (int i = 0; i < streams; i++)
+            iterators.add(new BufferedIterator<Integer>(list.iterator(), 4, 1,
+                SharedExecutor.get()));
+
+        int[] counts = new int[streams];
+        for (boolean more = true; more; ) {
+            more = false;
+            for (int i = 0; i < streams; i++)
+                if (iterators.get(i).hasNext()) {
+                    Assert.assertEquals(counts[i]++, iterators.get(i).next()
+                        .intValue());
+                    more = true;
+                }
+        }
+        for (int i = 0; i < streams; i++)
+            Assert.assertEquals(n, counts[i]);
+    }
+
+    @Test
+    public void closeBeforeStart() {
+        ArrayList<Integer> list = new ArrayList<Integer>(Arrays.asList(1, 2, 3));
+        BufferedIterator<Integer> iterator = new BufferedIterator<Integer>(
+            list.iterator(), 4, 1, SharedExecutor.get());
+        iterator.close();
+        Assert.assertFalse(iterator.hasNext());
+
+        // Closing a running producer ends the stream
+        BufferedIterator<Integer> infinite = new BufferedIterator<Integer>(
+            new Iterator<Integer>() {
+                public boolean hasNext() {
+                    return true;
+                }
+
+                public Integer next() {
+                    return 1;
+                }
+
+                public void remove() {
+                }
+            }, 4, 1, SharedExecutor.get());
+        Assert.assertEquals(1, infinite.next().intValue());
+        infinite.close();
+        while (infinite.hasNext())
+            infinite.next();
+    }
+
+    @Test
+    public void consumerOnExecutor() throws Throwable {
+        final ArrayList<Integer> consumed = new ArrayList<Integer>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        BufferedConsumer<Integer> consumer = new BufferedConsumer<Integer>(
+            RingBuffer.<Integer>spsc(4), SharedExecutor.get()) {
+            @Override
+            public void run() {
+                super.run();
+                while (hasNext())
+                    consumed.add(next());
+                finished.countDown();
+            }
+        };
+        for (int i = 0; i < 5; i++)
+            consumer.put(i);
+        consumer.close();
+        Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), consumed);
+    }
+}
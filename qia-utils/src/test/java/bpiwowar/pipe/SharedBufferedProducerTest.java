@@ -0,0 +1,143 @@
+package bpiwowar.pipe;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SharedBufferedProducerTest {
+    /**
+     * Produces the integers from 0 to n - 1, counting them
+     */
+    static class Counter extends SharedBufferedProducer<Integer> {
+        final int n;
+
+        final AtomicInteger produced;
+
+        Counter(int bufferSize, int n, AtomicInteger produced) {
+            super(bufferSize, SharedExecutor.get());
+            this.n = n;
+            this.produced = produced;
+        }
+
+        @Override
+        protected void produce() throws InterruptedException {
+            for (int i = 0; i < n; i++) {
+                produce(i);
+                produced.incrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void broadcast() throws Throwable {
+        final int n = 10000, readers = 3;
+        final AtomicInteger produced = new AtomicInteger();
+        final Counter producer = new Counter(16, n, produced);
+
+        final ArrayList<SharedBufferedProducer<Integer>.Reader> list = new ArrayList<SharedBufferedProducer<Integer>.Reader>();
+        for (int i = 0; i < readers; i++)
+            list.add(producer.subscribe());
+        producer.close();
+
+        final int[] counts = new int[readers];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; r++) {
+            final int index = r;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    SharedBufferedProducer<Integer>.Reader reader = list
+                        .get(index);
+                    while (reader.hasNext()) {
+                        if (reader.next() != counts[index])
+                            return;
+                        counts[index]++;
+                        if (index == 0 && counts[index] % 1000 == 0)
+                            Thread.yield();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        for (int r = 0; r < readers; r++)
+            Assert.assertEquals(n, counts[r]);
+        Assert.assertEquals(n, produced.get());
+    }
+
+    @Test
+    public void slowestReaderBoundsMemory() throws Throwable {
+        final AtomicInteger produced = new AtomicInteger();
+        final Counter producer = new Counter(8, 100, produced);
+        SharedBufferedProducer<Integer>.Reader idle = producer.subscribe();
+
+        // The idle reader blocks the production once the buffer is full
+        Assert.assertEquals(0, producer.next().intValue());
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (produced.get() < 8 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        Assert.assertEquals(8, produced.get());
+        Thread.sleep(50);
+        Assert.assertEquals(8, produced.get());
+
+        idle.close();
+        int expected = 1;
+        while (producer.hasNext())
+            Assert.assertEquals(expected++, producer.next().intValue());
+        Assert.assertEquals(100, expected);
+    }
+
+    @Test
+    public void closingAllReadersStopsProduction() throws Throwable {
+        final AtomicInteger produced = new AtomicInteger();
+        final Counter producer = new Counter(4, Integer.MAX_VALUE, produced);
+        SharedBufferedProducer<Integer>.Reader reader = producer.subscribe();
+        Assert.assertEquals(0, reader.next().intValue());
+        producer.close();
+        reader.close();
+        Assert.assertEquals(0, producer.getReaderCount());
+        Assert.assertFalse(reader.hasNext());
+
+        final int count = produced.get();
+        Thread.sleep(50);
+        Assert.assertTrue(produced.get() <= count + 1);
+    }
+
+    @Test
+    public void errorAfterProducedObjects() throws Throwable {
+        // The buffer holds the whole stream, so that the readers can be
+        // drained one after the other
+        final int n = 50, readers = 3;
+        final SharedBufferedProducer<Integer> producer = new SharedBufferedProducer<Integer>(
+            n + 1, SharedExecutor.get()) {
+            @Override
+            protected void produce() throws InterruptedException {
+                for (int i = 0; i < n; i++)
+                    produce(i);
+                throw new IllegalStateException("failed");
+            }
+        };
+
+        final ArrayList<SharedBufferedProducer<Integer>.Reader> list = new ArrayList<SharedBufferedProducer<Integer>.Reader>();
+        for (int i = 0; i < readers; i++)
+            list.add(producer.subscribe());
+        producer.close();
+
+        for (SharedBufferedProducer<Integer>.Reader reader : list) {
+            int count = 0;
+            try {
+                while (reader.hasNext())
+                    Assert.assertEquals(count++, reader.next().intValue());
+                Assert.fail("The error was not thrown");
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("failed", e.getMessage());
+            }
+            Assert.assertEquals(n, count);
+        }
+    }
+}
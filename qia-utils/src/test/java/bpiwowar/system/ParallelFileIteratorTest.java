@@ -0,0 +1,160 @@
+package bpiwowar.system;
+
+import bpiwowar.pipe.BufferedProducer;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelFileIteratorTest {
+    private TemporaryDirectory directory;
+
+    /** Only keeps text files */
+    static final FileFilter TEXT = new FileFilter() {
+        public boolean accept(File file) {
+            return file.getName().endsWith(".txt");
+        }
+    };
+
+    @Before
+    public void setUp() throws Throwable {
+        directory = new TemporaryDirectory("walker", "");
+        create(directory.getFile(), 3);
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        directory.close();
+    }
+
+    /**
+     * Creates a tree with a few files and subdirectories in each directory
+     */
+    static void create(File dir, int levels) throws Throwable {
+        for (int i = 0; i < 3; i++)
+            new File(dir, "file-" + i + ".txt").createNewFile();
+        new File(dir, "other.dat").createNewFile();
+        if (levels > 0)
+            for (int i = 0; i < 3; i++) {
+                File sub = new File(dir, "dir-" + i);
+                sub.mkdir();
+                create(sub, levels - 1);
+            }
+    }
+
+    static List<File> list(Iterator<File> iterator) {
+        ArrayList<File> files = new ArrayList<File>();
+        while (iterator.hasNext())
+            files.add(iterator.next());
+        return files;
+    }
+
+    @Test
+    public void ordered() {
+        for (int depth : new int[] {-1, 0, 1}) {
+            List<File> expected = list(new FileIterator(directory.getFile(),
+                depth, TEXT));
+            List<File> files = list(new ParallelFileIterator(directory
+                .getFile(), depth, TEXT, 3, true));
+            Assert.assertEquals(expected, files);
+        }
+        Assert.assertEquals(3 * (1 + 3 + 9 + 27), list(
+            new ParallelFileIterator(directory.getFile(), -1, TEXT, 2, true))
+            .size());
+    }
+
+    @Test
+    public void unordered() {
+        for (int depth : new int[] {-1, 0, 2}) {
+            List<File> expected = list(new FileIterator(directory.getFile(),
+                depth, null));
+            List<File> files = list(new ParallelFileIterator(directory
+                .getFile(), depth, null, 4, false));
+            Assert.assertEquals(expected.size(), files.size());
+            Assert.assertEquals(new HashSet<File>(expected), new HashSet<File>(
+                files));
+        }
+    }
+
+    @Test
+    public void close() {
+        ParallelFileIterator iterator = new ParallelFileIterator(directory
+            .getFile(), -1, null, 2, false);
+        Assert.assertTrue(iterator.hasNext());
+        iterator.next();
+        iterator.close();
+        while (iterator.hasNext())
+            iterator.next();
+    }
+
+    @Test
+    public void filterError() {
+        for (boolean ordered : new boolean[] {true, false}) {
+            // The filter fails after some files
+            final FileFilter failing = new FileFilter() {
+                int count = 0;
+
+                public synchronized boolean accept(File file) {
+                    if (++count == 20)
+                        throw new IllegalStateException("Filter failure");
+                    return true;
+                }
+            };
+            ParallelFileIterator iterator = new ParallelFileIterator(directory
+                .getFile(), -1, failing, 2, ordered);
+            try {
+                while (iterator.hasNext())
+                    iterator.next();
+                Assert.fail("The error was not given to the consumer");
+            }
+            catch (RuntimeException e) {
+                Throwable cause = e;
+                while (cause.getCause() != null)
+                    cause = cause.getCause();
+                Assert.assertEquals("Filter failure", cause.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of threads running a buffered producer
+     */
+    static int producerThreads() {
+        int count = 0;
+        for (StackTraceElement[] trace : Thread.getAllStackTraces().values())
+            for (StackTraceElement element : trace)
+                if (element.getClassName().equals(
+                    BufferedProducer.class.getName())
+                    && element.getMethodName().equals("run")) {
+                    count++;
+                    break;
+                }
+        return count;
+    }
+
+    @Test
+    public void invalidWindow() {
+        final int threads = producerThreads();
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            new ParallelFileIterator(directory.getFile(), -1, null, executor,
+                0, true);
+            Assert.fail("A window of 0 was accepted");
+        }
+        catch (IllegalArgumentException e) {
+        }
+        finally {
+            executor.shutdown();
+        }
+        // No producer thread was left waiting
+        Assert.assertEquals(threads, producerThreads());
+    }
+}